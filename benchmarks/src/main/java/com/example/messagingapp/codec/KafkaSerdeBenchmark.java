@@ -0,0 +1,79 @@
+package com.example.messagingapp.codec;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.messagingapp.model.ChatMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Round trip of a direct message through the serializer and deserializer of the Kafka producer
+ * and consumer, in each wire format messaging.codec.kafka-format can select
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KafkaSerdeBenchmark {
+
+    private static final String TOPIC = "messages-bench";
+
+    @Param({"JSON", "CBOR"})
+    public WireFormat format;
+
+    private CodecSerializer<ChatMessage> serializer;
+    private CodecDeserializer<ChatMessage> deserializer;
+    private ChatMessage message;
+    private byte[] record;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MessageCodec messageCodec = new MessageCodec(new ObjectMapper().findAndRegisterModules());
+        serializer = new CodecSerializer<>(messageCodec, format);
+        deserializer = new CodecDeserializer<>(messageCodec, ChatMessage.class);
+        message = ChatMessage.builder()
+                .type("chat")
+                .messageId("0b6f4c2e-5a51-4e0f-9d0c-3f1b2a7c9e44")
+                .userId("alice")
+                .recipientId("bob")
+                .clientId("session-1")
+                .serverId("server1")
+                .message("Are we still on for the review at three?")
+                .seq(42L)
+                .timestamp(Instant.now())
+                .additionalData(Map.of("replyTo", "m-41"))
+                .build();
+        record = serializer.serialize(TOPIC, message);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return serializer.serialize(TOPIC, message);
+    }
+
+    @Benchmark
+    public ChatMessage deserialize() {
+        return deserializer.deserialize(TOPIC, record);
+    }
+
+    @Benchmark
+    public ChatMessage roundTrip() {
+        return deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, message));
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.messagingapp.handler;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.codec.WireFormat;
+
+/**
+ * Open WebSocket session that takes every frame without writing it anywhere, so a benchmark
+ * measures the server's work up to the socket write
+ */
+public final class BenchmarkSession implements WebSocketSession {
+
+    private final String id;
+    private final String acceptedProtocol;
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    // Frames handed to this session so far
+    private long framesSent;
+
+    public BenchmarkSession(String id, String userId, WireFormat format) {
+        this.id = id;
+        this.acceptedProtocol = format == WireFormat.JSON ? null : format.getSubprotocol();
+        attributes.put("userId", userId);
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) {
+        framesSent++;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public URI getUri() {
+        return null;
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() {
+        return HttpHeaders.EMPTY;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Principal getPrincipal() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public String getAcceptedProtocol() {
+        return acceptedProtocol;
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {
+    }
+
+    @Override
+    public int getTextMessageSizeLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+    }
+
+    @Override
+    public int getBinaryMessageSizeLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void close(CloseStatus status) {
+    }
+}
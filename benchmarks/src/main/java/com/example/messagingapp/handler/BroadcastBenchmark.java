@@ -0,0 +1,70 @@
+package com.example.messagingapp.handler;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.model.ChatMessage;
+
+/**
+ * Fan-out of one public message to every session on a node: encoding it once per wire format
+ * and handing the shared frame to each session's outbound queue. One session in ten speaks CBOR.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BroadcastBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int sessions;
+
+    private HandlerFixture fixture;
+    private ChatMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new HandlerFixture();
+        for (int i = 0; i < sessions; i++) {
+            fixture.connect("user-" + i, i % 10 == 0 ? WireFormat.CBOR : WireFormat.JSON);
+        }
+        message = ChatMessage.builder()
+                .type("chat")
+                .messageId("m-1")
+                .userId("user-0")
+                .serverId("other")
+                .message("Hello everyone")
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    /**
+     * A public message consumed from the broadcast topic; one sent from a local session is
+     * fanned out the same way
+     */
+    @Benchmark
+    public void broadcast() throws Exception {
+        fixture.handler().deliverMessage(message);
+    }
+}
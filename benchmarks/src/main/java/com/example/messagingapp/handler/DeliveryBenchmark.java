@@ -0,0 +1,75 @@
+package com.example.messagingapp.handler;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.model.ChatMessage;
+
+/**
+ * Routing one direct message consumed from Kafka in {@link ChatWebSocketHandler#deliverMessage}:
+ * looking up the recipient's and the sender's sessions among 10,000 connected users, writing the
+ * shared frame to each and queueing the delivery receipt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeliveryBenchmark {
+
+    private static final int CONNECTED_USERS = 10_000;
+
+    // Sessions the recipient has open on this node
+    @Param({"1", "3"})
+    public int devices;
+
+    private HandlerFixture fixture;
+    private ChatMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new HandlerFixture();
+        for (int i = 0; i < CONNECTED_USERS; i++) {
+            fixture.connect("user-" + i, WireFormat.JSON);
+        }
+        for (int i = 1; i < devices; i++) {
+            fixture.connect("user-1", i % 2 == 0 ? WireFormat.JSON : WireFormat.CBOR);
+        }
+        message = ChatMessage.builder()
+                .type("chat")
+                .messageId("m-1")
+                .userId("user-0")
+                .recipientId("user-1")
+                .serverId(HandlerFixture.SERVER_ID)
+                .message("Hello")
+                .seq(1L)
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void deliverMessage() throws Exception {
+        fixture.handler().deliverMessage(message);
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.messagingapp.handler;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.history.MessageHistoryStore;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.PresencePage;
+import com.example.messagingapp.service.DeliveryLatency;
+import com.example.messagingapp.service.MessageService;
+import com.example.messagingapp.service.OfflineInbox;
+import com.example.messagingapp.service.PresenceService;
+import com.example.messagingapp.service.RedisService;
+import com.example.messagingapp.service.ServerProperties;
+import com.example.messagingapp.service.SessionRegistry;
+import com.example.messagingapp.service.VideoCallService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * A {@link ChatWebSocketHandler} wired as in the server, with benchmark sessions connected to it.
+ *
+ * Redis, Kafka, the history store and call signaling are stubs that answer at once and do not
+ * record their calls, so a benchmark measures the handler's own work. Session writes run on the
+ * calling thread; large fan-outs are sharded over a fan-out pool sized as in the server.
+ */
+public final class HandlerFixture implements AutoCloseable {
+
+    public static final String SERVER_ID = "bench";
+
+    private final MessageCodec messageCodec = new MessageCodec(new ObjectMapper().findAndRegisterModules());
+    private final ExecutorService fanoutExecutor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ChatWebSocketHandler handler;
+    private final AtomicInteger sessionIds = new AtomicInteger();
+
+    public HandlerFixture() throws IOException {
+        MessagingProperties properties = new MessagingProperties();
+        properties.getServer().setId(SERVER_ID);
+        fanoutExecutor = Executors.newFixedThreadPool(properties.getFanout().getParallelism());
+
+        RedisService redisService = stub(RedisService.class);
+        when(redisService.addUserSession(anyString(), anyString())).thenReturn(CompletableFuture.completedFuture(0L));
+        when(redisService.removeUserSession(anyString(), anyString())).thenReturn(CompletableFuture.completedFuture(0L));
+        when(redisService.getConnectedUsersPage(anyString()))
+                .thenReturn(CompletableFuture.completedFuture(new PresencePage(List.of(), "0", 0L)));
+        MessageService messageService = stub(MessageService.class);
+        when(messageService.sendDirectMessage(any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(true));
+        MessageHistoryStore historyStore = stub(MessageHistoryStore.class);
+        when(historyStore.appendAsync(anyString(), any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(1L));
+        OfflineInbox offlineInbox = stub(OfflineInbox.class);
+        when(offlineInbox.drain(anyString())).thenReturn(CompletableFuture.completedFuture(List.of()));
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ServerProperties serverProperties = new ServerProperties(properties);
+        DeliveryTracker deliveryTracker = new DeliveryTracker(messageService, new DeliveryLatency(meterRegistry),
+                new ConcurrentTaskScheduler(scheduler), serverProperties, properties);
+        handler = new ChatWebSocketHandler(messageCodec, messageService, redisService, serverProperties,
+                stub(VideoCallService.class), stub(PresenceService.class), new SessionRegistry(),
+                new OutboundSessionFactory(properties, Runnable::run, meterRegistry),
+                new SessionFanout(messageCodec, properties, fanoutExecutor, meterRegistry),
+                new InboundMessageRegistry(messageCodec, meterRegistry), historyStore,
+                offlineInbox, deliveryTracker, stub(DeliveryDispatcher.class), properties, meterRegistry);
+    }
+
+    public ChatWebSocketHandler handler() {
+        return handler;
+    }
+
+    public MessageCodec messageCodec() {
+        return messageCodec;
+    }
+
+    /**
+     * Connects one more session of a user, as the upgrade would
+     */
+    public BenchmarkSession connect(String userId, WireFormat format) throws Exception {
+        BenchmarkSession session = new BenchmarkSession("session-" + sessionIds.incrementAndGet(), userId, format);
+        handler.afterConnectionEstablished(session);
+        return session;
+    }
+
+    @Override
+    public void close() {
+        fanoutExecutor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * A mock that does not record its invocations, which would otherwise pile up over a run
+     */
+    public static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+}
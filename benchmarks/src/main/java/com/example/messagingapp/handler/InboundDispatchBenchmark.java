@@ -0,0 +1,116 @@
+package com.example.messagingapp.handler;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.WebRTCSignal;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Decoding and dispatching one inbound text frame in {@link ChatWebSocketHandler#handleTextMessage}:
+ * a direct message up to its "sent" confirmation, a public message up to its local broadcast to
+ * the peer, and an ICE candidate up to the signaling service.
+ *
+ * decodeOnce and decodeTwice compare the decoding alone on the same frames: the single pass of
+ * {@link InboundMessageRegistry}, and the flow it replaced, which parsed every frame as a
+ * WebRTCSignal and, failing that or on any other type, again as a ChatMessage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InboundDispatchBenchmark {
+
+    private static final Map<String, String> FRAMES = Map.of(
+            "direct", "{\"type\":\"chat\",\"messageId\":\"m-1\",\"recipientId\":\"bob\",\"message\":\"Hello Bob\"}",
+            "broadcast", "{\"type\":\"chat\",\"message\":\"Hello everyone\"}",
+            "ice-candidate", "{\"type\":\"ice-candidate\",\"to\":\"bob\",\"callId\":\"call-1\","
+                    + "\"payload\":{\"candidate\":\"candidate:1 1 udp 2122260223 10.0.0.2 49152 typ host\","
+                    + "\"sdpMid\":\"0\",\"sdpMLineIndex\":0}}");
+
+    // The types the handler registers as WebRTC signals
+    private static final Set<String> SIGNAL_TYPES = Set.of(
+            "offer", "answer", "ice-candidate", "call-request", "call-response", "call-end");
+
+    @Param({"direct", "broadcast", "ice-candidate"})
+    public String kind;
+
+    private HandlerFixture fixture;
+    private BenchmarkSession alice;
+    private TextMessage frame;
+    private ObjectMapper mapper;
+    private InboundMessageRegistry registry;
+    private Object decoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new HandlerFixture();
+        alice = fixture.connect("alice", WireFormat.JSON);
+        fixture.connect("bob", WireFormat.JSON);
+        frame = new TextMessage(FRAMES.get(kind));
+
+        // A registry with the handler's types whose handlers only keep the decoded message
+        MessageCodec messageCodec = new MessageCodec(new ObjectMapper().findAndRegisterModules());
+        mapper = messageCodec.mapper(WireFormat.JSON);
+        registry = new InboundMessageRegistry(messageCodec, new SimpleMeterRegistry());
+        for (String type : SIGNAL_TYPES) {
+            registry.register(type, WebRTCSignal.class, (message, session, userId) -> decoded = message);
+        }
+        registry.register("user-list", ChatMessage.class, (message, session, userId) -> decoded = message);
+        registry.registerFallback(ChatMessage.class, (message, session, userId) -> decoded = message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void handleTextMessage() throws Exception {
+        fixture.handler().handleTextMessage(alice, frame);
+    }
+
+    @Benchmark
+    public Object decodeOnce() throws Exception {
+        registry.dispatch(frame.getPayload(), alice, "alice");
+        return decoded;
+    }
+
+    @Benchmark
+    public Object decodeTwice() throws Exception {
+        String payload = frame.getPayload();
+        try {
+            WebRTCSignal signal = mapper.readValue(payload, WebRTCSignal.class);
+            if (signal.getType() != null && SIGNAL_TYPES.contains(signal.getType())) {
+                return signal;
+            }
+        } catch (JsonProcessingException e) {
+            // Not a WebRTC signal
+        }
+        return mapper.readValue(payload, ChatMessage.class);
+    }
+}
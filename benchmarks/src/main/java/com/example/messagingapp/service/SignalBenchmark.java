@@ -0,0 +1,112 @@
+package com.example.messagingapp.service;
+
+import static com.example.messagingapp.handler.HandlerFixture.stub;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.concurrent.ConcurrentTaskScheduler;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.handler.BenchmarkSession;
+import com.example.messagingapp.model.WebRTCSignal;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * Relaying one WebRTC signal in {@link VideoCallService#processSignal}: written straight to the
+ * peer's session when the peer is on this node, or published towards the peer's node, where ICE
+ * candidates are batched. The peer's route comes from the near-cache; Redis is a stub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignalBenchmark {
+
+    private static final String SERVER_ID = "bench";
+
+    @Param({"offer", "ice-candidate"})
+    public String type;
+
+    @Param({"local", "remote"})
+    public String peer;
+
+    private ScheduledExecutorService scheduler;
+    private VideoCallService videoCallService;
+    private WebRTCSignal signal;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MessagingProperties properties = new MessagingProperties();
+        properties.getServer().setId(SERVER_ID);
+        MessageCodec messageCodec = new MessageCodec(new ObjectMapper().findAndRegisterModules());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        List<String> route = "local".equals(peer) ? List.of(SERVER_ID) : List.of("other");
+        RedisService redisService = stub(RedisService.class);
+        when(redisService.getUserServers("bob")).thenReturn(CompletableFuture.completedFuture(route));
+        RoutingCache routingCache = new RoutingCache(redisService, properties,
+                stub(RedisMessageListenerContainer.class), new SimpleMeterRegistry());
+
+        ReactiveStringRedisTemplate redisTemplate = stub(ReactiveStringRedisTemplate.class);
+        when(redisTemplate.convertAndSend(anyString(), anyString())).thenReturn(Mono.just(1L));
+        SessionRegistry sessionRegistry = new SessionRegistry();
+        if ("local".equals(peer)) {
+            sessionRegistry.register("bob", new BenchmarkSession("session-1", "bob", WireFormat.JSON));
+        }
+        videoCallService = new VideoCallService(messageCodec, stub(CallRegistry.class), routingCache, redisTemplate,
+                new ServerProperties(properties), sessionRegistry, new ConcurrentTaskScheduler(scheduler), properties,
+                stub(RedisMessageListenerContainer.class));
+
+        Object payload = "offer".equals(type)
+                ? Map.of("type", "offer", "sdp", "v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n")
+                : Map.of("candidate", "candidate:1 1 udp 2122260223 10.0.0.2 49152 typ host",
+                        "sdpMid", "0", "sdpMLineIndex", 0);
+        signal = WebRTCSignal.builder()
+                .type(type)
+                .to("bob")
+                .callId("call-1")
+                .payload(payload)
+                .timestamp(Instant.now())
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void processSignal() {
+        videoCallService.processSignal(signal, "alice");
+    }
+}
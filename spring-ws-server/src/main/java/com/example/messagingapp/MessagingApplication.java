@@ -4,12 +4,14 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import com.example.messagingapp.config.MessagingProperties;
 
 @SpringBootApplication
 @EnableConfigurationProperties(MessagingProperties.class)
 @EnableAsync
+@EnableScheduling
 public class MessagingApplication {
 
     public static void main(String[] args) {
@@ -0,0 +1,33 @@
+package com.example.messagingapp.codec;
+
+import java.io.IOException;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * Kafka deserializer backed by {@link MessageCodec}. The format of each record is detected
+ * from its payload, so JSON records from nodes that have not switched formats are still read.
+ */
+public class CodecDeserializer<T> implements Deserializer<T> {
+
+    private final MessageCodec codec;
+    private final Class<T> type;
+
+    public CodecDeserializer(MessageCodec codec, Class<T> type) {
+        this.codec = codec;
+        this.type = type;
+    }
+
+    @Override
+    public T deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return codec.decode(data, type);
+        } catch (IOException e) {
+            throw new SerializationException("Can't deserialize data from topic " + topic, e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.messagingapp.codec;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Kafka serializer backed by {@link MessageCodec}. No type headers are written; the topic
+ * determines the payload type.
+ */
+public class CodecSerializer<T> implements Serializer<T> {
+
+    private final MessageCodec codec;
+    private final WireFormat format;
+
+    public CodecSerializer(MessageCodec codec, WireFormat format) {
+        this.codec = codec;
+        this.format = format;
+    }
+
+    @Override
+    public byte[] serialize(String topic, T data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return codec.encode(data, format);
+        } catch (JsonProcessingException e) {
+            throw new SerializationException("Can't serialize data for topic " + topic, e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.messagingapp.codec;
+
+import java.io.IOException;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Encodes and decodes messages in any {@link WireFormat}.
+ * The CBOR mapper is a copy of the application ObjectMapper, so both formats share the same
+ * modules and (de)serialization settings.
+ */
+@Component
+public class MessageCodec {
+
+    private final ObjectMapper jsonMapper;
+    private final ObjectMapper cborMapper;
+
+    public MessageCodec(ObjectMapper objectMapper) {
+        this.jsonMapper = objectMapper;
+        this.cborMapper = objectMapper.copyWith(new CBORFactory());
+    }
+
+    public ObjectMapper mapper(WireFormat format) {
+        return format == WireFormat.CBOR ? cborMapper : jsonMapper;
+    }
+
+    public byte[] encode(Object value, WireFormat format) throws JsonProcessingException {
+        return mapper(format).writeValueAsBytes(value);
+    }
+
+    /**
+     * Decodes a payload in either format, detecting which one from its first byte
+     */
+    public <T> T decode(byte[] data, Class<T> type) throws IOException {
+        return mapper(WireFormat.detect(data)).readValue(data, type);
+    }
+
+    /**
+     * Encodes a message as a WebSocket frame: a text frame for JSON, a binary frame for CBOR
+     */
+    public WebSocketMessage<?> toFrame(Object value, WireFormat format) throws JsonProcessingException {
+        byte[] encoded = encode(value, format);
+        return format == WireFormat.CBOR ? new BinaryMessage(encoded) : new TextMessage(encoded);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.messagingapp.codec;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Serialization formats supported on the wire, with the WebSocket subprotocol that selects each one.
+ * Clients that do not request a subprotocol get JSON text frames.
+ */
+public enum WireFormat {
+    JSON("chat.v1.json"),
+    CBOR("chat.v1.cbor");
+
+    private final String subprotocol;
+
+    WireFormat(String subprotocol) {
+        this.subprotocol = subprotocol;
+    }
+
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+
+    /**
+     * Format negotiated for a WebSocket session; JSON unless the binary subprotocol was accepted
+     */
+    public static WireFormat of(WebSocketSession session) {
+        return CBOR.subprotocol.equals(session.getAcceptedProtocol()) ? CBOR : JSON;
+    }
+
+    /**
+     * Detects the format of an encoded payload. JSON documents start with '{', '[' or whitespace,
+     * none of which can start a CBOR map or array.
+     */
+    public static WireFormat detect(byte[] data) {
+        if (data.length == 0) {
+            return JSON;
+        }
+        switch (data[0]) {
+            case '{':
+            case '[':
+            case ' ':
+            case '\t':
+            case '\r':
+            case '\n':
+                return JSON;
+            default:
+                return CBOR;
+        }
+    }
+}
@@ -1,27 +1,105 @@
 package com.example.messagingapp.config;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
 /**
- * Configuration for async operations
+ * Configuration for async operations.
+ *
+ * Spring Boot exports the pool and queue gauges of these executors as executor.* tagged with
+ * the bean name; rejected tasks are counted here. With messaging.threads.virtual the async and
+ * outbound executors start a virtual thread per task instead, and Tomcat's connector runs on
+ * virtual threads too.
  */
 @Configuration
 @EnableAsync
 public class AsyncConfig {
 
+    private final MessagingProperties messagingProperties;
+    private final MeterRegistry meterRegistry;
+
+    public AsyncConfig(MessagingProperties messagingProperties, MeterRegistry meterRegistry) {
+        this.messagingProperties = messagingProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
     @Bean(name = "taskExecutor")
     public Executor taskExecutor() {
+        if (messagingProperties.getThreads().isVirtual()) {
+            return VirtualThreads.perTaskExecutor("WebSocketTask-");
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(5);
         executor.setMaxPoolSize(10);
         executor.setQueueCapacity(25);
         executor.setThreadNamePrefix("WebSocketTask-");
+        executor.setRejectedExecutionHandler(countingRejections("taskExecutor"));
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Writes queued WebSocket frames. At most one task per session is in flight,
+     * so the queue is bounded by the number of sessions.
+     */
+    @Bean(name = "outboundExecutor")
+    public Executor outboundExecutor() {
+        if (messagingProperties.getThreads().isVirtual()) {
+            return VirtualThreads.perTaskExecutor("WebSocketSend-");
+        }
+        int threads = messagingProperties.getOutbound().getSenderThreads();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setThreadNamePrefix("WebSocketSend-");
         executor.initialize();
         return executor;
     }
+
+    /**
+     * Enqueues shards of large broadcasts onto session queues in parallel
+     */
+    @Bean(name = "fanoutExecutor")
+    public Executor fanoutExecutor() {
+        int threads = messagingProperties.getFanout().getParallelism();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setThreadNamePrefix("WebSocketFanout-");
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Processes HTTP requests and inbound WebSocket frames on virtual threads
+     */
+    @Bean
+    @ConditionalOnProperty(name = "messaging.threads.virtual", havingValue = "true")
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadConnector() {
+        return protocolHandler -> protocolHandler.setExecutor(VirtualThreads.perTaskExecutor("tomcat-handler-"));
+    }
+
+    // Counts tasks rejected because the pool and its queue are full, then rejects them as before
+    private RejectedExecutionHandler countingRejections(String name) {
+        Counter rejected = Counter.builder("messaging.executor.rejected")
+                .description("Tasks rejected by a saturated executor")
+                .tag("name", name)
+                .register(meterRegistry);
+        RejectedExecutionHandler abort = new ThreadPoolExecutor.AbortPolicy();
+        return (task, pool) -> {
+            rejected.increment();
+            abort.rejectedExecution(task, pool);
+        };
+    }
 }
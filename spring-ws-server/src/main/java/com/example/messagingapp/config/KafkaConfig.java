@@ -12,11 +12,14 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.*;
-import org.springframework.kafka.support.serializer.JsonDeserializer;
-import org.springframework.kafka.support.serializer.JsonSerializer;
 
+import com.example.messagingapp.codec.CodecDeserializer;
+import com.example.messagingapp.codec.CodecSerializer;
+import com.example.messagingapp.codec.MessageCodec;
 import com.example.messagingapp.model.ChatMessage;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -30,14 +33,39 @@ public class KafkaConfig {
     @Value("${messaging.server.id}")
     private String serverId;
     
+    private final MessagingProperties messagingProperties;
+    private final MessageCodec messageCodec;
+    private final MeterRegistry meterRegistry;
+    
+    public KafkaConfig(MessagingProperties messagingProperties, MessageCodec messageCodec, MeterRegistry meterRegistry) {
+        this.messagingProperties = messagingProperties;
+        this.messageCodec = messageCodec;
+        this.meterRegistry = meterRegistry;
+    }
+    
     // Producer Configuration
     @Bean
     public ProducerFactory<String, ChatMessage> producerFactory() {
         Map<String, Object> configProps = new HashMap<>();
         configProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
-        configProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
-        configProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, JsonSerializer.class);
-        return new DefaultKafkaProducerFactory<>(configProps);
+        
+        // Batching, compression and delivery guarantees from messaging.producer.*
+        MessagingProperties.Producer producer = messagingProperties.getProducer();
+        configProps.put(ProducerConfig.LINGER_MS_CONFIG, (int) producer.getLinger().toMillis());
+        configProps.put(ProducerConfig.BATCH_SIZE_CONFIG, producer.getBatchSize());
+        configProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, producer.getCompressionType());
+        configProps.put(ProducerConfig.ACKS_CONFIG, producer.getAcks());
+        configProps.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, producer.isIdempotence());
+        configProps.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, producer.getMaxInFlightRequestsPerConnection());
+        configProps.putAll(producer.getProperties());
+        
+        // Values are written in the configured wire format without type headers
+        DefaultKafkaProducerFactory<String, ChatMessage> factory = new DefaultKafkaProducerFactory<>(configProps,
+                new StringSerializer(), new CodecSerializer<>(messageCodec, messagingProperties.getCodec().getKafkaFormat()));
+        
+        // Exposes the client's kafka.producer.* metrics (batch size, send rate, request latency)
+        factory.addListener(new MicrometerProducerListener<>(meterRegistry));
+        return factory;
     }
     
     @Bean
@@ -51,11 +79,13 @@ public class KafkaConfig {
         Map<String, Object> props = new HashMap<>();
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         props.put(ConsumerConfig.GROUP_ID_CONFIG, "ws-server-group-" + serverId);
-        props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, JsonDeserializer.class);
-        props.put(JsonDeserializer.TRUSTED_PACKAGES, "com.example.messagingapp.model");
-        return new DefaultKafkaConsumerFactory<>(props, new StringDeserializer(),
-                new JsonDeserializer<>(ChatMessage.class, false));
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, messagingProperties.getDelivery().getMaxPollRecords());
+        DefaultKafkaConsumerFactory<String, ChatMessage> factory = new DefaultKafkaConsumerFactory<>(props,
+                new StringDeserializer(), new CodecDeserializer<>(messageCodec, ChatMessage.class));
+        
+        // Exposes the client's kafka.consumer.* metrics (fetch latency, records lag)
+        factory.addListener(new MicrometerConsumerListener<>(meterRegistry));
+        return factory;
     }
     
     @Bean
@@ -63,6 +93,11 @@ public class KafkaConfig {
         ConcurrentKafkaListenerContainerFactory<String, ChatMessage> factory = 
             new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(consumerFactory());
+        // Listeners receive a whole poll at a time
+        factory.setBatchListener(true);
+        if (messagingProperties.getThreads().isVirtual()) {
+            factory.getContainerProperties().setListenerTaskExecutor(VirtualThreads.perTaskExecutor("KafkaListener-"));
+        }
         return factory;
     }
     
@@ -76,6 +111,12 @@ public class KafkaConfig {
     
     @Bean
     public NewTopic serverTopic() {
-        return new NewTopic("messages-" + serverId, 1, (short) 1);
+        return new NewTopic("messages-" + serverId, messagingProperties.getDelivery().getServerTopicPartitions(), (short) 1);
+    }
+    
+    @Bean
+    public NewTopic broadcastTopic() {
+        MessagingProperties.Broadcast broadcast = messagingProperties.getBroadcast();
+        return new NewTopic(broadcast.getTopic(), broadcast.getPartitions(), (short) 1);
     }
 }
@@ -1,8 +1,14 @@
 package com.example.messagingapp.config;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import com.example.messagingapp.codec.WireFormat;
+
 import lombok.Data;
 
 /**
@@ -15,9 +21,236 @@ import lombok.Data;
 public class MessagingProperties {
     
     private Server server = new Server();
-    
+
+    private Presence presence = new Presence();
+
+    private Routing routing = new Routing();
+
+    private Rooms rooms = new Rooms();
+
+    private Broadcast broadcast = new Broadcast();
+
+    private Outbound outbound = new Outbound();
+
+    private Fanout fanout = new Fanout();
+
+    private Codec codec = new Codec();
+
+    private Producer producer = new Producer();
+
+    private Delivery delivery = new Delivery();
+
+    private Signaling signaling = new Signaling();
+
+    private History history = new History();
+
+    private Inbox inbox = new Inbox();
+
+    private Threads threads = new Threads();
+
+    private Handshake handshake = new Handshake();
+
     @Data
     public static class Server {
         private String id;
     }
+
+    @Data
+    public static class Presence {
+        // Number of users requested per SSCAN page of the presence index
+        private int pageSize = 500;
+
+        // Window over which join/leave events are coalesced into a single presence-delta frame
+        private long coalesceWindowMs = 100;
+
+        // How often a node refreshes its heartbeat and reaps nodes whose heartbeat has lapsed
+        private long heartbeatIntervalMs = 5000;
+
+        // A node missing heartbeats for this long is treated as gone: routes to it are ignored
+        private Duration heartbeatTtl = Duration.ofSeconds(15);
+
+        // Lifetime of a user's routing entry; the hosting node renews it every third of this
+        private Duration leaseTtl = Duration.ofSeconds(90);
+
+        // Routing entries renewed or reaped per script call; the calls of one renewal are pipelined
+        private int leaseBatchSize = 1000;
+    }
+
+    @Data
+    public static class Routing {
+        // Upper bound on user->server entries held in the local near-cache
+        private long cacheMaxSize = 100_000;
+
+        // Safety net for missed invalidations; entries are normally evicted via pub/sub
+        private Duration cacheTtl = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Rooms {
+        // Rooms one session may be a member of at a time; further joins are refused
+        private int maxPerSession = 100;
+
+        // Upper bound on room->server entries held in the local near-cache
+        private long cacheMaxSize = 100_000;
+
+        // Safety net for missed invalidations; entries are normally evicted via pub/sub
+        private Duration cacheTtl = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Broadcast {
+        // Shared topic every node consumes with its own consumer group
+        private String topic = "messages-broadcast";
+
+        private int partitions = 6;
+
+        // Listener threads per node for the broadcast topic (at most one per partition is useful)
+        private int consumerConcurrency = 1;
+    }
+
+    @Data
+    public static class Outbound {
+        // Maximum number of frames buffered per session before the overflow policy applies
+        private int bufferSizeLimit = 256;
+
+        // A single send taking longer than this closes the session as unreliable
+        private Duration sendTimeLimit = Duration.ofSeconds(10);
+
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+        // Threads shared by all sessions for writing queued frames
+        private int senderThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+        public enum OverflowPolicy {
+            DROP_OLDEST,
+            DROP_NEWEST,
+            DISCONNECT
+        }
+    }
+
+    @Data
+    public static class Fanout {
+        // Recipient count above which a fan-out is split into shards sent in parallel
+        private int shardSize = 1000;
+
+        // Threads used to enqueue shards of a large fan-out
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Data
+    public static class Codec {
+        // Format written to Kafka; consumers detect the format per record, so either can be read
+        private WireFormat kafkaFormat = WireFormat.CBOR;
+    }
+
+    @Data
+    public static class Producer {
+        // How long the producer waits to fill a batch before sending it
+        private Duration linger = Duration.ofMillis(5);
+
+        // Upper bound in bytes on a single per-partition batch
+        private int batchSize = 64 * 1024;
+
+        // none, gzip, snappy, lz4 or zstd
+        private String compressionType = "lz4";
+
+        private String acks = "all";
+
+        // Retries without duplicates or reordering; requires acks=all and at most 5 in-flight requests
+        private boolean idempotence = true;
+
+        private int maxInFlightRequestsPerConnection = 5;
+
+        // Any other producer setting, passed to the Kafka client as-is
+        private Map<String, String> properties = new HashMap<>();
+    }
+
+    @Data
+    public static class Delivery {
+        // Partitions of this node's messages-<server id> topic; existing topics are only ever grown
+        private int serverTopicPartitions = 6;
+
+        // Listener threads per node for the server topic (at most one per partition is useful)
+        private int consumerConcurrency = 1;
+
+        // Records handed to a batch listener per poll
+        private int maxPollRecords = 500;
+
+        // Lanes delivering consumed messages; a user's messages always use the same lane
+        private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+        // How long "delivered" receipts for one conversation are collected before being sent as one
+        private long receiptWindowMs = 50;
+    }
+
+    @Data
+    public static class Signaling {
+        // An unanswered call is dropped from the call registry after this long
+        private Duration ringTimeout = Duration.ofSeconds(60);
+
+        // Upper bound on an accepted call's lifetime, in case neither peer sends call-end
+        private Duration callTtl = Duration.ofHours(4);
+
+        // ICE candidates for a remote peer are held this long so a burst travels in one hop
+        private long iceBatchWindowMs = 20;
+
+        // A batch is sent as soon as it holds this many candidates
+        private int iceBatchMaxSize = 16;
+    }
+
+    @Data
+    public static class History {
+        // Holds one directory of log segments per conversation
+        private String directory = "data/history";
+
+        // The active segment of a conversation is sealed and a new one started past this size
+        private long segmentBytes = 8 * 1024 * 1024;
+
+        // Bytes of log between two entries of a segment's sparse index
+        private int indexIntervalBytes = 4096;
+
+        // Messages returned per history-sync page
+        private int pageSize = 200;
+
+        // Force every append to disk before the message is sent on
+        private boolean fsync = false;
+
+        // The open segment of a conversation with no appends for this long is closed
+        private Duration idleTimeout = Duration.ofMinutes(5);
+
+        // Writer lanes; a conversation always writes on the same one
+        private int writerThreads = 4;
+
+        // Messages waiting per writer lane; beyond this a message is sent on without being stored
+        private int writerQueueCapacity = 10_000;
+    }
+
+    @Data
+    public static class Inbox {
+        // Messages kept per offline user; the oldest are dropped beyond this
+        private int maxMessages = 1000;
+
+        // Messages older than this are not delivered, and an inbox left alone this long expires
+        private Duration maxAge = Duration.ofDays(7);
+
+        // Messages per frame when an inbox is delivered on connect
+        private int frameSize = 100;
+    }
+
+    @Data
+    public static class Threads {
+        // Run blocking work on virtual threads: Tomcat's connector, the Kafka listeners, delivery
+        // lanes, outbound WebSocket writes and @Async tasks. Needs Java 21 or later
+        private boolean virtual = false;
+    }
+
+    @Data
+    public static class Handshake {
+        // Connections allowed between their upgrade request and their registration; upgrades
+        // beyond this are answered with 503 and a Retry-After header
+        private int maxConcurrent = 256;
+
+        // Seconds a turned-away client is asked to wait before retrying
+        private int retryAfterSeconds = 1;
+    }
 }
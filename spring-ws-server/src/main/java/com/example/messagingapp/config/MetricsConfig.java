@@ -0,0 +1,24 @@
+package com.example.messagingapp.config;
+
+import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.example.messagingapp.service.ServerProperties;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Configuration for metrics shared by every meter
+ */
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * Tags every meter with this node's server id, which may be generated at startup
+     */
+    @Bean
+    public MeterRegistryCustomizer<MeterRegistry> serverTagCustomizer(ServerProperties serverProperties) {
+        return registry -> registry.config().commonTags("server", serverProperties.getServerId());
+    }
+}
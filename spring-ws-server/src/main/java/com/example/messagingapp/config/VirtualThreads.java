@@ -0,0 +1,46 @@
+package com.example.messagingapp.config;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+/**
+ * Virtual threads for messaging.threads.virtual.
+ *
+ * The build still targets Java 17, so the Java 21 builder API is looked up at runtime; enabling
+ * the mode on an older runtime fails at startup instead of silently running on platform threads.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    /**
+     * Factory for virtual threads named prefix0, prefix1, ...
+     */
+    public static ThreadFactory factory(String namePrefix) {
+        if (!isSupported()) {
+            throw new IllegalStateException("messaging.threads.virtual needs Java 21 or later, running on "
+                    + Runtime.version().feature());
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not available", e);
+        }
+    }
+
+    /**
+     * Executor starting a new virtual thread for every task
+     */
+    public static SimpleAsyncTaskExecutor perTaskExecutor(String namePrefix) {
+        return new SimpleAsyncTaskExecutor(factory(namePrefix));
+    }
+}
@@ -5,7 +5,9 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 
+import com.example.messagingapp.codec.WireFormat;
 import com.example.messagingapp.handler.ChatWebSocketHandler;
 import com.example.messagingapp.interceptor.UserAuthHandshakeInterceptor;
 
@@ -25,7 +27,19 @@ public class WebSocketConfig implements WebSocketConfigurer {
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
         registry.addHandler(webSocketHandler, "/ws")
+                .setHandshakeHandler(handshakeHandler())
                 .addInterceptors(handshakeInterceptor)
                 .setAllowedOrigins("*");
     }
+
+    /**
+     * Accepts the wire format subprotocols; the first one the client lists that we support wins.
+     * Clients that request none get JSON text frames.
+     */
+    private DefaultHandshakeHandler handshakeHandler() {
+        DefaultHandshakeHandler handshakeHandler = new DefaultHandshakeHandler();
+        handshakeHandler.setSupportedProtocols(
+                WireFormat.CBOR.getSubprotocol(), WireFormat.JSON.getSubprotocol());
+        return handshakeHandler;
+    }
 }
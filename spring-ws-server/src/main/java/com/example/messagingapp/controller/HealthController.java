@@ -7,15 +7,19 @@ import java.util.Map;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.example.messagingapp.service.RoutingCache;
 import com.example.messagingapp.service.ServerProperties;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 
 @RestController
 public class HealthController {
 
     private final ServerProperties serverProperties;
+    private final RoutingCache routingCache;
 
-    public HealthController(ServerProperties serverProperties) {
+    public HealthController(ServerProperties serverProperties, RoutingCache routingCache) {
         this.serverProperties = serverProperties;
+        this.routingCache = routingCache;
     }
 
     @GetMapping("/health")
@@ -24,6 +28,14 @@ public class HealthController {
         status.put("status", "ok");
         status.put("serverId", serverProperties.getServerId());
         status.put("timestamp", System.currentTimeMillis());
+        
+        CacheStats routingStats = routingCache.stats();
+        status.put("routingCache", Map.of(
+            "size", routingCache.size(),
+            "hits", routingStats.hitCount(),
+            "misses", routingStats.missCount(),
+            "evictions", routingStats.evictionCount()
+        ));
         return status;
     }
 }
@@ -1,78 +1,156 @@
 package com.example.messagingapp.handler;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.history.MessageHistoryStore;
+import com.example.messagingapp.interceptor.HandshakeAdmission;
+import com.example.messagingapp.interceptor.UserAuthHandshakeInterceptor;
 import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.HistoryPage;
+import com.example.messagingapp.model.PresenceEvent;
 import com.example.messagingapp.model.WebRTCSignal;
 import com.example.messagingapp.service.MessageService;
+import com.example.messagingapp.service.OfflineInbox;
+import com.example.messagingapp.service.PresenceService;
 import com.example.messagingapp.service.RedisService;
 import com.example.messagingapp.service.ServerProperties;
+import com.example.messagingapp.service.SessionRegistry;
 import com.example.messagingapp.service.VideoCallService;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 @Component
-public class ChatWebSocketHandler extends TextWebSocketHandler {
+public class ChatWebSocketHandler extends AbstractWebSocketHandler {
 
-    // Store connected clients: sessionId -> WebSocketSession
-    private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
-    
-    // Store client-user mapping: sessionId -> userId
-    private final Map<String, String> sessionUserMap = new ConcurrentHashMap<>();
-    
-    // Store user-sessionId mapping for reverse lookups: userId -> Set<sessionId>
-    private final Map<String, Map<String, WebSocketSession>> userSessionsMap = new ConcurrentHashMap<>();
+    private static final List<String> WEBRTC_SIGNAL_TYPES = List.of(
+        "offer", "answer", "ice-candidate", "call-request", "call-response", "call-end");
+
+    private static final int MAX_MESSAGE_ID_LENGTH = 64;
+
+    private static final int MAX_ROOM_ID_LENGTH = 64;
+
+    // Room memberships of the sessions on this node
+    private final RoomSessions roomSessions = new RoomSessions();
 
     private final ServerProperties serverProperties;
+    private final SessionRegistry sessionRegistry;
     private final RedisService redisService;
     private final MessageService messageService;
     private final VideoCallService videoCallService;
-    private final ObjectMapper objectMapper;
+    private final PresenceService presenceService;
+    private final OutboundSessionFactory outboundSessionFactory;
+    private final SessionFanout sessionFanout;
+    private final InboundMessageRegistry inboundMessageRegistry;
+    private final MessageCodec messageCodec;
+    private final MessageHistoryStore messageHistoryStore;
+    private final OfflineInbox offlineInbox;
+    private final DeliveryTracker deliveryTracker;
+    private final DeliveryDispatcher deliveryDispatcher;
+    private final int inboxFrameSize;
+    private final int maxRoomsPerSession;
     
-    public ChatWebSocketHandler(ObjectMapper objectMapper, 
+    public ChatWebSocketHandler(MessageCodec messageCodec, 
                                MessageService messageService,
                                RedisService redisService,
                                ServerProperties serverProperties,
-                               VideoCallService videoCallService) {
-        this.objectMapper = objectMapper;
+                               VideoCallService videoCallService,
+                               PresenceService presenceService,
+                               SessionRegistry sessionRegistry,
+                               OutboundSessionFactory outboundSessionFactory,
+                               SessionFanout sessionFanout,
+                               InboundMessageRegistry inboundMessageRegistry,
+                               MessageHistoryStore messageHistoryStore,
+                               OfflineInbox offlineInbox,
+                               DeliveryTracker deliveryTracker,
+                               DeliveryDispatcher deliveryDispatcher,
+                               MessagingProperties messagingProperties,
+                               MeterRegistry meterRegistry) {
+        this.messageCodec = messageCodec;
         this.messageService = messageService;
         this.redisService = redisService;
         this.serverProperties = serverProperties;
         this.videoCallService = videoCallService;
+        this.presenceService = presenceService;
+        this.sessionRegistry = sessionRegistry;
+        this.outboundSessionFactory = outboundSessionFactory;
+        this.sessionFanout = sessionFanout;
+        this.inboundMessageRegistry = inboundMessageRegistry;
+        this.messageHistoryStore = messageHistoryStore;
+        this.offlineInbox = offlineInbox;
+        this.deliveryTracker = deliveryTracker;
+        this.deliveryDispatcher = deliveryDispatcher;
+        this.inboxFrameSize = Math.max(1, messagingProperties.getInbox().getFrameSize());
+        this.maxRoomsPerSession = messagingProperties.getRooms().getMaxPerSession();
+        
+        Gauge.builder("messaging.sessions", sessionRegistry, SessionRegistry::size)
+            .description("Open WebSocket sessions on this node")
+            .register(meterRegistry);
+        // Outbound backlog, read from the session queues when metrics are scraped
+        Gauge.builder("messaging.outbound.queue.depth", sessionRegistry, ChatWebSocketHandler::queuedFrames)
+            .description("Frames waiting in the outbound queues of all sessions")
+            .register(meterRegistry);
+        Gauge.builder("messaging.outbound.queue.max", sessionRegistry, ChatWebSocketHandler::deepestQueue)
+            .description("Frames waiting in the deepest outbound queue")
+            .register(meterRegistry);
+        Gauge.builder("messaging.rooms", roomSessions, RoomSessions::size)
+            .description("Rooms with at least one session on this node")
+            .register(meterRegistry);
+        
+        // Messages routed to this server skip Kafka but take the same delivery lane as consumed ones
+        messageService.bindLocalDelivery(message ->
+            deliveryDispatcher.submit(message, () -> deliver(message)).thenCompose(outcome -> outcome));
+        
+        // Client message types handled by this endpoint; anything else is a chat message
+        for (String type : WEBRTC_SIGNAL_TYPES) {
+            inboundMessageRegistry.register(type, WebRTCSignal.class, this::handleSignal);
+        }
+        inboundMessageRegistry.register("user-list", ChatMessage.class,
+            (request, session, userId) -> sendUserListPage(session, request));
+        inboundMessageRegistry.register("history-sync", ChatMessage.class, this::sendHistoryPage);
+        inboundMessageRegistry.register("room-join", ChatMessage.class, this::joinRoom);
+        inboundMessageRegistry.register("room-leave", ChatMessage.class, this::leaveRoom);
+        inboundMessageRegistry.registerFallback(ChatMessage.class, this::handleChatMessage);
     }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         String sessionId = session.getId();
         String userId = (String) session.getAttributes().get("userId");
+        // Held from the upgrade until the connection is registered
+        Object permit = session.getAttributes().remove(UserAuthHandshakeInterceptor.PERMIT_ATTRIBUTE);
         
         if (userId == null) {
+            releasePermit(permit);
             log.error("No userId found in session attributes");
             session.close(CloseStatus.POLICY_VIOLATION.withReason("Authentication required"));
             return;
         }
         
-        // Store session
-        sessions.put(sessionId, session);
-        sessionUserMap.put(sessionId, userId);
-        
-        // Add to user-session mapping
-        userSessionsMap.computeIfAbsent(userId, k -> new ConcurrentHashMap<>())
-                      .put(sessionId, session);
+        // Store session; all sends go through its bounded outbound queue
+        QueuedWebSocketSession outbound = outboundSessionFactory.decorate(session);
+        sessionRegistry.register(userId, outbound);
         
         log.info("Client connected: {}, User: {} to server: {}", sessionId, userId, serverProperties.getServerId());
         
@@ -86,120 +164,380 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
                 .timestamp(Instant.now())
                 .build();
                 
-        // Get connected users and add to message
-        redisService.getAllConnectedUsers().thenAccept(connectedUsers -> {
+        // Register the user in the presence index, then send the first page of connected users;
+        // the client pages through the rest. Once routed here, hand over what arrived while offline.
+        redisService.addUserSession(userId, serverProperties.getServerId())
+            .thenCompose(ignored -> redisService.getConnectedUsersPage("0"))
+            .thenAccept(page -> {
             try {
                 welcomeMessage.setAdditionalData(Map.of(
-                    "clients", sessions.size(),
-                    "connectedUsers", connectedUsers
+                    "clients", sessionRegistry.size(),
+                    "connectedUsers", page.getUsers(),
+                    "usersCursor", page.getCursor(),
+                    "presenceVersion", page.getVersion()
                 ));
-                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(welcomeMessage)));
-                
-                // Broadcast user joined notification
-                broadcastUserUpdate(userId, "joined");
+                send(outbound, welcomeMessage);
             } catch (IOException e) {
                 log.error("Error sending welcome message to user {}: {}", userId, e.getMessage());
             }
-        });
+        })
+            .thenCompose(ignored -> offlineInbox.drain(userId))
+            .thenAccept(pending -> deliverInbox(outbound, userId, pending))
+            .whenComplete((ignored, e) -> releasePermit(permit));
+    }
+
+    private static void releasePermit(Object permit) {
+        if (permit instanceof HandshakeAdmission.Permit handshakePermit) {
+            handshakePermit.release();
+        }
+    }
+
+    /**
+     * Sends the messages kept while a user was offline, many per frame. Messages that could not
+     * be handed to the session, because it already closed, go back to the inbox. The drain is
+     * only acknowledged after that, so a node stopping halfway leaves them pending.
+     */
+    private void deliverInbox(WebSocketSession session, String userId, List<ChatMessage> pending) {
+        for (ChatMessage message : pending) {
+            storeIfRemote(message);
+        }
+        for (int from = 0; from < pending.size(); from += inboxFrameSize) {
+            List<ChatMessage> batch = pending.subList(from, Math.min(from + inboxFrameSize, pending.size()));
+            ChatMessage frame = ChatMessage.builder()
+                .type("inbox")
+                .serverId(serverProperties.getServerId())
+                .timestamp(Instant.now())
+                .additionalData(Map.of(
+                    "messages", batch,
+                    "remaining", pending.size() - from - batch.size()))
+                .build();
+            try {
+                // The senders are told once the frame is on the wire
+                if (sessionFanout.send(List.of(session), sessionFanout.encode(frame),
+                        deliveryTracker.acknowledgeOnWrite(batch)) > 0) {
+                    continue;
+                }
+            } catch (IOException e) {
+                log.error("Error sending offline messages to user {}: {}", userId, e.getMessage());
+            }
+            
+            // Keep whatever was not handed over for the next connect
+            log.info("Returning {} offline messages to the inbox of user {}", pending.size() - from, userId);
+            offlineInbox.restore(userId, new ArrayList<>(pending.subList(from, pending.size())))
+                .thenRun(() -> offlineInbox.acknowledge(userId));
+            return;
+        }
+        offlineInbox.acknowledge(userId);
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
         String sessionId = session.getId();
-        String userId = sessionUserMap.get(sessionId);
+        SessionRegistry.Entry entry = sessionRegistry.get(sessionId);
         
-        if (userId == null) {
+        if (entry == null) {
             log.warn("Message received from unknown session: {}", sessionId);
             return;
         }
+        String userId = entry.userId();
+        WebSocketSession outbound = entry.session();
         
         try {
-            // First, try to parse as a WebRTC signal
-            try {
-                WebRTCSignal webRTCSignal = objectMapper.readValue(message.getPayload(), WebRTCSignal.class);
-                if (webRTCSignal.getType() != null && isValidWebRTCSignalType(webRTCSignal.getType())) {
-                    log.info("Received WebRTC signal from {} ({}): {}", userId, sessionId, webRTCSignal.getType());
-                    videoCallService.processSignal(webRTCSignal, userId, userSessionsMap);
-                    return;
-                }
-            } catch (JsonProcessingException e) {
-                // Not a WebRTC signal, continue with ChatMessage parsing
-            }
-            
-            // If not a WebRTC signal, treat as a normal chat message
-            ChatMessage chatMessage = objectMapper.readValue(message.getPayload(), ChatMessage.class);
-            log.info("Received message from {} ({}): {}", userId, sessionId, chatMessage);
-            
-            // Enrich message with metadata
-            chatMessage.setServerId(serverProperties.getServerId());
-            chatMessage.setClientId(sessionId);
-            chatMessage.setUserId(userId);
-            chatMessage.setTimestamp(Instant.now());
-            
-            // Process message based on recipient
-            if (chatMessage.getRecipientId() != null && !chatMessage.getRecipientId().isEmpty()) {
-                // Direct message
-                messageService.sendDirectMessage(chatMessage)
-                    .thenAccept(result -> {
-                        try {
-                            if (result) {
-                                // Notify sender of success
-                                ChatMessage confirmation = ChatMessage.builder()
-                                    .type("sent")
-                                    .recipientId(chatMessage.getRecipientId())
-                                    .timestamp(Instant.now())
-                                    .build();
-                                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(confirmation)));
-                            } else {
-                                // Notify sender of failure
-                                ChatMessage error = ChatMessage.builder()
-                                    .type("error")
-                                    .message("Error: Failed to send message")
-                                    .timestamp(Instant.now())
-                                    .build();
-                                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(error)));
-                            }
-                        } catch (IOException e) {
-                            log.error("Error sending confirmation to user {}: {}", userId, e.getMessage());
-                        }
-                    });
-            } else {
-                // Broadcast message to all clients
-                broadcast(chatMessage);
-            }
+            // Decode once and dispatch on the message type
+            inboundMessageRegistry.dispatch(message.getPayload(), outbound, userId);
         } catch (Exception e) {
             log.error("Error parsing message: {}", e.getMessage());
         }
     }
 
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        String sessionId = session.getId();
+        SessionRegistry.Entry entry = sessionRegistry.get(sessionId);
+        
+        if (entry == null) {
+            log.warn("Message received from unknown session: {}", sessionId);
+            return;
+        }
+        String userId = entry.userId();
+        WebSocketSession outbound = entry.session();
+        
+        // Binary frames are only meaningful on sessions that negotiated a binary subprotocol
+        WireFormat format = WireFormat.of(session);
+        if (format == WireFormat.JSON) {
+            log.warn("Binary frame received on text session {}, ignoring", sessionId);
+            return;
+        }
+        
+        try {
+            byte[] payload = new byte[message.getPayloadLength()];
+            message.getPayload().get(payload);
+            inboundMessageRegistry.dispatch(payload, format, outbound, userId);
+        } catch (Exception e) {
+            log.error("Error parsing message: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Routes a WebRTC signaling message to the video call service
+     */
+    private void handleSignal(WebRTCSignal webRTCSignal, WebSocketSession session, String userId) {
+        log.info("Received WebRTC signal from {} ({}): {}", userId, session.getId(), webRTCSignal.getType());
+        videoCallService.processSignal(webRTCSignal, userId);
+    }
+
+    /**
+     * Handles a chat message: a direct message goes through Kafka, a room message to the room's
+     * members here and on the other servers in the room, anything else is broadcast
+     */
+    private void handleChatMessage(ChatMessage chatMessage, WebSocketSession outbound, String userId) throws IOException {
+        String sessionId = outbound.getId();
+        log.info("Received message from {} ({}): {}", userId, sessionId, chatMessage);
+        
+        // Only a session that joined a room may post to it
+        if (chatMessage.getRoomId() != null) {
+            if (!roomSessions.isMember(chatMessage.getRoomId(), sessionId)) {
+                sendError(outbound, "Error: Not a member of room " + chatMessage.getRoomId());
+                return;
+            }
+            chatMessage.setRecipientId(null);
+        }
+        
+        // Enrich message with metadata
+        chatMessage.setServerId(serverProperties.getServerId());
+        chatMessage.setClientId(sessionId);
+        chatMessage.setUserId(userId);
+        chatMessage.setTimestamp(Instant.now());
+        // Clients may pick the id to match receipts to what they sent; anything unusable is replaced
+        if (chatMessage.getMessageId() == null || chatMessage.getMessageId().isBlank()
+                || chatMessage.getMessageId().length() > MAX_MESSAGE_ID_LENGTH) {
+            chatMessage.setMessageId(UUID.randomUUID().toString());
+        }
+        
+        // Number the message first so a recipient that is offline can catch up on reconnect; the
+        // write itself happens in the background, in sequence order
+        CompletableFuture<Boolean> stored = storeInHistory(chatMessage);
+        
+        // Process message based on recipient
+        if (chatMessage.getRoomId() != null) {
+            // Members here get it at once; every other server in the room gets a single record
+            deliverToRoom(chatMessage);
+            messageService.sendRoomMessage(chatMessage);
+        } else if (chatMessage.getRecipientId() != null && !chatMessage.getRecipientId().isEmpty()) {
+            // Direct message; a recipient on this server is written to before this returns
+            messageService.sendDirectMessage(chatMessage)
+                .thenAcceptBoth(stored, (sent, isStored) -> {
+                    try {
+                        if (sent) {
+                            // Notify sender once the broker, the recipient's sessions here or the
+                            // inbox hold the message. The history write is waited for too, but
+                            // only decides whether the sequence number is worth telling
+                            ChatMessage confirmation = ChatMessage.builder()
+                                .type("sent")
+                                .messageId(chatMessage.getMessageId())
+                                .recipientId(chatMessage.getRecipientId())
+                                .seq(isStored ? chatMessage.getSeq() : null)
+                                .timestamp(Instant.now())
+                                .build();
+                            send(outbound, confirmation);
+                        } else {
+                            // Notify sender of failure
+                            ChatMessage error = ChatMessage.builder()
+                                .type("error")
+                                .message("Error: Failed to send message")
+                                .timestamp(Instant.now())
+                                .build();
+                            send(outbound, error);
+                        }
+                    } catch (IOException e) {
+                        log.error("Error sending confirmation to user {}: {}", userId, e.getMessage());
+                    }
+                });
+        } else {
+            // Broadcast to local clients first, then hand off to the other nodes
+            broadcast(chatMessage);
+            messageService.publishBroadcast(chatMessage);
+        }
+    }
+
+    /**
+     * Appends a chat message to its conversation's history. Its sequence number is assigned
+     * before this returns; the write completes in the background.
+     *
+     * @return completes with false if the message could not be stored
+     */
+    private CompletableFuture<Boolean> storeInHistory(ChatMessage chatMessage) {
+        try {
+            return messageHistoryStore.appendAsync(MessageHistoryStore.conversationOf(chatMessage), chatMessage)
+                .handle((seq, e) -> {
+                    if (e != null) {
+                        log.error("Error storing message from {} in history: {}", chatMessage.getUserId(), e.getMessage());
+                        return false;
+                    }
+                    return true;
+                });
+        } catch (IOException e) {
+            log.error("Error storing message from {} in history: {}", chatMessage.getUserId(), e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Stores a chat message accepted by another node in this node's history too, numbered in
+     * this node's sequence, so the sessions here catch up on it from this node after a reconnect
+     */
+    private void storeIfRemote(ChatMessage message) {
+        if (!serverProperties.getServerId().equals(message.getServerId())) {
+            // The other node's number means nothing here
+            message.setSeq(null);
+            storeInHistory(message);
+        }
+    }
+
+    /**
+     * Sends the messages of one conversation that follow the last sequence number the client has
+     * seen. The conversation is the room given as roomId, the direct one with "peer", or the
+     * public one without either. The client asks again from the page's last message while the
+     * page has more. A room's history is only sent to a session that joined the room.
+     */
+    private void sendHistoryPage(ChatMessage request, WebSocketSession session, String userId) throws IOException {
+        if (request.getRoomId() != null && !roomSessions.isMember(request.getRoomId(), session.getId())) {
+            sendError(session, "Error: Not a member of room " + request.getRoomId());
+            return;
+        }
+        
+        Map<String, Object> params = request.getAdditionalData() != null ? request.getAdditionalData() : Map.of();
+        String peer = params.get("peer") != null ? params.get("peer").toString() : "";
+        String conversationId = request.getRoomId() != null
+            ? MessageHistoryStore.roomConversation(request.getRoomId())
+            : peer.isEmpty()
+            ? MessageHistoryStore.PUBLIC_CONVERSATION
+            : MessageHistoryStore.directConversation(userId, peer);
+        
+        HistoryPage page = messageHistoryStore.read(conversationId,
+            longParam(params.get("afterSeq"), 0), (int) longParam(params.get("limit"), Integer.MAX_VALUE));
+        
+        Map<String, Object> additionalData = new HashMap<>();
+        additionalData.put("peer", peer);
+        additionalData.put("messages", page.getMessages());
+        additionalData.put("lastSeq", page.getLastSeq());
+        additionalData.put("hasMore", page.isHasMore());
+        
+        ChatMessage response = ChatMessage.builder()
+            .type("history")
+            .roomId(request.getRoomId())
+            .serverId(serverProperties.getServerId())
+            .timestamp(Instant.now())
+            .additionalData(additionalData)
+            .build();
+        send(session, response);
+    }
+    
+    /**
+     * Adds the session to a room, and this server to the room's servers if it is the room's first
+     * session here. The client is answered with "room-joined" once messages sent to the room from
+     * any server will reach it.
+     */
+    private void joinRoom(ChatMessage request, WebSocketSession session, String userId) throws IOException {
+        String roomId = request.getRoomId();
+        if (roomId == null || roomId.isBlank() || roomId.length() > MAX_ROOM_ID_LENGTH) {
+            sendError(session, "Error: Invalid room");
+            return;
+        }
+        if (!roomSessions.isMember(roomId, session.getId())
+                && roomSessions.roomCount(session.getId()) >= maxRoomsPerSession) {
+            sendError(session, "Error: Cannot join more than " + maxRoomsPerSession + " rooms");
+            return;
+        }
+        
+        boolean first;
+        try {
+            first = roomSessions.join(roomId, session);
+        } catch (IllegalStateException e) {
+            log.debug("Not joining closed session {} to room {}", session.getId(), roomId);
+            return;
+        }
+        CompletableFuture<Boolean> indexed = first
+            ? redisService.addRoomServer(roomId, serverProperties.getServerId())
+            : CompletableFuture.completedFuture(false);
+        log.info("User {} ({}) joined room {}", userId, session.getId(), roomId);
+        indexed.thenRun(() -> sendRoomStatus(session, "room-joined", roomId));
+    }
+    
+    /**
+     * Removes the session from a room, and this server from the room's servers if it was the
+     * room's last session here
+     */
+    private void leaveRoom(ChatMessage request, WebSocketSession session, String userId) {
+        String roomId = request.getRoomId();
+        if (roomId == null) {
+            return;
+        }
+        if (roomSessions.leave(roomId, session.getId())) {
+            redisService.removeRoomServer(roomId, serverProperties.getServerId());
+        }
+        log.info("User {} ({}) left room {}", userId, session.getId(), roomId);
+        sendRoomStatus(session, "room-left", roomId);
+    }
+    
+    private void sendRoomStatus(WebSocketSession session, String type, String roomId) {
+        ChatMessage status = ChatMessage.builder()
+            .type(type)
+            .roomId(roomId)
+            .serverId(serverProperties.getServerId())
+            .timestamp(Instant.now())
+            .build();
+        try {
+            send(session, status);
+        } catch (IOException e) {
+            log.error("Error sending {} to session {}: {}", type, session.getId(), e.getMessage());
+        }
+    }
+    
+    private void sendError(WebSocketSession session, String text) throws IOException {
+        ChatMessage error = ChatMessage.builder()
+            .type("error")
+            .message(text)
+            .timestamp(Instant.now())
+            .build();
+        send(session, error);
+    }
+    
+    private static long longParam(Object value, long defaultValue) {
+        if (value instanceof Number number) {
+            return number.longValue();
+        }
+        try {
+            return value != null ? Long.parseLong(value.toString()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         String sessionId = session.getId();
-        String userId = sessionUserMap.get(sessionId);
+        SessionRegistry.Departure departure = sessionRegistry.unregister(sessionId);
         
-        if (userId != null) {
+        if (departure != null) {
+            String userId = departure.userId();
             log.info("Client disconnected: {} ({}) from server: {}", userId, sessionId, serverProperties.getServerId());
             
-            // Remove from mappings
-            sessions.remove(sessionId);
-            sessionUserMap.remove(sessionId);
+            // Leave the session's rooms; a room it was the last member of here no longer routes here
+            for (String roomId : roomSessions.leaveAll(sessionId)) {
+                redisService.removeRoomServer(roomId, serverProperties.getServerId());
+            }
             
-            if (userSessionsMap.containsKey(userId)) {
-                userSessionsMap.get(userId).remove(sessionId);
-                
-                // If this was the last session for this user on this server
-                if (userSessionsMap.get(userId).isEmpty()) {
-                    userSessionsMap.remove(userId);
-                    
-                    // Remove user-server mapping from Redis
-                    redisService.removeUserServer(userId).thenRun(() -> {
-                        log.info("Removed server mapping for user {}", userId);
-                        
-                        // Broadcast user left notification
-                        broadcastUserUpdate(userId, "left");
-                    });
+            // Every session counts towards the user's route here; the route and, with the user's
+            // last device, the presence entry go once the count drops to zero
+            redisService.removeUserSession(userId, serverProperties.getServerId()).thenAccept(version -> {
+                log.debug("Removed session {} of user {} from the routing index", sessionId, userId);
+                // Hang up any call the user was in so the peer is not left waiting, but only once
+                // the user has left the cluster; a device on another server may be in the call
+                if (version > 0) {
+                    videoCallService.endCallsFor(userId);
                 }
-            }
+            });
             
             // Broadcast status update
             broadcastStatus();
@@ -207,22 +545,38 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     }
 
     /**
-     * Broadcasts a message to all connected clients
+     * Closes sessions whose in-progress write has exceeded the send-time limit
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void checkSendTimeLimits() {
+        for (WebSocketSession session : sessionRegistry.sessions()) {
+            if (session instanceof QueuedWebSocketSession queued) {
+                queued.checkSendTimeLimit();
+            }
+        }
+    }
+
+    /**
+     * Broadcasts a message to all connected clients as one shared frame
      */
     private void broadcast(ChatMessage message) {
-        String jsonMessage;
         try {
-            jsonMessage = objectMapper.writeValueAsString(message);
-            for (WebSocketSession session : sessions.values()) {
-                if (session.isOpen()) {
-                    session.sendMessage(new TextMessage(jsonMessage));
-                }
-            }
+            sessionFanout.broadcast(sessionRegistry.sessions(), sessionFanout.encode(message));
         } catch (IOException e) {
             log.error("Error broadcasting message: {}", e.getMessage());
         }
     }
 
+    /**
+     * Sends a room message to the room's members on this node as one shared frame
+     */
+    private void deliverToRoom(ChatMessage message) throws IOException {
+        Collection<WebSocketSession> members = roomSessions.sessions(message.getRoomId());
+        if (!members.isEmpty()) {
+            sessionFanout.broadcast(members, sessionFanout.encode(message));
+        }
+    }
+
     /**
      * Broadcasts status update to all clients
      */
@@ -231,115 +585,178 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
             .type("status")
             .serverId(serverProperties.getServerId())
             .timestamp(Instant.now())
-            .additionalData(Map.of("clients", sessions.size()))
+            .additionalData(Map.of("clients", sessionRegistry.size()))
             .build();
             
         broadcast(statusMessage);
     }
 
     /**
-     * Broadcasts user update (join/leave) to all clients
+     * Broadcasts the presence changes collected during the last coalescing window
+     * as a single delta. Clients apply events in version order and request a fresh
+     * snapshot when they detect a gap.
      */
-    private void broadcastUserUpdate(String userId, String action) {
-        ChatMessage userUpdate = ChatMessage.builder()
-            .type("user-" + action)
-            .userId(userId)
+    @Scheduled(fixedDelayString = "${messaging.presence.coalesce-window-ms:100}")
+    public void flushPresenceDeltas() {
+        List<PresenceEvent> events = presenceService.drainPendingEvents();
+        if (events.isEmpty()) {
+            return;
+        }
+        
+        Map<String, Object> additionalData = new HashMap<>();
+        additionalData.put("events", events);
+        additionalData.put("version", events.get(events.size() - 1).getVersion());
+        
+        ChatMessage delta = ChatMessage.builder()
+            .type("presence-delta")
             .serverId(serverProperties.getServerId())
             .timestamp(Instant.now())
+            .additionalData(additionalData)
             .build();
-            
-        broadcast(userUpdate);
         
-        // Also update the user list
-        redisService.getAllConnectedUsers().thenAccept(users -> {
-            log.info("Broadcasting updated user list with {} users", users.size());
-            for (String user : users) {
-                log.info("Connected user: {}", user);
-            }
-            
-            // We can't use .users() directly since Lombok doesn't know about it yet
-            // Create a map with all the data we want to send
-            Map<String, Object> additionalData = new HashMap<>();
-            additionalData.put("users", users);
-            
-            ChatMessage userListUpdate = ChatMessage.builder()
+        log.debug("Broadcasting presence delta with {} events", events.size());
+        broadcast(delta);
+    }
+    
+    /**
+     * Sends one page of a presence snapshot to a single client
+     */
+    private void sendUserListPage(WebSocketSession session, ChatMessage request) {
+        Object requested = request.getAdditionalData() != null ? request.getAdditionalData().get("cursor") : null;
+        String cursor = requested != null ? requested.toString() : "0";
+        
+        redisService.getConnectedUsersPage(cursor).thenAccept(page -> {
+            // The first page of a snapshot carries the version the client resumes deltas from
+            ChatMessage userListPage = ChatMessage.builder()
                 .type("user-list")
                 .serverId(serverProperties.getServerId())
                 .timestamp(Instant.now())
-                .additionalData(additionalData)
+                .users(page.getUsers())
+                .additionalData(Map.of(
+                    "cursor", page.getCursor(),
+                    "page", true,
+                    "first", "0".equals(cursor),
+                    "version", page.getVersion()))
                 .build();
-                
-            // Manually set the users field
             try {
-                Field usersField = userListUpdate.getClass().getDeclaredField("users");
-                usersField.setAccessible(true);
-                usersField.set(userListUpdate, users);
-            } catch (Exception e) {
-                log.error("Error setting users field: {}", e.getMessage());
+                send(session, userListPage);
+            } catch (IOException e) {
+                log.error("Error sending user list page to session {}: {}", session.getId(), e.getMessage());
             }
-            
-            log.info("Broadcasting user list update: {}", userListUpdate);
-            broadcast(userListUpdate);
         });
     }
     
+    /**
+     * Sends a message to one session, encoded in the wire format that session negotiated
+     */
+    private void send(WebSocketSession session, Object message) throws IOException {
+        session.sendMessage(messageCodec.toFrame(message, WireFormat.of(session)));
+    }
+    
     /**
      * Delivers a message received from Kafka to the appropriate WebSocket clients
      * This method is called by the KafkaMessageHandler
      */
     public void deliverMessage(ChatMessage message) throws IOException {
+        deliver(message);
+    }
+    
+    /**
+     * Delivers a message to the sessions on this node, completing with whether it reached one of
+     * them or, for a direct message whose recipient has left, was routed on or kept for them
+     */
+    private CompletableFuture<Boolean> deliver(ChatMessage message) throws IOException {
         log.info("Delivering message from Kafka: {}", message);
         
+        if (DeliveryTracker.RECEIPT_TYPE.equals(message.getType())) {
+            deliverReceipt(message);
+            return CompletableFuture.completedFuture(true);
+        }
+        
+        if (message.getRoomId() != null) {
+            storeIfRemote(message);
+            deliverToRoom(message);
+            return CompletableFuture.completedFuture(true);
+        }
+        
         // If the message has a recipient, deliver it to both recipient and sender
         if (message.getRecipientId() != null && !message.getRecipientId().isEmpty()) {
-            String jsonMessage = objectMapper.writeValueAsString(message);
+            List<WebSocketSession> recipientSessions = sessionRegistry.sessionsOf(message.getRecipientId());
+            List<WebSocketSession> senderSessions = message.getUserId().equals(message.getRecipientId())
+                ? List.of()
+                : sessionRegistry.sessionsOf(message.getUserId());
+            if (!recipientSessions.isEmpty() || !senderSessions.isEmpty()) {
+                storeIfRemote(message);
+            }
+            
+            // One frame shared by every recipient and sender session
+            OutboundFrame frame = sessionFanout.encode(message);
             boolean delivered = false;
+            CompletableFuture<Boolean> outcome;
             
             // 1. Deliver to recipient
-            Map<String, WebSocketSession> recipientSessions = userSessionsMap.get(message.getRecipientId());
-            if (recipientSessions != null && !recipientSessions.isEmpty()) {
-                // Send to all sessions for this recipient
-                for (WebSocketSession session : recipientSessions.values()) {
-                    if (session.isOpen()) {
-                        session.sendMessage(new TextMessage(jsonMessage));
-                        delivered = true;
-                    }
-                }
+            if (!recipientSessions.isEmpty()) {
+                // Send to all sessions for this recipient; the first write is acknowledged to the sender
+                Runnable onWritten = message.getMessageId() != null ? deliveryTracker.startDelivery(message) : null;
+                delivered = sessionFanout.send(recipientSessions, frame, onWritten) > 0;
+                outcome = CompletableFuture.completedFuture(delivered);
                 log.info("Message delivered to recipient: {}", message.getRecipientId());
             } else {
+                // The recipient left after the message was routed here; route it again
                 log.warn("No connected sessions found for recipient: {}", message.getRecipientId());
+                outcome = messageService.redirectUndelivered(message);
             }
             
             // 2. Deliver to sender (so they see their own messages)
             // Only if the sender is different from the recipient
-            if (!message.getUserId().equals(message.getRecipientId())) {
-                Map<String, WebSocketSession> senderSessions = userSessionsMap.get(message.getUserId());
-                if (senderSessions != null && !senderSessions.isEmpty()) {
-                    // Send to all sessions for this sender
-                    for (WebSocketSession session : senderSessions.values()) {
-                        if (session.isOpen()) {
-                            session.sendMessage(new TextMessage(jsonMessage));
-                            delivered = true;
-                        }
-                    }
-                    log.info("Message delivered back to sender: {}", message.getUserId());
+            if (!senderSessions.isEmpty()) {
+                // Send to all sessions for this sender
+                if (sessionFanout.send(senderSessions, frame) > 0) {
+                    delivered = true;
                 }
+                log.info("Message delivered back to sender: {}", message.getUserId());
             }
             
             if (!delivered) {
                 log.warn("Message could not be delivered to any session");
             }
-        } else {
-            // If no recipient specified, broadcast to everyone
-            broadcast(message);
+            return outcome;
         }
+        
+        // If no recipient specified, broadcast to everyone
+        storeIfRemote(message);
+        broadcast(message);
+        return CompletableFuture.completedFuture(true);
     }
     
     /**
-     * Check if the signal type is a valid WebRTC signal
+     * Delivers a "delivered" receipt to the sessions of the user whose messages it acknowledges.
+     * Receipts are not redirected: one for a user who has left is dropped.
      */
-    private boolean isValidWebRTCSignalType(String type) {
-        return "offer".equals(type) || "answer".equals(type) || "ice-candidate".equals(type) || 
-               "call-request".equals(type) || "call-response".equals(type) || "call-end".equals(type);
+    private void deliverReceipt(ChatMessage receipt) throws IOException {
+        List<WebSocketSession> senderSessions = sessionRegistry.sessionsOf(receipt.getRecipientId());
+        if (!senderSessions.isEmpty()) {
+            sessionFanout.send(senderSessions, sessionFanout.encode(receipt));
+        }
+    }
+    
+    private static double queuedFrames(SessionRegistry sessionRegistry) {
+        long queued = 0;
+        for (WebSocketSession session : sessionRegistry.sessions()) {
+            if (session instanceof QueuedWebSocketSession outbound) {
+                queued += outbound.getQueueSize();
+            }
+        }
+        return queued;
+    }
+    
+    private static double deepestQueue(SessionRegistry sessionRegistry) {
+        int deepest = 0;
+        for (WebSocketSession session : sessionRegistry.sessions()) {
+            if (session instanceof QueuedWebSocketSession outbound) {
+                deepest = Math.max(deepest, outbound.getQueueSize());
+            }
+        }
+        return deepest;
     }
 }
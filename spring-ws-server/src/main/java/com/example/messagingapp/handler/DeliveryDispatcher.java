@@ -0,0 +1,130 @@
+package com.example.messagingapp.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.config.VirtualThreads;
+import com.example.messagingapp.model.ChatMessage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Delivers a batch of consumed messages on a pool of single-threaded lanes.
+ *
+ * Each message is assigned to a lane by its recipient, its room, or its sender for public
+ * messages, so one user's or one room's messages are always delivered in order while the rest
+ * proceed in parallel. {@link #dispatch} returns once the whole batch has been delivered, so the
+ * listener only commits offsets for messages that have been handed to their sessions. Records
+ * this server produces for itself skip Kafka and are {@link #submit submitted} to the same lanes,
+ * so they stay in order with the consumed ones.
+ * Each lane's backlog is exported as executor.* tagged name=deliveryLane-&lt;n&gt;.
+ */
+@Slf4j
+@Component
+public class DeliveryDispatcher implements DisposableBean {
+
+    /**
+     * Delivers one message to its local sessions
+     */
+    @FunctionalInterface
+    public interface Delivery {
+        void deliver(ChatMessage message) throws Exception;
+    }
+
+    private final ThreadPoolTaskExecutor[] lanes;
+
+    public DeliveryDispatcher(MessagingProperties messagingProperties, MeterRegistry meterRegistry) {
+        int workerThreads = Math.max(1, messagingProperties.getDelivery().getWorkerThreads());
+        this.lanes = new ThreadPoolTaskExecutor[workerThreads];
+        for (int i = 0; i < workerThreads; i++) {
+            ThreadPoolTaskExecutor lane = new ThreadPoolTaskExecutor();
+            lane.setCorePoolSize(1);
+            lane.setMaxPoolSize(1);
+            lane.setThreadNamePrefix("KafkaDelivery-" + i + "-");
+            if (messagingProperties.getThreads().isVirtual()) {
+                // Still one thread per lane, so per-user order holds
+                lane.setThreadFactory(VirtualThreads.factory("KafkaDelivery-" + i + "-"));
+            }
+            lane.initialize();
+            new ExecutorServiceMetrics(lane.getThreadPoolExecutor(), "deliveryLane-" + i, Tags.empty())
+                    .bindTo(meterRegistry);
+            lanes[i] = lane;
+        }
+    }
+
+    /**
+     * Delivers every message in the batch, preserving order per user, and waits for all lanes
+     */
+    public void dispatch(List<ChatMessage> messages, Delivery delivery) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        List<List<ChatMessage>> byLane = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            byLane.add(new ArrayList<>());
+        }
+        for (ChatMessage message : messages) {
+            byLane.get(laneFor(message)).add(message);
+        }
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (int i = 0; i < lanes.length; i++) {
+            List<ChatMessage> laneMessages = byLane.get(i);
+            if (!laneMessages.isEmpty()) {
+                pending.add(CompletableFuture.runAsync(() -> deliverAll(laneMessages, delivery), lanes[i]));
+            }
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * Runs the delivery of one message on its lane, behind whatever that lane already holds
+     *
+     * @return completes with what the delivery returned, or exceptionally if it failed
+     */
+    public <T> CompletableFuture<T> submit(ChatMessage message, Callable<T> delivery) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return delivery.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, lanes[laneFor(message)]);
+    }
+
+    private int laneFor(ChatMessage message) {
+        String key = message.getRecipientId() != null && !message.getRecipientId().isEmpty()
+                ? message.getRecipientId()
+                : message.getRoomId() != null ? message.getRoomId() : message.getUserId();
+        return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+    }
+
+    private void deliverAll(List<ChatMessage> messages, Delivery delivery) {
+        for (ChatMessage message : messages) {
+            try {
+                delivery.deliver(message);
+            } catch (Exception e) {
+                log.error("Error delivering message to client: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        for (ThreadPoolTaskExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
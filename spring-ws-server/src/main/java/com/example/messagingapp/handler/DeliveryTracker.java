@@ -0,0 +1,132 @@
+package com.example.messagingapp.handler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.service.DeliveryLatency;
+import com.example.messagingapp.service.DeliveryLatency.Hop;
+import com.example.messagingapp.service.MessageService;
+import com.example.messagingapp.service.ServerProperties;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Follows consumed direct messages to their recipient's socket.
+ *
+ * Records the latency of the hops on the recipient's node and, once a message has been written
+ * to one of the recipient's sessions, acknowledges it to the sender with a "delivered" receipt.
+ * Receipts for the same conversation are collected for the receipt window and sent as one.
+ */
+@Slf4j
+@Component
+public class DeliveryTracker {
+
+    public static final String RECEIPT_TYPE = "delivered";
+
+    private final MessageService messageService;
+    private final DeliveryLatency deliveryLatency;
+    private final TaskScheduler taskScheduler;
+    private final ServerProperties serverProperties;
+    private final long receiptWindowMs;
+
+    // Message ids waiting to be acknowledged, by sender and recipient
+    private final Map<Conversation, List<String>> pendingReceipts = new HashMap<>();
+
+    private record Conversation(String senderId, String recipientId) {
+    }
+
+    public DeliveryTracker(MessageService messageService,
+                           DeliveryLatency deliveryLatency,
+                           TaskScheduler taskScheduler,
+                           ServerProperties serverProperties,
+                           MessagingProperties messagingProperties) {
+        this.messageService = messageService;
+        this.deliveryLatency = deliveryLatency;
+        this.taskScheduler = taskScheduler;
+        this.serverProperties = serverProperties;
+        this.receiptWindowMs = messagingProperties.getDelivery().getReceiptWindowMs();
+    }
+
+    /**
+     * Starts tracking a consumed message that is about to be written to its recipient's sessions
+     *
+     * @return the callback to run after each write; only the first one counts
+     */
+    public Runnable startDelivery(ChatMessage message) {
+        long consumedAt = System.nanoTime();
+        deliveryLatency.recordSince(Hop.TRANSIT, message.getTimestamp());
+
+        AtomicBoolean written = new AtomicBoolean();
+        return () -> {
+            if (written.compareAndSet(false, true)) {
+                deliveryLatency.record(Hop.WRITE, Duration.ofNanos(System.nanoTime() - consumedAt));
+                deliveryLatency.recordSince(Hop.END_TO_END, message.getTimestamp());
+                queueReceipt(message);
+            }
+        };
+    }
+
+    /**
+     * Callback acknowledging messages that reach the recipient outside of Kafka, such as from the
+     * offline inbox, once they are written. Their latency is not recorded: they waited for the
+     * recipient to connect.
+     */
+    public Runnable acknowledgeOnWrite(List<ChatMessage> messages) {
+        AtomicBoolean written = new AtomicBoolean();
+        return () -> {
+            if (written.compareAndSet(false, true)) {
+                for (ChatMessage message : messages) {
+                    if (message.getMessageId() != null) {
+                        queueReceipt(message);
+                    }
+                }
+            }
+        };
+    }
+
+    private void queueReceipt(ChatMessage message) {
+        Conversation conversation = new Conversation(message.getUserId(), message.getRecipientId());
+        boolean first;
+        synchronized (pendingReceipts) {
+            List<String> messageIds = pendingReceipts.computeIfAbsent(conversation, key -> new ArrayList<>());
+            first = messageIds.isEmpty();
+            messageIds.add(message.getMessageId());
+        }
+
+        if (first) {
+            taskScheduler.schedule(() -> flushReceipts(conversation), Instant.now().plusMillis(receiptWindowMs));
+        }
+    }
+
+    private void flushReceipts(Conversation conversation) {
+        List<String> messageIds;
+        synchronized (pendingReceipts) {
+            messageIds = pendingReceipts.remove(conversation);
+        }
+        if (messageIds == null || messageIds.isEmpty()) {
+            return;
+        }
+
+        ChatMessage receipt = ChatMessage.builder()
+                .type(RECEIPT_TYPE)
+                .userId(conversation.recipientId())
+                .recipientId(conversation.senderId())
+                .serverId(serverProperties.getServerId())
+                .timestamp(Instant.now())
+                .additionalData(Map.of("messageIds", messageIds))
+                .build();
+        log.debug("Acknowledging {} message(s) from {} to {}", messageIds.size(),
+                conversation.senderId(), conversation.recipientId());
+        messageService.sendReceipt(receipt);
+    }
+}
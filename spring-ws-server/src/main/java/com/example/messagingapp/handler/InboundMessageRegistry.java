@@ -0,0 +1,211 @@
+package com.example.messagingapp.handler;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decodes inbound client frames and dispatches them by their "type" discriminator.
+ *
+ * Each frame is read in a single streaming pass: tokens are buffered only until the "type"
+ * field is found, then the buffered prefix and the rest of the stream are bound directly to
+ * the payload class registered for that type. Frames with a missing or unregistered type go
+ * to the fallback handler. Text frames are JSON; binary frames use the session's wire format.
+ *
+ * Decoding is timed per wire format as messaging.inbound.decode and handling per message type
+ * as messaging.inbound.handle, both tagged with their outcome.
+ */
+@Slf4j
+@Component
+public class InboundMessageRegistry {
+
+    private static final String TYPE_FIELD = "type";
+
+    // Type tag of frames handled by the fallback
+    private static final String FALLBACK_TYPE = "default";
+
+    /**
+     * Handles one decoded inbound message for the session that sent it
+     */
+    @FunctionalInterface
+    public interface Handler<T> {
+        void handle(T message, WebSocketSession session, String userId) throws Exception;
+    }
+
+    private record Registration<T>(Class<T> payloadType, Handler<T> handler, Timer handled, Timer failed) {
+    }
+
+    // A decoded frame and the registration that will handle it
+    private record Decoded<T>(Registration<T> registration, T message) {
+    }
+
+    private final MessageCodec messageCodec;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Registration<?>> registrations = new ConcurrentHashMap<>();
+    private final Map<WireFormat, Timer> decoded = new EnumMap<>(WireFormat.class);
+    private final Map<WireFormat, Timer> undecodable = new EnumMap<>(WireFormat.class);
+    private volatile Registration<?> fallback;
+
+    public InboundMessageRegistry(MessageCodec messageCodec, MeterRegistry meterRegistry) {
+        this.messageCodec = messageCodec;
+        this.meterRegistry = meterRegistry;
+        for (WireFormat format : WireFormat.values()) {
+            decoded.put(format, decodeTimer(format, "success"));
+            undecodable.put(format, decodeTimer(format, "error"));
+        }
+    }
+
+    /**
+     * Registers the payload class and handler for a message type, replacing any previous one
+     */
+    public <T> void register(String type, Class<T> payloadType, Handler<T> handler) {
+        registrations.put(type, registration(type, payloadType, handler));
+    }
+
+    /**
+     * Registers the handler for frames whose type is missing or not registered
+     */
+    public <T> void registerFallback(Class<T> payloadType, Handler<T> handler) {
+        fallback = registration(FALLBACK_TYPE, payloadType, handler);
+    }
+
+    public boolean isRegistered(String type) {
+        return type != null && registrations.containsKey(type);
+    }
+
+    /**
+     * Decodes a JSON text frame and invokes the handler registered for its type
+     */
+    public void dispatch(String payload, WebSocketSession session, String userId) throws Exception {
+        ObjectMapper mapper = messageCodec.mapper(WireFormat.JSON);
+        long start = System.nanoTime();
+        Decoded<?> message;
+        try (JsonParser parser = mapper.createParser(payload)) {
+            message = decode(mapper, parser);
+        } catch (IOException e) {
+            undecodable.get(WireFormat.JSON).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+        decoded.get(WireFormat.JSON).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        handle(message, session, userId);
+    }
+
+    /**
+     * Decodes a frame in the given wire format and invokes the handler registered for its type
+     */
+    public void dispatch(byte[] payload, WireFormat format, WebSocketSession session, String userId) throws Exception {
+        ObjectMapper mapper = messageCodec.mapper(format);
+        long start = System.nanoTime();
+        Decoded<?> message;
+        try (JsonParser parser = mapper.createParser(payload)) {
+            message = decode(mapper, parser);
+        } catch (IOException e) {
+            undecodable.get(format).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+        decoded.get(format).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        handle(message, session, userId);
+    }
+
+    /**
+     * Reads a frame into the payload class of its registration, or returns null if nothing handles it
+     */
+    private Decoded<?> decode(ObjectMapper mapper, JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Inbound frame is not an object");
+        }
+
+        // Buffer fields up to and including "type"; usually it is the first field
+        TokenBuffer prefix = new TokenBuffer(parser);
+        prefix.writeStartObject();
+        String type = null;
+        boolean complete = true;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            prefix.writeFieldName(field);
+            prefix.copyCurrentStructure(parser);
+            if (TYPE_FIELD.equals(field)) {
+                type = parser.getValueAsString();
+                complete = false;
+                break;
+            }
+        }
+        if (complete) {
+            prefix.writeEndObject();
+        }
+
+        Registration<?> registration = type != null ? registrations.get(type) : null;
+        if (registration == null) {
+            registration = fallback;
+        }
+        if (registration == null) {
+            log.warn("No handler registered for inbound message type: {}", type);
+            return null;
+        }
+
+        // Replay the buffered prefix, then continue with the remaining fields of the frame
+        JsonParser remainder = complete
+                ? prefix.asParser(parser)
+                : JsonParserSequence.createFlattened(false, prefix.asParser(parser), parser);
+        remainder.nextToken();
+        return read(mapper, registration, remainder);
+    }
+
+    private <T> Decoded<T> read(ObjectMapper mapper, Registration<T> registration, JsonParser parser) throws IOException {
+        return new Decoded<>(registration, mapper.readValue(parser, registration.payloadType()));
+    }
+
+    private <T> void handle(Decoded<T> message, WebSocketSession session, String userId) throws Exception {
+        if (message == null) {
+            return;
+        }
+        Registration<T> registration = message.registration();
+        long start = System.nanoTime();
+        try {
+            registration.handler().handle(message.message(), session, userId);
+        } catch (Exception e) {
+            registration.failed().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+        registration.handled().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private <T> Registration<T> registration(String type, Class<T> payloadType, Handler<T> handler) {
+        return new Registration<>(payloadType, handler, handleTimer(type, "success"), handleTimer(type, "error"));
+    }
+
+    private Timer decodeTimer(WireFormat format, String outcome) {
+        return Timer.builder("messaging.inbound.decode")
+                .description("Time to decode an inbound frame")
+                .tag("format", format.name().toLowerCase())
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    // Types are only ever those registered in code, so the tag stays bounded
+    private Timer handleTimer(String type, String outcome) {
+        return Timer.builder("messaging.inbound.handle")
+                .description("Time to handle a decoded inbound message")
+                .tag("type", type)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+}
@@ -1,43 +1,102 @@
 package com.example.messagingapp.handler;
 
-import org.springframework.beans.factory.annotation.Value;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 
 import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.service.MessageService;
+import com.example.messagingapp.service.ServerProperties;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Handler for Kafka messages received via Spring Cloud Stream
+ * Handler for Kafka messages received via Spring Cloud Stream.
+ *
+ * Each listener records the records per poll as messaging.kafka.consume.batch and the time to
+ * deliver a poll as messaging.kafka.consume, both tagged with the listener.
  */
 @Slf4j
 @Component
 public class KafkaMessageHandler {
 
     private final ChatWebSocketHandler webSocketHandler;
+    private final ServerProperties serverProperties;
+    private final DeliveryDispatcher deliveryDispatcher;
+    private final Timer directTimer;
+    private final Timer broadcastTimer;
+    private final DistributionSummary directBatches;
+    private final DistributionSummary broadcastBatches;
 
-    public KafkaMessageHandler(ChatWebSocketHandler webSocketHandler) {
+    public KafkaMessageHandler(ChatWebSocketHandler webSocketHandler,
+                               ServerProperties serverProperties,
+                               DeliveryDispatcher deliveryDispatcher,
+                               MeterRegistry meterRegistry) {
         this.webSocketHandler = webSocketHandler;
+        this.serverProperties = serverProperties;
+        this.deliveryDispatcher = deliveryDispatcher;
+        this.directTimer = consumeTimer("direct", meterRegistry);
+        this.broadcastTimer = consumeTimer("broadcast", meterRegistry);
+        this.directBatches = batchSummary("direct", meterRegistry);
+        this.broadcastBatches = batchSummary("broadcast", meterRegistry);
     }
 
-        @Value("${messaging.server.id}")
-    private String serverId;
+    /**
+     * Kafka batch listener for the server's topic. The records of one poll are delivered
+     * in parallel across users and in order for each user.
+     */
+    @KafkaListener(topics = "messages-${messaging.server.id}",
+                   groupId = "ws-server-group-${messaging.server.id}",
+                   concurrency = "${messaging.delivery.consumer-concurrency:1}")
+    public void handleMessages(List<ChatMessage> chatMessages) {
+        log.debug("Received {} messages from Kafka", chatMessages.size());
+        directBatches.record(chatMessages.size());
+        directTimer.record(() -> deliveryDispatcher.dispatch(chatMessages, webSocketHandler::deliverMessage));
+    }
 
     /**
-     * Kafka listener for processing messages from the server's topic
+     * Kafka batch listener for public messages published by any node. Every node consumes the
+     * shared topic with its own group, starting from the latest offset, and skips the
+     * records it produced itself since those were already delivered locally.
      */
-    @KafkaListener(topics = "messages-${messaging.server.id}", groupId = "ws-server-group-${messaging.server.id}")
-    public void handleMessage(ChatMessage chatMessage) {
-        log.info("Received message from Kafka: {}", chatMessage);
-        
-        // Handle the message by delivering it to the intended recipient via WebSocket
-        try {
-            webSocketHandler.deliverMessage(chatMessage);
-        } catch (IOException e) {
-            log.error("Error delivering message to client: {}", e.getMessage());
+    @KafkaListener(topics = "${messaging.broadcast.topic:messages-broadcast}",
+                   groupId = "ws-server-broadcast-${messaging.server.id}",
+                   concurrency = "${messaging.broadcast.consumer-concurrency:1}",
+                   properties = "auto.offset.reset=latest")
+    public void handleBroadcasts(List<ConsumerRecord<String, ChatMessage>> records) {
+        broadcastBatches.record(records.size());
+        long start = System.nanoTime();
+        List<ChatMessage> remote = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, ChatMessage> record : records) {
+            Header origin = record.headers().lastHeader(MessageService.ORIGIN_SERVER_HEADER);
+            if (origin == null || !serverProperties.getServerId().equals(new String(origin.value(), StandardCharsets.UTF_8))) {
+                remote.add(record.value());
+            }
         }
+        deliveryDispatcher.dispatch(remote, webSocketHandler::deliverMessage);
+        broadcastTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static Timer consumeTimer(String listener, MeterRegistry meterRegistry) {
+        return Timer.builder("messaging.kafka.consume")
+                .description("Time to deliver the records of one poll to local sessions")
+                .tag("listener", listener)
+                .register(meterRegistry);
+    }
+
+    private static DistributionSummary batchSummary(String listener, MeterRegistry meterRegistry) {
+        return DistributionSummary.builder("messaging.kafka.consume.batch")
+                .description("Records handed to the listener by one poll")
+                .tag("listener", listener)
+                .register(meterRegistry);
     }
 }
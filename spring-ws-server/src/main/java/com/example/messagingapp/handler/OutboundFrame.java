@@ -0,0 +1,52 @@
+package com.example.messagingapp.handler;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * One outgoing message, encoded at most once per {@link WireFormat} and shared by every
+ * session that negotiated that format. The JSON frame is encoded up front; other formats
+ * are encoded on first use.
+ */
+public final class OutboundFrame {
+
+    private final Object message;
+    private final MessageCodec codec;
+    private final AtomicReferenceArray<WebSocketMessage<?>> frames =
+            new AtomicReferenceArray<>(WireFormat.values().length);
+
+    private OutboundFrame(Object message, MessageCodec codec) {
+        this.message = message;
+        this.codec = codec;
+    }
+
+    public static OutboundFrame encode(Object message, MessageCodec codec) throws JsonProcessingException {
+        OutboundFrame frame = new OutboundFrame(message, codec);
+        frame.frames.set(WireFormat.JSON.ordinal(), codec.toFrame(message, WireFormat.JSON));
+        return frame;
+    }
+
+    public WebSocketMessage<?> forSession(WebSocketSession session) {
+        return forFormat(WireFormat.of(session));
+    }
+
+    public WebSocketMessage<?> forFormat(WireFormat format) {
+        WebSocketMessage<?> frame = frames.get(format.ordinal());
+        if (frame != null) {
+            return frame;
+        }
+        try {
+            frames.compareAndSet(format.ordinal(), null, codec.toFrame(message, format));
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+        return frames.get(format.ordinal());
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.messagingapp.handler;
+
+import java.util.concurrent.Executor;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.config.MessagingProperties;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Wraps accepted sessions in a {@link QueuedWebSocketSession} configured from messaging.outbound.*
+ */
+@Component
+public class OutboundSessionFactory {
+
+    private final MessagingProperties.Outbound outbound;
+    private final Executor outboundExecutor;
+    private final Counter droppedFrames;
+
+    public OutboundSessionFactory(MessagingProperties messagingProperties,
+                                  @Qualifier("outboundExecutor") Executor outboundExecutor,
+                                  MeterRegistry meterRegistry) {
+        this.outbound = messagingProperties.getOutbound();
+        this.outboundExecutor = outboundExecutor;
+        this.droppedFrames = Counter.builder("messaging.outbound.dropped")
+                .description("Frames dropped because a session's outbound buffer was full")
+                .register(meterRegistry);
+    }
+
+    public QueuedWebSocketSession decorate(WebSocketSession session) {
+        return new QueuedWebSocketSession(session, outboundExecutor, outbound.getBufferSizeLimit(),
+                outbound.getSendTimeLimit().toMillis(), outbound.getOverflowPolicy(), droppedFrames);
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.messagingapp.handler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import com.example.messagingapp.config.MessagingProperties.Outbound.OverflowPolicy;
+
+import io.micrometer.core.instrument.Counter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Session decorator that turns {@link #sendMessage} into a non-blocking enqueue.
+ *
+ * Frames are buffered in a bounded per-session queue and written by a shared executor,
+ * one drain task per session at a time, so sends on a session never run concurrently and a
+ * slow client only ever occupies its own drain task. When the buffer is full the configured
+ * {@link OverflowPolicy} applies; a write that exceeds the send-time limit closes the session.
+ */
+@Slf4j
+public class QueuedWebSocketSession extends WebSocketSessionDecorator {
+
+    // Frames written per drain task before yielding the thread to other sessions
+    private static final int DRAIN_BATCH = 64;
+
+    // A queued frame and what to run once it is on the wire
+    private record Pending(WebSocketMessage<?> frame, Runnable onWritten) {
+    }
+
+    private final Deque<Pending> queue = new ArrayDeque<>();
+    private final Executor executor;
+    private final int bufferSizeLimit;
+    private final long sendTimeLimitMs;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Counter droppedFrames;
+
+    // Guarded by this
+    private boolean draining;
+
+    private volatile long sendStartedAt;
+    private volatile boolean closing;
+
+    public QueuedWebSocketSession(WebSocketSession delegate, Executor executor,
+                                  int bufferSizeLimit, long sendTimeLimitMs, OverflowPolicy overflowPolicy,
+                                  Counter droppedFrames) {
+        super(delegate);
+        this.droppedFrames = droppedFrames;
+        this.executor = executor;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.sendTimeLimitMs = sendTimeLimitMs;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queues the frame for sending and returns immediately
+     */
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) {
+        sendMessage(message, null);
+    }
+
+    /**
+     * Queues the frame for sending and returns immediately. onWritten, if given, runs on the
+     * drain thread once the frame has been written to the socket; it does not run if the frame
+     * is dropped or the write fails.
+     */
+    public void sendMessage(WebSocketMessage<?> message, Runnable onWritten) {
+        if (closing) {
+            return;
+        }
+        checkSendTimeLimit();
+
+        boolean overflowed = false;
+        boolean schedule = false;
+        synchronized (this) {
+            if (queue.size() >= bufferSizeLimit) {
+                switch (overflowPolicy) {
+                    case DROP_OLDEST:
+                        queue.pollFirst();
+                        droppedCount.incrementAndGet();
+                        droppedFrames.increment();
+                        break;
+                    case DROP_NEWEST:
+                        droppedCount.incrementAndGet();
+                        droppedFrames.increment();
+                        return;
+                    case DISCONNECT:
+                    default:
+                        overflowed = true;
+                        break;
+                }
+            }
+            if (!overflowed) {
+                queue.addLast(new Pending(message, onWritten));
+                schedule = !draining;
+                draining = true;
+            }
+        }
+
+        if (overflowed) {
+            // Close outside the lock: the delegate may block while a write is in progress
+            log.warn("Outbound buffer limit {} exceeded for session {}, closing", bufferSizeLimit, getId());
+            closeQuietly(CloseStatus.SESSION_NOT_RELIABLE);
+        } else if (schedule) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Closes the session if the write currently in progress has exceeded the send-time limit
+     */
+    public void checkSendTimeLimit() {
+        long startedAt = sendStartedAt;
+        if (!closing && startedAt != 0 && System.currentTimeMillis() - startedAt > sendTimeLimitMs) {
+            log.warn("Send time limit {} ms exceeded for session {}, closing", sendTimeLimitMs, getId());
+            closeQuietly(CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public void close(CloseStatus status) throws IOException {
+        closing = true;
+        synchronized (this) {
+            queue.clear();
+        }
+        super.close(status);
+    }
+
+    private void drain() {
+        for (int sent = 0; sent < DRAIN_BATCH; sent++) {
+            Pending next;
+            synchronized (this) {
+                next = queue.pollFirst();
+                if (next == null || closing) {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                sendStartedAt = System.currentTimeMillis();
+                getDelegate().sendMessage(next.frame());
+            } catch (IOException | RuntimeException e) {
+                log.debug("Failed to send to session {}: {}", getId(), e.getMessage());
+                continue;
+            } finally {
+                sendStartedAt = 0;
+            }
+            if (next.onWritten() != null) {
+                runQuietly(next.onWritten());
+            }
+        }
+
+        // Yield to other sessions; reschedule if there is still work queued
+        synchronized (this) {
+            if (queue.isEmpty() || closing) {
+                draining = false;
+                return;
+            }
+        }
+        executor.execute(this::drain);
+    }
+
+    private void runQuietly(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            log.warn("Write callback failed for session {}: {}", getId(), e.getMessage());
+        }
+    }
+
+    private void closeQuietly(CloseStatus status) {
+        try {
+            close(status);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Error closing session {}: {}", getId(), e.getMessage());
+        }
+    }
+}
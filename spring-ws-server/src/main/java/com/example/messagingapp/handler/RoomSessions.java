@@ -0,0 +1,145 @@
+package com.example.messagingapp.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * This node's room memberships: the sessions in each room, and the rooms of each session.
+ *
+ * Joins and leaves are atomic per room, so exactly one caller learns that a room gained its
+ * first session here or lost its last one; only those transitions need to reach the cluster
+ * index in Redis. A session's own joins and leaves also hold the lock of its set of rooms, so
+ * {@link #leaveAll} sees every room the session entered, and a closed session cannot join.
+ */
+class RoomSessions {
+
+    // roomId -> sessionId -> session
+    private final Map<String, Map<String, WebSocketSession>> members = new ConcurrentHashMap<>();
+
+    // sessionId -> rooms the session is in, locked while the session joins or leaves
+    private final Map<String, Set<String>> joined = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a session to a room
+     *
+     * @return true if it is the room's first session on this node
+     * @throws IllegalStateException if the session is closed
+     */
+    boolean join(String roomId, WebSocketSession session) {
+        String sessionId = session.getId();
+        while (true) {
+            Set<String> rooms = joined.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet());
+            synchronized (rooms) {
+                if (joined.get(sessionId) != rooms) {
+                    // Left all its rooms meanwhile; look again
+                    continue;
+                }
+                if (!session.isOpen()) {
+                    if (rooms.isEmpty()) {
+                        joined.remove(sessionId, rooms);
+                    }
+                    throw new IllegalStateException("Session " + sessionId + " is closed");
+                }
+                rooms.add(roomId);
+                return addMember(roomId, session);
+            }
+        }
+    }
+
+    private boolean addMember(String roomId, WebSocketSession session) {
+        boolean[] first = new boolean[1];
+        members.compute(roomId, (id, sessions) -> {
+            if (sessions == null) {
+                sessions = new ConcurrentHashMap<>();
+                first[0] = true;
+            }
+            sessions.put(session.getId(), session);
+            return sessions;
+        });
+        return first[0];
+    }
+
+    /**
+     * Removes a session from a room
+     *
+     * @return true if it was the room's last session on this node
+     */
+    boolean leave(String roomId, String sessionId) {
+        Set<String> rooms = joined.get(sessionId);
+        if (rooms == null) {
+            return false;
+        }
+        synchronized (rooms) {
+            return rooms.remove(roomId) && removeMember(roomId, sessionId);
+        }
+    }
+
+    /**
+     * Removes a closed session from all of its rooms
+     *
+     * @return the rooms it was the last session of on this node
+     */
+    List<String> leaveAll(String sessionId) {
+        Set<String> rooms = joined.get(sessionId);
+        if (rooms == null) {
+            return List.of();
+        }
+        List<String> emptied = new ArrayList<>();
+        synchronized (rooms) {
+            joined.remove(sessionId, rooms);
+            for (String roomId : rooms) {
+                if (removeMember(roomId, sessionId)) {
+                    emptied.add(roomId);
+                }
+            }
+            rooms.clear();
+        }
+        return emptied;
+    }
+
+    private boolean removeMember(String roomId, String sessionId) {
+        boolean[] last = new boolean[1];
+        members.computeIfPresent(roomId, (id, sessions) -> {
+            if (sessions.remove(sessionId) != null && sessions.isEmpty()) {
+                last[0] = true;
+                return null;
+            }
+            return sessions;
+        });
+        return last[0];
+    }
+
+    /**
+     * The sessions in a room on this node
+     */
+    Collection<WebSocketSession> sessions(String roomId) {
+        Map<String, WebSocketSession> sessions = members.get(roomId);
+        return sessions != null ? sessions.values() : List.of();
+    }
+
+    boolean isMember(String roomId, String sessionId) {
+        Map<String, WebSocketSession> sessions = members.get(roomId);
+        return sessions != null && sessions.containsKey(sessionId);
+    }
+
+    /**
+     * The number of rooms a session is in
+     */
+    int roomCount(String sessionId) {
+        Set<String> rooms = joined.get(sessionId);
+        return rooms != null ? rooms.size() : 0;
+    }
+
+    /**
+     * The number of rooms with at least one session on this node
+     */
+    int size() {
+        return members.size();
+    }
+}
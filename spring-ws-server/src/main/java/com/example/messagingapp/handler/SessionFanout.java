@@ -0,0 +1,128 @@
+package com.example.messagingapp.handler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.config.MessagingProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fans a single pre-encoded frame out to many sessions.
+ *
+ * A message is serialized once per wire format into an {@link OutboundFrame} whose frames
+ * every recipient session shares. Fan-outs larger than the shard size are split into shards
+ * enqueued in parallel on the fanout executor, with the calling thread taking the first shard.
+ */
+@Slf4j
+@Component
+public class SessionFanout {
+
+    private final MessageCodec messageCodec;
+    private final Executor fanoutExecutor;
+    private final int shardSize;
+    private final Timer fanoutTimer;
+    private final DistributionSummary fanoutRecipients;
+
+    public SessionFanout(MessageCodec messageCodec,
+                         MessagingProperties messagingProperties,
+                         @Qualifier("fanoutExecutor") Executor fanoutExecutor,
+                         MeterRegistry meterRegistry) {
+        this.messageCodec = messageCodec;
+        this.fanoutExecutor = fanoutExecutor;
+        this.shardSize = Math.max(1, messagingProperties.getFanout().getShardSize());
+        this.fanoutTimer = Timer.builder("messaging.fanout.duration")
+                .description("Time to hand one broadcast frame to every local session")
+                .register(meterRegistry);
+        this.fanoutRecipients = DistributionSummary.builder("messaging.fanout.recipients")
+                .description("Sessions reached by one broadcast")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Serializes a message once into a frame that can be shared by any number of sessions
+     */
+    public OutboundFrame encode(Object message) throws JsonProcessingException {
+        return OutboundFrame.encode(message, messageCodec);
+    }
+
+    /**
+     * Sends the frame to every open session, sharding large fan-outs, and records the fan-out time
+     *
+     * @return the number of sessions the frame was handed to
+     */
+    public int broadcast(Collection<? extends WebSocketSession> sessions, OutboundFrame frame) {
+        long start = System.nanoTime();
+        int sent = sessions.size() > shardSize
+                ? sendSharded(new ArrayList<>(sessions), frame)
+                : send(sessions, frame);
+        fanoutTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        fanoutRecipients.record(sent);
+        return sent;
+    }
+
+    /**
+     * Sends the frame to every open session on the calling thread
+     *
+     * @return the number of sessions the frame was handed to
+     */
+    public int send(Collection<? extends WebSocketSession> sessions, OutboundFrame frame) {
+        return send(sessions, frame, null);
+    }
+
+    /**
+     * Sends the frame to every open session on the calling thread, running onWritten after each
+     * write that reaches a socket
+     *
+     * @return the number of sessions the frame was handed to
+     */
+    public int send(Collection<? extends WebSocketSession> sessions, OutboundFrame frame, Runnable onWritten) {
+        int sent = 0;
+        for (WebSocketSession session : sessions) {
+            if (session.isOpen()) {
+                try {
+                    if (session instanceof QueuedWebSocketSession queued) {
+                        queued.sendMessage(frame.forSession(session), onWritten);
+                    } else {
+                        session.sendMessage(frame.forSession(session));
+                        if (onWritten != null) {
+                            onWritten.run();
+                        }
+                    }
+                    sent++;
+                } catch (IOException | RuntimeException e) {
+                    log.debug("Failed to send to session {}: {}", session.getId(), e.getMessage());
+                }
+            }
+        }
+        return sent;
+    }
+
+    private int sendSharded(List<WebSocketSession> targets, OutboundFrame frame) {
+        List<CompletableFuture<Integer>> shards = new ArrayList<>();
+        for (int from = shardSize; from < targets.size(); from += shardSize) {
+            List<WebSocketSession> shard = targets.subList(from, Math.min(from + shardSize, targets.size()));
+            shards.add(CompletableFuture.supplyAsync(() -> send(shard, frame), fanoutExecutor));
+        }
+
+        int sent = send(targets.subList(0, shardSize), frame);
+        for (CompletableFuture<Integer> shard : shards) {
+            sent += shard.join();
+        }
+        return sent;
+    }
+}
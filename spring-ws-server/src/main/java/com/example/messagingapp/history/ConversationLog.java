@@ -0,0 +1,164 @@
+package com.example.messagingapp.history;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.HistoryPage;
+
+/**
+ * The log of one conversation: a directory of segments named after their base sequence.
+ *
+ * An append takes the next sequence number at once and hands the write to the conversation's
+ * writer lane, which runs writes in the order their numbers were taken, so the file stays in
+ * sequence order whoever waits for the write. Writes always go to the last segment, which is sealed and
+ * replaced once it outgrows the segment size. Reads take no lock: they only look at records up
+ * to the last sequence number published by a completed write. A failed write leaves a gap in
+ * the sequence.
+ */
+final class ConversationLog {
+
+    private final String conversationId;
+    private final Path directory;
+    private final MessageCodec messageCodec;
+    private final MessagingProperties.History properties;
+
+    // Segments by base sequence; the last entry is the one being appended to
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+
+    private volatile long lastSeq;
+    private long lastAppendMillis;
+
+    // Last sequence number handed out; writes are queued while holding this lock
+    private final Object sequenceLock = new Object();
+    private long assignedSeq;
+
+    private ConversationLog(String conversationId, Path directory, MessageCodec messageCodec,
+                            MessagingProperties.History properties) {
+        this.conversationId = conversationId;
+        this.directory = directory;
+        this.messageCodec = messageCodec;
+        this.properties = properties;
+    }
+
+    /**
+     * Opens the log stored in a directory, which may not exist yet
+     */
+    static ConversationLog open(String conversationId, Path directory, MessageCodec messageCodec,
+                                MessagingProperties.History properties) throws IOException {
+        ConversationLog conversationLog = new ConversationLog(conversationId, directory, messageCodec, properties);
+        if (!Files.isDirectory(directory)) {
+            return conversationLog;
+        }
+
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(LogSegment::isSegmentFile).sorted().toList();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            LogSegment segment = LogSegment.open(files.get(i), properties.getIndexIntervalBytes(), i == files.size() - 1);
+            conversationLog.segments.put(segment.baseSeq(), segment);
+        }
+        if (!conversationLog.segments.isEmpty()) {
+            conversationLog.lastSeq = conversationLog.segments.lastEntry().getValue().lastSeq();
+        }
+        conversationLog.assignedSeq = conversationLog.lastSeq;
+        return conversationLog;
+    }
+
+    /**
+     * Sets the message's sequence number and queues it on the writer. If the writer is full the
+     * number is handed back, so the next message takes it and no gap is left.
+     *
+     * @return completes with the sequence number once the message is written, or exceptionally
+     *         if it was not
+     */
+    CompletableFuture<Long> appendAsync(ChatMessage message, Executor writer) {
+        synchronized (sequenceLock) {
+            long seq = assignedSeq + 1;
+            message.setSeq(seq);
+            CompletableFuture<Long> written;
+            try {
+                written = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return write(seq, message);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, writer);
+            } catch (RejectedExecutionException e) {
+                message.setSeq(null);
+                return CompletableFuture.failedFuture(new IOException("History of " + conversationId + " is backed up", e));
+            }
+            assignedSeq = seq;
+            return written;
+        }
+    }
+
+    private synchronized long write(long seq, ChatMessage message) throws IOException {
+        Map.Entry<Long, LogSegment> last = segments.lastEntry();
+        LogSegment active = last != null ? last.getValue() : null;
+        if (active == null || active.size() >= properties.getSegmentBytes()) {
+            if (active != null) {
+                active.close();
+            }
+            Files.createDirectories(directory);
+            active = LogSegment.create(directory, seq, properties.getIndexIntervalBytes());
+            segments.put(seq, active);
+        }
+
+        active.append(seq, messageCodec.encode(message, WireFormat.CBOR), properties.isFsync());
+
+        lastSeq = seq;
+        lastAppendMillis = System.currentTimeMillis();
+        return seq;
+    }
+
+    HistoryPage read(long afterSeq, int limit) throws IOException {
+        long maxSeq = lastSeq;
+        List<ChatMessage> messages = new ArrayList<>();
+
+        if (afterSeq < maxSeq && !segments.isEmpty()) {
+            Long start = segments.floorKey(afterSeq + 1);
+            for (LogSegment segment : segments.tailMap(start != null ? start : segments.firstKey(), true).values()) {
+                segment.read(afterSeq, maxSeq, limit, messageCodec, messages);
+                if (messages.size() >= limit) {
+                    break;
+                }
+            }
+        }
+
+        boolean hasMore = !messages.isEmpty() && messages.get(messages.size() - 1).getSeq() < maxSeq;
+        return new HistoryPage(conversationId, messages, maxSeq, hasMore);
+    }
+
+    /**
+     * Closes the segment file if nothing has been appended for the given time
+     */
+    synchronized void closeIfIdle(long idleMillis) throws IOException {
+        Map.Entry<Long, LogSegment> last = segments.lastEntry();
+        if (last != null && last.getValue().isOpen() && System.currentTimeMillis() - lastAppendMillis >= idleMillis) {
+            last.getValue().close();
+        }
+    }
+
+    synchronized void close() throws IOException {
+        Map.Entry<Long, LogSegment> last = segments.lastEntry();
+        if (last != null) {
+            last.getValue().close();
+        }
+    }
+}
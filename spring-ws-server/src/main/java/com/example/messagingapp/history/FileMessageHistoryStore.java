@@ -0,0 +1,148 @@
+package com.example.messagingapp.history;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.HistoryPage;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Message history kept in local files, one directory of append-only segments per conversation.
+ *
+ * Appends are sequential writes to the end of the conversation's active segment, made on the
+ * conversation's writer lane in the order the messages were numbered. A read seeks
+ * through the segment's sparse index to the nearest record at or before the requested sequence
+ * and scans forward, so catching up on a gap is sequential I/O. History is local to the node:
+ * it holds every message sent or delivered to a session here, numbered in this node's sequence,
+ * and nothing outside this directory is needed.
+ */
+@Slf4j
+@Component
+public class FileMessageHistoryStore implements MessageHistoryStore, DisposableBean {
+
+    private final MessageCodec messageCodec;
+    private final MessagingProperties.History properties;
+    private final HistoryWriterLanes writerLanes;
+    private final Path root;
+
+    // Every conversation touched since startup; only recently appended ones hold an open file
+    private final Map<String, ConversationLog> logs = new ConcurrentHashMap<>();
+
+    public FileMessageHistoryStore(MessageCodec messageCodec,
+                                   MessagingProperties messagingProperties,
+                                   HistoryWriterLanes writerLanes) throws IOException {
+        this.messageCodec = messageCodec;
+        this.properties = messagingProperties.getHistory();
+        this.writerLanes = writerLanes;
+        this.root = Paths.get(properties.getDirectory()).toAbsolutePath();
+        Files.createDirectories(root);
+        log.info("Storing message history in {}", root);
+    }
+
+    @Override
+    public long append(String conversationId, ChatMessage message) throws IOException {
+        try {
+            return appendAsync(conversationId, message).join();
+        } catch (CompletionException e) {
+            message.setSeq(null);
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> appendAsync(String conversationId, ChatMessage message) throws IOException {
+        return conversationLog(conversationId, true).appendAsync(message, writerLanes.laneFor(conversationId));
+    }
+
+    /**
+     * Reads the messages after afterSeq; a page never holds more than the configured page size
+     */
+    @Override
+    public HistoryPage read(String conversationId, long afterSeq, int limit) throws IOException {
+        ConversationLog conversationLog = conversationLog(conversationId, false);
+        if (conversationLog == null) {
+            return new HistoryPage(conversationId, List.of(), 0, false);
+        }
+        return conversationLog.read(afterSeq, Math.max(1, Math.min(limit, properties.getPageSize())));
+    }
+
+    /**
+     * Closes the files of conversations that have gone quiet, keeping open files bounded
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public void closeIdleLogs() {
+        long idleMillis = properties.getIdleTimeout().toMillis();
+        logs.forEach((conversationId, conversationLog) -> {
+            try {
+                conversationLog.closeIfIdle(idleMillis);
+            } catch (IOException e) {
+                log.warn("Error closing history of conversation {}: {}", conversationId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Waits for the writes already queued, then closes every open segment
+     */
+    @Override
+    public void destroy() {
+        writerLanes.drain(Duration.ofSeconds(10));
+        logs.forEach((conversationId, conversationLog) -> {
+            try {
+                conversationLog.close();
+            } catch (IOException e) {
+                log.warn("Error closing history of conversation {}: {}", conversationId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * The log of a conversation, or null if it has none and create is false
+     */
+    private ConversationLog conversationLog(String conversationId, boolean create) throws IOException {
+        ConversationLog existing = logs.get(conversationId);
+        if (existing != null) {
+            return existing;
+        }
+
+        Path directory = root.resolve(directoryName(conversationId));
+        if (!create && !Files.isDirectory(directory)) {
+            return null;
+        }
+        try {
+            return logs.computeIfAbsent(conversationId, id -> {
+                try {
+                    return ConversationLog.open(id, directory, messageCodec, properties);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Conversation ids contain user ids, so they are encoded into a safe file name
+    private static String directoryName(String conversationId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(conversationId.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.messagingapp.history;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import com.example.messagingapp.config.MessagingProperties;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The threads that write message history: a pool of single-threaded lanes, each with a bounded
+ * queue.
+ *
+ * A conversation always writes on the same lane, picked by its id, so its writes stay in sequence
+ * order while a busy conversation only holds up the others sharing its lane. A write offered to
+ * a full lane is rejected at once instead of queueing without bound; rejections are counted as
+ * messaging.executor.rejected tagged name=historyWriter. Each lane's backlog is exported as
+ * executor.* tagged name=historyLane-&lt;n&gt;.
+ */
+@Slf4j
+@Component
+public class HistoryWriterLanes implements DisposableBean {
+
+    private final ThreadPoolTaskExecutor[] lanes;
+
+    public HistoryWriterLanes(MessagingProperties messagingProperties, MeterRegistry meterRegistry) {
+        MessagingProperties.History history = messagingProperties.getHistory();
+        int writerThreads = Math.max(1, history.getWriterThreads());
+        Counter rejected = Counter.builder("messaging.executor.rejected")
+                .description("Tasks rejected by a saturated executor")
+                .tag("name", "historyWriter")
+                .register(meterRegistry);
+
+        this.lanes = new ThreadPoolTaskExecutor[writerThreads];
+        for (int i = 0; i < writerThreads; i++) {
+            ThreadPoolTaskExecutor lane = new ThreadPoolTaskExecutor();
+            lane.setCorePoolSize(1);
+            lane.setMaxPoolSize(1);
+            lane.setQueueCapacity(Math.max(1, history.getWriterQueueCapacity()));
+            lane.setThreadNamePrefix("HistoryWriter-" + i + "-");
+            lane.setRejectedExecutionHandler((task, pool) -> {
+                rejected.increment();
+                throw new RejectedExecutionException("History writer queue is full");
+            });
+            lane.initialize();
+            new ExecutorServiceMetrics(lane.getThreadPoolExecutor(), "historyLane-" + i, Tags.empty())
+                    .bindTo(meterRegistry);
+            lanes[i] = lane;
+        }
+    }
+
+    /**
+     * The lane that writes a conversation
+     */
+    public Executor laneFor(String conversationId) {
+        return lanes[Math.floorMod(conversationId.hashCode(), lanes.length)];
+    }
+
+    /**
+     * Waits for the writes queued so far on every lane
+     */
+    void drain(Duration timeout) {
+        CompletableFuture<?>[] markers = new CompletableFuture<?>[lanes.length];
+        try {
+            for (int i = 0; i < lanes.length; i++) {
+                markers[i] = CompletableFuture.runAsync(() -> { }, lanes[i]);
+            }
+            CompletableFuture.allOf(markers).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            log.warn("Closing history with writes still queued: {}", e.toString());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        for (ThreadPoolTaskExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
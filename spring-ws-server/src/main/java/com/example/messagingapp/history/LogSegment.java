@@ -0,0 +1,288 @@
+package com.example.messagingapp.history;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.model.ChatMessage;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One append-only file of a conversation's log, holding the records from its base sequence on.
+ *
+ * A record is a 16 byte header (payload length, CRC32 of the payload, sequence number) followed
+ * by the CBOR encoded message. The sparse index maps one record every indexIntervalBytes to its
+ * file position, so a read seeks to the nearest indexed record at or before its start and scans
+ * forward from there. The index is kept in memory and written beside the segment when the
+ * segment is closed; the segment being appended to is always rebuilt by scanning it on startup,
+ * which also drops a partially written last record.
+ */
+@Slf4j
+final class LogSegment {
+
+    static final int HEADER_BYTES = 16;
+
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final long baseSeq;
+    private final Path logPath;
+    private final Path indexPath;
+    private final int indexIntervalBytes;
+
+    // Sparse index: indexSeqs[i] starts at indexPositions[i]. Guarded by this
+    private long[] indexSeqs = new long[16];
+    private long[] indexPositions = new long[16];
+    private int indexSize;
+
+    // Bytes of complete records; readers never look past it
+    private volatile long size;
+    private long lastSeq;
+
+    // Open only while the segment is being appended to; guarded by the owning log
+    private FileChannel channel;
+
+    private LogSegment(Path directory, long baseSeq, int indexIntervalBytes) {
+        this.baseSeq = baseSeq;
+        this.logPath = directory.resolve(String.format("%020d.log", baseSeq));
+        this.indexPath = directory.resolve(String.format("%020d.idx", baseSeq));
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.lastSeq = baseSeq - 1;
+    }
+
+    /**
+     * Starts a new, empty segment whose first record will be baseSeq
+     */
+    static LogSegment create(Path directory, long baseSeq, int indexIntervalBytes) {
+        return new LogSegment(directory, baseSeq, indexIntervalBytes);
+    }
+
+    /**
+     * Opens an existing segment file. A sealed segment loads its index file; the active one, or a
+     * sealed one whose index is missing or unreadable, is scanned to rebuild it.
+     */
+    static LogSegment open(Path logPath, int indexIntervalBytes, boolean active) throws IOException {
+        String name = logPath.getFileName().toString();
+        long baseSeq = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        LogSegment segment = new LogSegment(logPath.getParent(), baseSeq, indexIntervalBytes);
+
+        if (!active && segment.loadIndex()) {
+            segment.size = Files.size(logPath);
+            return segment;
+        }
+        segment.recover();
+        if (!active) {
+            segment.writeIndex();
+        }
+        return segment;
+    }
+
+    static boolean isSegmentFile(Path path) {
+        return path.getFileName().toString().endsWith(".log");
+    }
+
+    long baseSeq() {
+        return baseSeq;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Writes one record at the end of the segment
+     */
+    void append(long seq, byte[] payload, boolean fsync) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .putLong(seq)
+                .put(payload)
+                .flip();
+
+        long position = size;
+        try {
+            channel.position(position);
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // Leave no partial record behind for the next append to follow
+            channel.truncate(position);
+            throw e;
+        }
+        indexRecord(seq, position, HEADER_BYTES + payload.length);
+    }
+
+    /**
+     * Adds the messages after afterSeq to out, in order, stopping past maxSeq or once out holds
+     * limit messages
+     */
+    void read(long afterSeq, long maxSeq, int limit, MessageCodec codec, List<ChatMessage> out) throws IOException {
+        long position = floorPosition(afterSeq + 1);
+        long end = size;
+        if (position >= end) {
+            return;
+        }
+
+        try (FileChannel reader = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            reader.position(position);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(reader), READ_BUFFER_BYTES));
+            while (out.size() < limit && position + HEADER_BYTES <= end) {
+                int length = in.readInt();
+                in.readInt();
+                long seq = in.readLong();
+                if (seq > maxSeq) {
+                    break;
+                }
+                if (seq <= afterSeq) {
+                    in.skipNBytes(length);
+                } else {
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    out.add(codec.decode(payload, ChatMessage.class));
+                }
+                position += HEADER_BYTES + length;
+            }
+        }
+    }
+
+    /**
+     * Closes the file after flushing it to disk and writes the index beside it
+     */
+    void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(true);
+            channel.close();
+        } finally {
+            channel = null;
+        }
+        writeIndex();
+    }
+
+    boolean isOpen() {
+        return channel != null;
+    }
+
+    private synchronized void indexRecord(long seq, long position, int recordBytes) {
+        if (indexSize == 0 || position - indexPositions[indexSize - 1] >= indexIntervalBytes) {
+            if (indexSize == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexSeqs[indexSize] = seq;
+            indexPositions[indexSize] = position;
+            indexSize++;
+        }
+        lastSeq = seq;
+        size = position + recordBytes;
+    }
+
+    /**
+     * Position of the last indexed record at or before seq
+     */
+    private synchronized long floorPosition(long seq) {
+        int i = Arrays.binarySearch(indexSeqs, 0, indexSize, seq);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return i < 0 ? 0 : indexPositions[i];
+    }
+
+    /**
+     * Scans the whole segment to rebuild its index, truncating any torn or corrupt tail
+     */
+    private void recover() throws IOException {
+        try (FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = file.size();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(file), READ_BUFFER_BYTES));
+            CRC32 crc = new CRC32();
+            long position = 0;
+            while (position + HEADER_BYTES <= fileSize) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                long seq = in.readLong();
+                if (length < 0 || position + HEADER_BYTES + length > fileSize) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                indexRecord(seq, position, HEADER_BYTES + length);
+                position += HEADER_BYTES + length;
+            }
+
+            if (position < fileSize) {
+                log.warn("Truncating {} bytes of incomplete records from {}", fileSize - position, logPath);
+                file.truncate(position);
+            }
+        }
+    }
+
+    private boolean loadIndex() throws IOException {
+        if (!Files.exists(indexPath)) {
+            return false;
+        }
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+        if (entries.remaining() == 0 || entries.remaining() % INDEX_ENTRY_BYTES != 0) {
+            log.warn("Rebuilding unreadable index {}", indexPath);
+            return false;
+        }
+
+        int count = entries.remaining() / INDEX_ENTRY_BYTES;
+        indexSeqs = new long[count];
+        indexPositions = new long[count];
+        for (int i = 0; i < count; i++) {
+            indexSeqs[i] = entries.getLong();
+            indexPositions[i] = entries.getLong();
+        }
+        indexSize = count;
+        return true;
+    }
+
+    private synchronized void writeIndex() throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(indexSize * INDEX_ENTRY_BYTES);
+        for (int i = 0; i < indexSize; i++) {
+            entries.putLong(indexSeqs[i]).putLong(indexPositions[i]);
+        }
+
+        // Replace the index in one step so a crash never leaves half of it behind
+        Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        Files.write(temp, entries.array());
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.messagingapp.history;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.HistoryPage;
+
+/**
+ * Durable, per-conversation message log.
+ *
+ * Every message appended to a conversation is given the next sequence number of that
+ * conversation, starting at 1. A client that remembers the last sequence it has seen can ask
+ * for everything after it and catch up on what it missed while offline.
+ */
+public interface MessageHistoryStore {
+
+    String PUBLIC_CONVERSATION = "public";
+
+    /**
+     * Stores a message at the end of a conversation and sets its sequence number
+     *
+     * @return the sequence number assigned to the message
+     */
+    long append(String conversationId, ChatMessage message) throws IOException;
+
+    /**
+     * Sets the message's sequence number at once and stores it in the background. Messages of a
+     * conversation are stored in sequence order; reads only return them once stored.
+     *
+     * @return completes with the sequence number once the message is stored, or exceptionally if
+     *         it could not be
+     */
+    CompletableFuture<Long> appendAsync(String conversationId, ChatMessage message) throws IOException;
+
+    /**
+     * Reads up to {@code limit} messages that follow {@code afterSeq}, in sequence order
+     */
+    HistoryPage read(String conversationId, long afterSeq, int limit) throws IOException;
+
+    /**
+     * The conversation a chat message belongs to: its room, the public room, or the direct
+     * conversation between its sender and recipient
+     */
+    static String conversationOf(ChatMessage message) {
+        if (message.getRoomId() != null) {
+            return roomConversation(message.getRoomId());
+        }
+        if (message.getRecipientId() == null || message.getRecipientId().isEmpty()) {
+            return PUBLIC_CONVERSATION;
+        }
+        return directConversation(message.getUserId(), message.getRecipientId());
+    }
+
+    /**
+     * The id of the direct conversation between two users; the same whichever of them asks
+     */
+    static String directConversation(String userId, String peerId) {
+        return userId.compareTo(peerId) <= 0
+                ? "dm:" + userId + ":" + peerId
+                : "dm:" + peerId + ":" + userId;
+    }
+
+    /**
+     * The id of a room's conversation
+     */
+    static String roomConversation(String roomId) {
+        return "room:" + roomId;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.messagingapp.interceptor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.stereotype.Component;
+
+import com.example.messagingapp.config.MessagingProperties;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admission control for WebSocket handshakes on this node.
+ *
+ * A connection holds a permit from its upgrade request until it is registered: routed here in
+ * Redis, sent its welcome frame and handed its offline inbox. Upgrades arriving while every
+ * permit is taken are turned away straight away, so a reconnect storm queues on the clients'
+ * retries instead of piling registrations up on the node.
+ */
+@Component
+public class HandshakeAdmission {
+
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final Counter rejected;
+
+    public HandshakeAdmission(MessagingProperties messagingProperties, MeterRegistry meterRegistry) {
+        this.maxConcurrent = Math.max(1, messagingProperties.getHandshake().getMaxConcurrent());
+        this.permits = new Semaphore(maxConcurrent);
+
+        Gauge.builder("messaging.handshake.inflight", this, HandshakeAdmission::inFlight)
+            .description("Connections between their upgrade request and their registration")
+            .register(meterRegistry);
+        this.rejected = Counter.builder("messaging.handshake.rejected")
+            .description("Upgrade requests turned away because too many handshakes were in flight")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Takes a permit for a new connection, or returns null if the node is at its limit
+     */
+    public Permit tryAdmit() {
+        if (permits.tryAcquire()) {
+            return new Permit();
+        }
+        rejected.increment();
+        return null;
+    }
+
+    public int inFlight() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * One admitted connection's permit; releasing it more than once has no effect
+     */
+    public final class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit() {
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+}
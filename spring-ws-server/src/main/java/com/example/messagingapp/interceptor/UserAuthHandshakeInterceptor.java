@@ -1,80 +1,123 @@
 package com.example.messagingapp.interceptor;
 
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
-
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.server.ServerHttpRequest;
 import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.server.HandshakeInterceptor;
-import org.springframework.web.util.UriComponentsBuilder;
 
-import com.example.messagingapp.service.ServerProperties;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.interceptor.HandshakeAdmission.Permit;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Authenticates a WebSocket upgrade and admits it under the node's handshake limit.
+ *
+ * Runs on the upgrade thread, so it only reads the user id from the raw query string or the
+ * header and takes a permit; registering the user happens once the connection is established.
+ * The permit travels in the session attributes until the handler has registered the connection,
+ * and is given back here if the upgrade itself fails.
+ */
 @Slf4j
 @Component
 public class UserAuthHandshakeInterceptor implements HandshakeInterceptor {
 
-    private final RedisTemplate<String, String> redisTemplate;
-    private final ServerProperties serverProperties;
-    
-    public UserAuthHandshakeInterceptor(RedisTemplate<String, String> redisTemplate, ServerProperties serverProperties) {
-        this.redisTemplate = redisTemplate;
-        this.serverProperties = serverProperties;
+    public static final String USER_ID_PARAMETER = "X-Auth-User-Id";
+    public static final String PERMIT_ATTRIBUTE = "handshakePermit";
+
+    private final HandshakeAdmission handshakeAdmission;
+    private final String retryAfter;
+
+    public UserAuthHandshakeInterceptor(HandshakeAdmission handshakeAdmission,
+                                        MessagingProperties messagingProperties) {
+        this.handshakeAdmission = handshakeAdmission;
+        this.retryAfter = String.valueOf(messagingProperties.getHandshake().getRetryAfterSeconds());
     }
 
     @Override
-    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, 
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
                                   WebSocketHandler wsHandler, Map<String, Object> attributes) throws Exception {
-        // Log the full URL to help with debugging
-        log.info("WebSocket connection attempt URL: {}", request.getURI());
-
-        // Extract user ID from query parameters
-        String uri = request.getURI().toString();
-        Map<String, String> queryParams = UriComponentsBuilder.fromUriString(uri)
-                .build()
-                .getQueryParams()
-                .toSingleValueMap();
-                
-        log.info("Query parameters: {}", queryParams);
-
         // Try to get user ID from multiple sources
-        String userId = queryParams.get("X-Auth-User-Id");
+        String userId = queryParameter(request.getURI().getRawQuery(), USER_ID_PARAMETER);
         if (userId == null) {
-            userId = request.getHeaders().getFirst("x-auth-user-id");
+            userId = request.getHeaders().getFirst(USER_ID_PARAMETER);
         }
 
-        log.info("Extracted user ID: {}", userId);
-
         // Check if user ID is provided
         if (userId == null || userId.trim().isEmpty()) {
             log.warn("Connection rejected: Missing user ID");
             return false;
         }
 
-        // Store user ID in attributes for later use
-        attributes.put("userId", userId);
+        Permit permit = handshakeAdmission.tryAdmit();
+        if (permit == null) {
+            log.debug("Connection of user {} turned away: too many handshakes in flight", userId);
+            response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+            response.getHeaders().set(HttpHeaders.RETRY_AFTER, retryAfter);
+            return false;
+        }
 
-        // Save the user's server association in Redis
-        try {
-            redisTemplate.opsForValue().set("user:" + userId + ":server", serverProperties.getServerId());
-            log.info("User {} assigned to server {}", userId, serverProperties.getServerId());
-        } catch (Exception e) {
-            log.error("Redis error during user assignment: {}", e.getMessage());
-            // Continue even if Redis fails - don't block the user connection
+        // Store user ID in attributes for later use; the user's server association and
+        // presence index entry are registered once the connection is established
+        attributes.put("userId", userId);
+        attributes.put(PERMIT_ATTRIBUTE, permit);
+        if (request instanceof ServletServerHttpRequest servletRequest) {
+            servletRequest.getServletRequest().setAttribute(PERMIT_ATTRIBUTE, permit);
         }
+        log.debug("User {} admitted", userId);
 
         return true;
     }
 
     @Override
-    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, 
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
                               WebSocketHandler wsHandler, Exception exception) {
-        // Nothing to do after handshake
-        log.info("This after the connection is established");
+        // A connection that was not upgraded never reaches the handler, so its permit is returned here
+        if (request instanceof ServletServerHttpRequest servletRequest
+                && servletRequest.getServletRequest().getAttribute(PERMIT_ATTRIBUTE) instanceof Permit permit
+                && (exception != null || !upgraded(response))) {
+            permit.release();
+        }
+    }
+
+    private static boolean upgraded(ServerHttpResponse response) {
+        return response instanceof ServletServerHttpResponse servletResponse
+                && servletResponse.getServletResponse().getStatus() == HttpStatus.SWITCHING_PROTOCOLS.value();
+    }
+
+    /**
+     * Decoded value of the first occurrence of a parameter in a raw query string,
+     * or null if it is absent or not validly encoded
+     */
+    static String queryParameter(String rawQuery, String name) {
+        if (rawQuery == null) {
+            return null;
+        }
+        int start = 0;
+        while (start <= rawQuery.length()) {
+            int end = rawQuery.indexOf('&', start);
+            if (end < 0) {
+                end = rawQuery.length();
+            }
+            if (rawQuery.startsWith(name, start) && start + name.length() < end
+                    && rawQuery.charAt(start + name.length()) == '=') {
+                try {
+                    return URLDecoder.decode(rawQuery.substring(start + name.length() + 1, end), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+            start = end + 1;
+        }
+        return null;
     }
 }
@@ -0,0 +1,21 @@
+package com.example.messagingapp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A call tracked in the shared call registry
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ActiveCall {
+    private String callId;
+    private String caller;
+    private String callee;
+
+    public String peerOf(String userId) {
+        return userId.equals(caller) ? callee : caller;
+    }
+}
@@ -15,12 +15,15 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 public class ChatMessage {
     private String type;
+    private String messageId;   // Assigned at ingress; acknowledged by "sent" and "delivered" receipts
     private String message;
     private String userId;      // Sender
     private String recipientId; // For direct messages
+    private String roomId;      // For room messages, and room-join / room-leave requests
     private String clientId;
     private String serverId;
     private Instant timestamp;
+    private Long seq;           // Position in its conversation's history, once stored
     private Map<String, Object> additionalData;
     private List<String> users; // Connected users list - specifically for user-list messages
 }
@@ -0,0 +1,22 @@
+package com.example.messagingapp.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One page of a conversation's history.
+ * lastSeq is the newest sequence number in the conversation when the page was read;
+ * hasMore means further messages follow the last one in this page.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HistoryPage {
+    private String conversationId;
+    private List<ChatMessage> messages;
+    private long lastSeq;
+    private boolean hasMore;
+}
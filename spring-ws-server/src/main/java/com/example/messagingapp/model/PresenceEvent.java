@@ -0,0 +1,17 @@
+package com.example.messagingapp.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A single versioned change to the cluster-wide presence index
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PresenceEvent {
+    private long version;
+    private String userId;
+    private String action; // "joined" or "left"
+}
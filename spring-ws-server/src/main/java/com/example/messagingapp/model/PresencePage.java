@@ -0,0 +1,25 @@
+package com.example.messagingapp.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One page of the cluster-wide presence index.
+ * A cursor of "0" means the scan is complete; version is the presence version
+ * at the time the page was read.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PresencePage {
+    private List<String> users;
+    private String cursor;
+    private long version;
+
+    public boolean isLast() {
+        return cursor == null || "0".equals(cursor);
+    }
+}
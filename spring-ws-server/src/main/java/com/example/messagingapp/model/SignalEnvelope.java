@@ -0,0 +1,18 @@
+package com.example.messagingapp.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One or more WebRTC signals relayed to another node in a single hop.
+ * Bursts of trickle ICE candidates for the same recipient travel together.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SignalEnvelope {
+    private List<WebRTCSignal> signals;
+}
@@ -0,0 +1,162 @@
+package com.example.messagingapp.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ActiveCall;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cluster-wide registry of WebRTC calls, kept in Redis so either peer's node can see a call.
+ *
+ * Each call is a call:&lt;id&gt; hash that expires after the ring timeout until it is accepted,
+ * then after the call TTL, so calls whose peers vanished without hanging up are dropped.
+ * user:&lt;id&gt;:calls indexes the calls of each participant for cleanup on disconnect.
+ */
+@Slf4j
+@Service
+public class CallRegistry {
+
+    static final String CALL_PREFIX = "call:";
+
+    // KEYS: call key, caller index, callee index. ARGV: caller, callee, callId, ring ttl, call ttl (seconds)
+    private static final RedisScript<Long> REGISTER_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('HSET', KEYS[1], 'caller', ARGV[1], 'callee', ARGV[2], 'state', 'ringing') "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[4]) "
+            + "redis.call('SADD', KEYS[2], ARGV[3]) "
+            + "redis.call('EXPIRE', KEYS[2], ARGV[5]) "
+            + "redis.call('SADD', KEYS[3], ARGV[3]) "
+            + "redis.call('EXPIRE', KEYS[3], ARGV[5]) "
+            + "return 1",
+            Long.class);
+
+    // KEYS: call key. ARGV: call ttl (seconds)
+    private static final RedisScript<Long> ACCEPT_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end "
+            + "redis.call('HSET', KEYS[1], 'state', 'active') "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[1]) "
+            + "return 1",
+            Long.class);
+
+    // Returns 1 if the call existed and was removed.
+    // KEYS: call key, caller index, callee index. ARGV: callId
+    private static final RedisScript<Long> END_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('DEL', KEYS[1]) == 0 then return 0 end "
+            + "redis.call('SREM', KEYS[2], ARGV[1]) "
+            + "redis.call('SREM', KEYS[3], ARGV[1]) "
+            + "return 1",
+            Long.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final MessagingProperties.Signaling signaling;
+
+    public CallRegistry(ReactiveStringRedisTemplate redisTemplate, MessagingProperties messagingProperties) {
+        this.redisTemplate = redisTemplate;
+        this.signaling = messagingProperties.getSignaling();
+    }
+
+    /**
+     * Records a new ringing call between two users
+     */
+    public CompletableFuture<Void> register(String callId, String caller, String callee) {
+        return redisTemplate.execute(REGISTER_SCRIPT,
+                        List.of(callKey(callId), userCallsKey(caller), userCallsKey(callee)),
+                        List.of(caller, callee, callId,
+                                String.valueOf(signaling.getRingTimeout().toSeconds()),
+                                String.valueOf(signaling.getCallTtl().toSeconds())))
+                .then()
+                .toFuture()
+                .exceptionally(e -> {
+                    log.error("Error registering call {}: {}", callId, e.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Marks a call as accepted, extending its expiry from the ring timeout to the call TTL.
+     * Completes with false if the call is unknown or already expired.
+     */
+    public CompletableFuture<Boolean> accept(String callId) {
+        return redisTemplate.execute(ACCEPT_SCRIPT, List.of(callKey(callId)),
+                        List.of(String.valueOf(signaling.getCallTtl().toSeconds())))
+                .next()
+                .toFuture()
+                .handle((accepted, e) -> {
+                    if (e != null) {
+                        log.error("Error accepting call {}: {}", callId, e.getMessage());
+                        return false;
+                    }
+                    return accepted != null && accepted == 1L;
+                });
+    }
+
+    /**
+     * Get a call, or null if it is unknown or expired
+     */
+    public CompletableFuture<ActiveCall> get(String callId) {
+        return redisTemplate.<String, String>opsForHash().entries(callKey(callId))
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .toFuture()
+                .handle((call, e) -> {
+                    if (e != null) {
+                        log.error("Error reading call {}: {}", callId, e.getMessage());
+                        return null;
+                    }
+                    if (call.get("caller") == null) {
+                        return null;
+                    }
+                    return new ActiveCall(callId, call.get("caller"), call.get("callee"));
+                });
+    }
+
+    /**
+     * Removes a call, completing with the removed call or null if it did not exist.
+     * The participants are read first so the script can be given both of their indexes.
+     */
+    public CompletableFuture<ActiveCall> end(String callId) {
+        return redisTemplate.<String, String>opsForHash().multiGet(callKey(callId), List.of("caller", "callee"))
+                .filter(peers -> peers.get(0) != null && peers.get(1) != null)
+                .flatMap(peers -> redisTemplate.execute(END_SCRIPT,
+                                List.of(callKey(callId), userCallsKey(peers.get(0)), userCallsKey(peers.get(1))),
+                                List.of(callId))
+                        .next()
+                        .filter(removed -> removed == 1L)
+                        .map(removed -> new ActiveCall(callId, peers.get(0), peers.get(1))))
+                .toFuture()
+                .exceptionally(e -> {
+                    log.error("Error ending call {}: {}", callId, e.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Get the IDs of the calls a user takes part in; entries for expired calls may remain
+     */
+    public CompletableFuture<Set<String>> callsOf(String userId) {
+        return redisTemplate.opsForSet().members(userCallsKey(userId))
+                .collect(Collectors.toSet())
+                .toFuture()
+                .exceptionally(e -> {
+                    log.error("Error reading calls of user {}: {}", userId, e.getMessage());
+                    return Set.of();
+                });
+    }
+
+    private static String callKey(String callId) {
+        return CALL_PREFIX + callId;
+    }
+
+    static String userCallsKey(String userId) {
+        return "user:" + userId + ":calls";
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.messagingapp.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Latency histograms for each hop a direct message takes, as messaging.delivery.latency tagged by hop.
+ *
+ * Hops that start on one node and end on another compare the clocks of both, so they include
+ * any skew between them; a negative duration means the clocks disagree and is not recorded.
+ */
+@Component
+public class DeliveryLatency {
+
+    public enum Hop {
+        // Ingress to the broker acknowledging the record, on the sender's node
+        PRODUCE("produce"),
+        // Ingress to the record being consumed on the recipient's node
+        TRANSIT("transit"),
+        // Consumed to written to the recipient's socket, on the recipient's node
+        WRITE("write"),
+        // Ingress to written to the recipient's socket
+        END_TO_END("end_to_end");
+
+        private final String tag;
+
+        Hop(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final Map<Hop, Timer> timers = new EnumMap<>(Hop.class);
+
+    public DeliveryLatency(MeterRegistry meterRegistry) {
+        for (Hop hop : Hop.values()) {
+            timers.put(hop, Timer.builder("messaging.delivery.latency")
+                    .description("Time a direct message spent on one hop of its delivery")
+                    .tag("hop", hop.tag)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+    }
+
+    public void record(Hop hop, Duration duration) {
+        if (!duration.isNegative()) {
+            timers.get(hop).record(duration);
+        }
+    }
+
+    /**
+     * Records the time from a stamp taken earlier, possibly on another node, until now
+     */
+    public void recordSince(Hop hop, Instant since) {
+        if (since != null) {
+            record(hop, Duration.between(since, Instant.now()));
+        }
+    }
+}
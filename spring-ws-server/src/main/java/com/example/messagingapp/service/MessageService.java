@@ -1,28 +1,100 @@
 package com.example.messagingapp.service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.stereotype.Service;
 
+import com.example.messagingapp.config.MessagingProperties;
 import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.service.DeliveryLatency.Hop;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Routes chat messages between nodes through Kafka.
+ *
+ * A message for a user connected from several devices is produced once to each server hosting
+ * one of them; each server then writes it to all of the user's sessions it holds. A room message
+ * is likewise produced once to each other server with members in the room, however many members
+ * each of them holds.
+ *
+ * A record addressed to this server is not produced at all: it is handed to the local delivery
+ * bound by the WebSocket handler, which runs it on the delivery lane the consumer would have
+ * used, so it stays in order with consumed records while skipping the broker round trip. Those
+ * are counted as messaging.delivery.local, tagged with the kind of record.
+ *
+ * Every produce is timed from send to broker acknowledgement as messaging.kafka.produce, tagged
+ * with the kind of record (direct, receipt, room or broadcast) and its outcome.
+ */
 @Slf4j
 @Service
 public class MessageService {
 
+    // Set on broadcast records so the originating node can skip its own messages
+    public static final String ORIGIN_SERVER_HEADER = "X-Origin-Server";
+
+    /**
+     * Delivers a message to the sessions on this server, as if consumed from its topic
+     */
+    @FunctionalInterface
+    public interface LocalDelivery {
+        /**
+         * @return completes with whether the message reached a session or was passed on or kept,
+         * or exceptionally if delivering it failed
+         */
+        CompletableFuture<Boolean> deliver(ChatMessage message);
+    }
+
     private final KafkaTemplate<String, ChatMessage> kafkaTemplate;
-    private final RedisService redisService;
+    private final RoutingCache routingCache;
+    private final RoomCache roomCache;
+    private final OfflineInbox offlineInbox;
+    private final DeliveryLatency deliveryLatency;
+    private final ServerProperties serverProperties;
+    private final MessagingProperties messagingProperties;
+    private final MeterRegistry meterRegistry;
+
+    // Bound by the WebSocket handler; until then records to this server go through Kafka
+    private volatile LocalDelivery localDelivery;
 
-    public MessageService(KafkaTemplate<String, ChatMessage> kafkaTemplate, RedisService redisService) {
+    public MessageService(KafkaTemplate<String, ChatMessage> kafkaTemplate,
+                          RoutingCache routingCache,
+                          RoomCache roomCache,
+                          OfflineInbox offlineInbox,
+                          DeliveryLatency deliveryLatency,
+                          ServerProperties serverProperties,
+                          MessagingProperties messagingProperties,
+                          MeterRegistry meterRegistry) {
         this.kafkaTemplate = kafkaTemplate;
-        this.redisService = redisService;
+        this.routingCache = routingCache;
+        this.roomCache = roomCache;
+        this.offlineInbox = offlineInbox;
+        this.deliveryLatency = deliveryLatency;
+        this.serverProperties = serverProperties;
+        this.messagingProperties = messagingProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Gives the service the delivery to use for records addressed to this server
+     */
+    public void bindLocalDelivery(LocalDelivery localDelivery) {
+        this.localDelivery = localDelivery;
     }
 
     /**
-     * Send a direct message to a specific user via Kafka
+     * Send a direct message to a specific user via Kafka, or keep it in the user's offline inbox.
+     * A route missing from the near-cache is resolved by the inbox itself, so a message to an
+     * offline user costs one Redis round trip and is kept rather than dropped.
+     * Completes once the broker has acknowledged the record for every server hosting the
+     * recipient, or the inbox has stored it.
      */
     public CompletableFuture<Boolean> sendDirectMessage(ChatMessage message) {
         String recipientId = message.getRecipientId();
@@ -31,33 +103,202 @@ public class MessageService {
             return CompletableFuture.completedFuture(false);
         }
 
-        return redisService.getUserServer(recipientId)
-            .thenApply(targetServerId -> {
-                if (targetServerId == null) {
-                    log.warn("Recipient {} is not connected to any server", recipientId);
-                    return false;
+        List<String> cachedServerIds = routingCache.getCachedUserServers(recipientId);
+        long generation = routingCache.generation(recipientId);
+        CompletableFuture<List<String>> route = cachedServerIds != null && !cachedServerIds.isEmpty()
+            ? CompletableFuture.completedFuture(cachedServerIds)
+            : offlineInbox.offer(message).thenApply(serverIds -> {
+                if (!serverIds.isEmpty()) {
+                    routingCache.put(recipientId, serverIds, generation);
+                }
+                return serverIds;
+            });
+
+        return route
+            .thenCompose(targetServerIds -> {
+                if (targetServerIds.isEmpty()) {
+                    log.info("Recipient {} is offline, message kept in their inbox", recipientId);
+                    return CompletableFuture.completedFuture(true);
                 }
+                return sendToAll(message, targetServerIds, "direct");
+            })
+            .exceptionally(e -> {
+                log.error("Error routing message to user {}: {}", recipientId, e.getMessage());
+                return false;
+            });
+    }
+
+    /**
+     * Send a room message to the other servers with members in the room, one record per server.
+     * The caller has already delivered it to the members on this server. Completes once the
+     * broker has acknowledged every record, or at once if no other server is in the room.
+     */
+    public CompletableFuture<Boolean> sendRoomMessage(ChatMessage message) {
+        String roomId = message.getRoomId();
+        return roomCache.getRoomServers(roomId)
+            .thenCompose(serverIds -> {
+                List<String> others = serverIds.stream()
+                    .filter(serverId -> !serverId.equals(serverProperties.getServerId()))
+                    .toList();
+                if (others.isEmpty()) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                return sendToAll(message, others, "room");
+            })
+            .exceptionally(e -> {
+                log.error("Error routing message to room {}: {}", roomId, e.getMessage());
+                return false;
+            });
+    }
 
-                log.info("Sending message to user {} on server {}", recipientId, targetServerId);
-                String targetTopic = "messages-" + targetServerId;
-                
-                try {
-                    // Use KafkaTemplate to send to the dynamic destination
-                    kafkaTemplate.send(targetTopic, message)
-                        .whenComplete((result, ex) -> {
-                            if (ex == null) {
-                                log.info("Message sent to topic {} for user {}", targetTopic, recipientId);
-                            } else {
-                                log.error("Failed to send message to topic {} for user {}: {}", 
-                                    targetTopic, recipientId, ex.getMessage());
-                            }
-                        });
+    /**
+     * Re-routes a direct message that reached this server after its recipient's sessions here
+     * closed: to the recipient's other servers if it is still connected elsewhere, otherwise into
+     * its offline inbox. A server that already got its own copy may get it twice; clients skip
+     * messages whose sequence they have seen.
+     * Completes with whether the message was passed on or kept.
+     */
+    public CompletableFuture<Boolean> redirectUndelivered(ChatMessage message) {
+        String recipientId = message.getRecipientId();
+        return offlineInbox.offer(message).thenCompose(serverIds -> {
+            List<String> others = serverIds.stream()
+                .filter(serverId -> !serverId.equals(serverProperties.getServerId()))
+                .toList();
+            if (serverIds.isEmpty()) {
+                log.info("Recipient {} went offline, message kept in their inbox", recipientId);
+                return CompletableFuture.completedFuture(true);
+            }
+            if (others.isEmpty()) {
+                // The closed session's route is still counted until it is removed
+                log.info("Recipient {} is only routed to this server, which has no session, keeping message", recipientId);
+                return offlineInbox.keep(message);
+            }
+            return sendToAll(message, others, "direct");
+        }).exceptionally(e -> {
+            log.error("Error redirecting message to user {}: {}", recipientId, e.getMessage());
+            return false;
+        });
+    }
+
+    /**
+     * Sends a "delivered" receipt to the servers of the user it acknowledges messages to.
+     * Receipts are not kept for offline users; their messages are still marked sent.
+     */
+    public void sendReceipt(ChatMessage receipt) {
+        String recipientId = receipt.getRecipientId();
+        routingCache.getUserServers(recipientId).thenAccept(serverIds -> {
+            if (serverIds.isEmpty()) {
+                log.debug("User {} went offline, dropping delivery receipt", recipientId);
+            } else {
+                sendToAll(receipt, serverIds, "receipt");
+            }
+        });
+    }
+
+    /**
+     * Produces a message once to each server's topic, completing with whether the broker
+     * acknowledged every record
+     */
+    private CompletableFuture<Boolean> sendToAll(ChatMessage message, List<String> targetServerIds, String kind) {
+        if (targetServerIds.size() == 1) {
+            return send(message, targetServerIds.get(0), kind);
+        }
+        List<CompletableFuture<Boolean>> sends = new ArrayList<>(targetServerIds.size());
+        for (String targetServerId : targetServerIds) {
+            sends.add(send(message, targetServerId, kind));
+        }
+        return CompletableFuture.allOf(sends.toArray(CompletableFuture[]::new))
+            .thenApply(ignored -> sends.stream().allMatch(CompletableFuture::join));
+    }
+
+    /**
+     * Produces a message to a server's topic, completing with whether the broker acknowledged it
+     */
+    private CompletableFuture<Boolean> send(ChatMessage message, String targetServerId, String kind) {
+        LocalDelivery delivery = localDelivery;
+        if (delivery != null && targetServerId.equals(serverProperties.getServerId())) {
+            return deliverLocally(delivery, message, kind);
+        }
+        
+        // Keyed by recipient, or by room, so their messages stay in order on one partition
+        String recipientId = message.getRoomId() != null ? message.getRoomId() : message.getRecipientId();
+        log.info("Sending message to {} {} on server {}", kind, recipientId, targetServerId);
+        String targetTopic = "messages-" + targetServerId;
+        
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return kafkaTemplate.send(targetTopic, recipientId, message)
+                .handle((result, ex) -> {
+                    sample.stop(produceTimer(kind, ex == null));
+                    if (ex != null) {
+                        log.error("Failed to send message to topic {} for {}: {}", 
+                            targetTopic, recipientId, ex.getMessage());
+                        return false;
+                    }
+                    log.info("Message sent to topic {} for {}", targetTopic, recipientId);
+                    if (message.getMessageId() != null) {
+                        deliveryLatency.recordSince(Hop.PRODUCE, message.getTimestamp());
+                    }
                     return true;
-                } catch (Exception e) {
-                    log.error("Error sending message to Kafka: {}", e.getMessage());
+                });
+        } catch (Exception e) {
+            sample.stop(produceTimer(kind, false));
+            log.error("Error sending message to Kafka: {}", e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Hands a record for this server to its sessions, completing with whether it reached one of
+     * them or was kept for its recipient
+     */
+    private CompletableFuture<Boolean> deliverLocally(LocalDelivery delivery, ChatMessage message, String kind) {
+        meterRegistry.counter("messaging.delivery.local", "kind", kind).increment();
+        try {
+            return delivery.deliver(message).handle((delivered, e) -> {
+                if (e != null) {
+                    log.error("Error delivering {} message locally: {}", kind, e.getMessage());
                     return false;
                 }
+                return Boolean.TRUE.equals(delivered);
             });
+        } catch (RuntimeException e) {
+            log.error("Error delivering {} message locally: {}", kind, e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Publish a public message to the shared broadcast topic so every other node
+     * can deliver it to its local sessions. The caller has already fanned out locally,
+     * so this never waits on the broker.
+     */
+    public void publishBroadcast(ChatMessage message) {
+        String topic = messagingProperties.getBroadcast().getTopic();
+        ProducerRecord<String, ChatMessage> record = new ProducerRecord<>(topic, message.getUserId(), message);
+        record.headers().add(ORIGIN_SERVER_HEADER, serverProperties.getServerId().getBytes(StandardCharsets.UTF_8));
+        
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            kafkaTemplate.send(record)
+                .whenComplete((result, ex) -> {
+                    sample.stop(produceTimer("broadcast", ex == null));
+                    if (ex != null) {
+                        log.error("Failed to publish broadcast from user {}: {}", message.getUserId(), ex.getMessage());
+                    }
+                });
+        } catch (Exception e) {
+            sample.stop(produceTimer("broadcast", false));
+            log.error("Error publishing broadcast to Kafka: {}", e.getMessage());
+        }
+    }
+
+    private Timer produceTimer(String kind, boolean success) {
+        return Timer.builder("messaging.kafka.produce")
+            .description("Time from producing a record until the broker acknowledged it")
+            .tag("kind", kind)
+            .tag("outcome", success ? "success" : "error")
+            .register(meterRegistry);
     }
 
     // No longer need the Consumer bean as we'll use @KafkaListener instead
@@ -0,0 +1,247 @@
+package com.example.messagingapp.service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+/**
+ * Per-user inbox in Redis for direct messages sent while the recipient is offline.
+ *
+ * user:&lt;id&gt;:inbox is a list of JSON messages capped at the configured count, expiring once
+ * nothing has been added for the configured age; messages older than that are also dropped when
+ * the inbox is drained. A message is only kept if the recipient has no live routing entry, checked
+ * in the same script, so a recipient that connects concurrently either finds it when draining or is
+ * reported online and gets it through Kafka.
+ *
+ * Draining moves the messages to user:&lt;id&gt;:inbox:pending, where they stay until the session
+ * has been handed them and the drain is {@link #acknowledge acknowledged}. A drain that never
+ * gets that far, because the node stopped, leaves them for the next one. An entry that cannot be
+ * decoded is logged and skipped, without costing the user the rest of the inbox.
+ */
+@Slf4j
+@Service
+public class OfflineInbox {
+
+    // Returns the recipient's live servers if it is online, otherwise keeps the message and returns
+    // none. A server whose heartbeat has lapsed does not count.
+    // KEYS: routes, inbox key, then the heartbeats of the routed servers.
+    // ARGV: message, max messages, ttl (seconds), heartbeat prefix
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> OFFER_SCRIPT = new DefaultRedisScript<>(
+            RedisService.liveServers(3, 4)
+            + "if #live > 0 then return live end "
+            + "redis.call('RPUSH', KEYS[2], ARGV[1]) "
+            + "redis.call('LTRIM', KEYS[2], -tonumber(ARGV[2]), -1) "
+            + "redis.call('EXPIRE', KEYS[2], ARGV[3]) "
+            + "return live",
+            List.class);
+
+    // KEYS: inbox key. ARGV: message, max messages, ttl (seconds)
+    private static final RedisScript<Long> KEEP_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('RPUSH', KEYS[1], ARGV[1]) "
+            + "redis.call('LTRIM', KEYS[1], -tonumber(ARGV[2]), -1) "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[3]) "
+            + "return 1",
+            Long.class);
+
+    // Appends the inbox to whatever an earlier, unacknowledged drain left pending and returns both
+    // KEYS: inbox key, pending key. ARGV: ttl (seconds)
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> DRAIN_SCRIPT = new DefaultRedisScript<>(
+            "local messages = redis.call('LRANGE', KEYS[2], 0, -1) "
+            + "for _, message in ipairs(redis.call('LRANGE', KEYS[1], 0, -1)) do "
+            + "  redis.call('RPUSH', KEYS[2], message) "
+            + "  table.insert(messages, message) "
+            + "end "
+            + "redis.call('DEL', KEYS[1]) "
+            + "if #messages > 0 then redis.call('EXPIRE', KEYS[2], ARGV[1]) end "
+            + "return messages",
+            List.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final MessageCodec messageCodec;
+    private final MessagingProperties.Inbox inbox;
+    private final MeterRegistry meterRegistry;
+
+    public OfflineInbox(ReactiveStringRedisTemplate redisTemplate,
+                        MessageCodec messageCodec,
+                        MessagingProperties messagingProperties,
+                        MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.messageCodec = messageCodec;
+        this.inbox = messagingProperties.getInbox();
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Keeps a direct message for its recipient unless the recipient is online.
+     * Completes with the servers hosting the recipient if it is online, in which case nothing was
+     * kept, or with an empty list once the message is in the inbox. Fails if Redis could not be reached.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<String>> offer(ChatMessage message) {
+        String recipientId = message.getRecipientId();
+        String json;
+        try {
+            json = messageCodec.mapper(WireFormat.JSON).writeValueAsString(message);
+        } catch (Exception e) {
+            log.error("Error keeping message for user {} in inbox: {}", recipientId, e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // An uncached route is resolved here, so this is the routing lookup of a direct message
+        String routesKey = RedisService.userKey(recipientId);
+        Mono<List<String>> script = RedisService.heartbeatKeys(redisTemplate, routesKey)
+                .flatMap(heartbeats -> {
+                    List<String> keys = new ArrayList<>(heartbeats.size() + 2);
+                    keys.add(routesKey);
+                    keys.add(inboxKey(recipientId));
+                    keys.addAll(heartbeats);
+                    return redisTemplate.execute(OFFER_SCRIPT, keys,
+                            List.of(json, String.valueOf(inbox.getMaxMessages()),
+                                    String.valueOf(inbox.getMaxAge().toSeconds()), RedisService.HEARTBEAT_PREFIX))
+                            .next();
+                })
+                .map(servers -> (List<String>) servers);
+        return RedisService.timed(meterRegistry, "inbox-offer", script)
+                .whenComplete((servers, e) -> {
+                    if (e != null) {
+                        log.error("Error keeping message for user {} in inbox: {}", recipientId, e.getMessage());
+                    }
+                })
+                .thenApply(servers -> servers != null ? servers : List.of());
+    }
+
+    /**
+     * Keeps a direct message for its recipient whatever their routes say, for a recipient routed
+     * only to a server that has just lost their last session.
+     * Completes with whether the message is in the inbox.
+     */
+    public CompletableFuture<Boolean> keep(ChatMessage message) {
+        String recipientId = message.getRecipientId();
+        String json;
+        try {
+            json = messageCodec.mapper(WireFormat.JSON).writeValueAsString(message);
+        } catch (Exception e) {
+            log.error("Error keeping message for user {} in inbox: {}", recipientId, e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+
+        Mono<Long> script = redisTemplate.execute(KEEP_SCRIPT, List.of(inboxKey(recipientId)),
+                List.of(json, String.valueOf(inbox.getMaxMessages()), String.valueOf(inbox.getMaxAge().toSeconds())))
+                .next();
+        return RedisService.timed(meterRegistry, "inbox-keep", script)
+                .handle((kept, e) -> {
+                    if (e != null) {
+                        log.error("Error keeping message for user {} in inbox: {}", recipientId, e.getMessage());
+                        return false;
+                    }
+                    return true;
+                });
+    }
+
+    /**
+     * Returns every message waiting for a user in the order they were sent, skipping any older
+     * than the maximum age. They are held as pending until the drain is acknowledged.
+     */
+    public CompletableFuture<List<ChatMessage>> drain(String userId) {
+        return redisTemplate.execute(DRAIN_SCRIPT, List.of(inboxKey(userId), pendingKey(userId)),
+                        List.of(String.valueOf(inbox.getMaxAge().toSeconds())))
+                .next()
+                .toFuture()
+                .thenApply(stored -> decode(userId, stored))
+                .exceptionally(e -> {
+                    log.error("Error draining inbox of user {}: {}", userId, e.getMessage());
+                    return List.of();
+                });
+    }
+
+    /**
+     * Forgets the messages of the last drain, once they have been handed to the session or restored
+     */
+    public CompletableFuture<Void> acknowledge(String userId) {
+        return redisTemplate.delete(pendingKey(userId))
+                .toFuture()
+                .handle((deleted, e) -> {
+                    if (e != null) {
+                        log.error("Error acknowledging inbox of user {}: {}", userId, e.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Puts drained messages back at the front of a user's inbox, for when they could not be sent
+     */
+    public CompletableFuture<Void> restore(String userId, List<ChatMessage> messages) {
+        List<String> encoded = new ArrayList<>(messages.size());
+        try {
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                encoded.add(messageCodec.mapper(WireFormat.JSON).writeValueAsString(messages.get(i)));
+            }
+        } catch (Exception e) {
+            log.error("Error restoring {} messages to inbox of user {}: {}", messages.size(), userId, e.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return redisTemplate.opsForList().leftPushAll(inboxKey(userId), encoded)
+                .then(redisTemplate.expire(inboxKey(userId), inbox.getMaxAge()))
+                .toFuture()
+                .handle((expired, e) -> {
+                    if (e != null) {
+                        log.error("Error restoring {} messages to inbox of user {}: {}", messages.size(), userId, e.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    private List<ChatMessage> decode(String userId, List<?> stored) {
+        if (stored == null || stored.isEmpty()) {
+            return List.of();
+        }
+
+        Instant oldest = Instant.now().minus(inbox.getMaxAge());
+        List<ChatMessage> messages = new ArrayList<>(stored.size());
+        for (Object json : stored) {
+            ChatMessage message;
+            try {
+                message = messageCodec.mapper(WireFormat.JSON).readValue((String) json, ChatMessage.class);
+            } catch (IOException e) {
+                log.warn("Skipping unreadable message in inbox of user {}: {}", userId, e.getMessage());
+                continue;
+            }
+            if (message.getTimestamp() == null || message.getTimestamp().isAfter(oldest)) {
+                messages.add(message);
+            }
+        }
+        // Offers run concurrently, so restore the order in which the messages were sent
+        messages.sort(Comparator.comparing(ChatMessage::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder())));
+        log.info("Drained {} offline messages for user {}", messages.size(), userId);
+        return messages;
+    }
+
+    static String inboxKey(String userId) {
+        return "user:" + userId + ":inbox";
+    }
+
+    static String pendingKey(String userId) {
+        return inboxKey(userId) + ":pending";
+    }
+}
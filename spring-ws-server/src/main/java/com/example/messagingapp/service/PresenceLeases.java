@@ -0,0 +1,86 @@
+package com.example.messagingapp.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.messagingapp.config.MessagingProperties;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps this node's presence alive in Redis and clears up after nodes that died.
+ *
+ * Every heartbeat interval the node refreshes its heartbeat key, reaps the presence entries of
+ * nodes whose heartbeat has lapsed, and every third of the lease lifetime renews the routing
+ * leases of all its local users, with their session counts, in one batched call. If the node
+ * crashes, its heartbeat lapses first and routes to it are ignored; its leases then expire on
+ * their own.
+ */
+@Slf4j
+@Service
+public class PresenceLeases implements InitializingBean {
+
+    private final RedisService redisService;
+    private final ServerProperties serverProperties;
+    private final SessionRegistry sessionRegistry;
+    private final long renewIntervalNanos;
+
+    private long lastRenewal;
+
+    public PresenceLeases(RedisService redisService,
+                          ServerProperties serverProperties,
+                          SessionRegistry sessionRegistry,
+                          MessagingProperties messagingProperties) {
+        this.redisService = redisService;
+        this.serverProperties = serverProperties;
+        this.sessionRegistry = sessionRegistry;
+        this.renewIntervalNanos = messagingProperties.getPresence().getLeaseTtl().toNanos() / 3;
+        this.lastRenewal = System.nanoTime();
+    }
+
+    /**
+     * Entries left under this server ID by an earlier run belong to sessions that no longer
+     * exist, so they are dropped before the node accepts connections
+     */
+    @Override
+    public void afterPropertiesSet() {
+        long reaped = redisService.reapNode(serverProperties.getServerId()).join();
+        if (reaped > 0) {
+            log.info("Dropped {} presence entries left by a previous run of server {}", reaped,
+                    serverProperties.getServerId());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${messaging.presence.heartbeat-interval-ms:5000}")
+    public void heartbeat() {
+        String serverId = serverProperties.getServerId();
+        redisService.heartbeat(serverId);
+
+        long now = System.nanoTime();
+        if (now - lastRenewal >= renewIntervalNanos) {
+            lastRenewal = now;
+            renewLeases(serverId);
+        }
+
+        redisService.reapLapsedNodes().thenAccept(reaped -> {
+            if (reaped > 0) {
+                log.info("Reaped {} presence entries of servers whose heartbeat lapsed", reaped);
+            }
+        });
+    }
+
+    private void renewLeases(String serverId) {
+        Map<String, Integer> sessionCounts = new HashMap<>();
+        sessionRegistry.forEachUser(sessionCounts::put);
+        // A lease can lapse while the node is stalled; the renewal routes those users here again
+        redisService.renewLeases(serverId, sessionCounts).thenAccept(restored -> {
+            if (!restored.isEmpty()) {
+                log.warn("Restored the expired routes of {} users to server {}", restored.size(), serverId);
+            }
+        });
+    }
+}
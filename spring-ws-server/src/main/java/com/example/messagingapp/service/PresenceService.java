@@ -0,0 +1,61 @@
+package com.example.messagingapp.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import com.example.messagingapp.model.PresenceEvent;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Collects cluster-wide presence changes published by {@link RedisService} so they can be
+ * sent to local clients as one coalesced delta per window instead of one frame per change.
+ */
+@Slf4j
+@Service
+public class PresenceService implements MessageListener {
+
+    private final Queue<PresenceEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+
+    public PresenceService(RedisMessageListenerContainer listenerContainer) {
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisService.PRESENCE_CHANNEL));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // Published as "version:action:userId"; user IDs may themselves contain ':'
+        String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":", 3);
+        if (parts.length < 3) {
+            log.warn("Ignoring malformed presence event: {}", new String(message.getBody(), StandardCharsets.UTF_8));
+            return;
+        }
+        try {
+            pendingEvents.add(new PresenceEvent(Long.parseLong(parts[0]), parts[2], parts[1]));
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring presence event with invalid version: {}", parts[0]);
+        }
+    }
+
+    /**
+     * Removes and returns all events received since the last call, ordered by version
+     */
+    public List<PresenceEvent> drainPendingEvents() {
+        List<PresenceEvent> events = new ArrayList<>();
+        PresenceEvent event;
+        while ((event = pendingEvents.poll()) != null) {
+            events.add(event);
+        }
+        events.sort(Comparator.comparingLong(PresenceEvent::getVersion));
+        return events;
+    }
+}
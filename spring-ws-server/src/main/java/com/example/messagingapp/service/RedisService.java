@@ -1,86 +1,540 @@
 package com.example.messagingapp.service;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
-
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.PresencePage;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
+/**
+ * Redis access for user routing, presence and rooms.
+ *
+ * A user's routes are the user:&lt;id&gt;:servers hash, holding the number of sessions the user
+ * has on each server, so a user connected from several devices is routed to every server that
+ * hosts one of them. Presence is kept as an index maintained on join/leave rather than derived
+ * from the keyspace: a global set of connected users plus one set per server, updated atomically
+ * together with the routes. Every change to the global set bumps presence:version and is
+ * published on the presence channel as "version:action:userId". Every time a server is added to
+ * or dropped from a user's routes, the user is published on the routing channel so nodes can
+ * invalidate their near-caches.
+ *
+ * Routes are leases: the hash expires unless a hosting node renews it, which each node does for
+ * all of its users at once, a batch of keys per script call. Each node also keeps a short-lived
+ * heartbeat key and is listed in presence:nodes. Lookups ignore a route to a node whose
+ * heartbeat has lapsed, and any node may reap a lapsed node's presence entries, walking them
+ * with SSCAN a batch per script call.
+ *
+ * Rooms are indexed the same way at node granularity: room:&lt;id&gt;:servers holds the servers
+ * with at least one member session, and rooms:server:&lt;id&gt; the rooms a server is in. A node
+ * only writes when its first member joins or its last one leaves, publishing the room on the
+ * rooms channel; a lapsed node's rooms are reaped along with its users.
+ *
+ * Calls are issued on the shared reactive connection and complete when Redis replies, so no
+ * thread is held while a lookup or presence update is in flight. Every call is timed as
+ * messaging.redis tagged with its operation and outcome.
+ */
 @Slf4j
 @Service
 public class RedisService {
 
-    private final RedisTemplate<String, String> redisTemplate;
+    public static final String PRESENCE_CHANNEL = "presence:events";
+    public static final String ROUTING_CHANNEL = "routing:invalidate";
+    public static final String ROOM_CHANNEL = "rooms:invalidate";
+
+    static final String PRESENCE_USERS_KEY = "presence:users";
+    static final String PRESENCE_SERVER_PREFIX = "presence:server:";
+    static final String PRESENCE_VERSION_KEY = "presence:version";
+    static final String PRESENCE_NODES_KEY = "presence:nodes";
+    static final String HEARTBEAT_PREFIX = "presence:node:";
+    static final String ROOM_SERVER_PREFIX = "rooms:server:";
+
+    private static final String USER_KEY_PREFIX = "user:";
+    private static final String USER_KEY_SUFFIX = ":servers";
+    private static final String ROOM_KEY_PREFIX = "room:";
+    private static final String ROOM_KEY_SUFFIX = ":servers";
+
+    // Adding a session also proves the node is alive, so it refreshes the node's heartbeat.
+    // KEYS: routes, global set, server set, version, node set, heartbeat.
+    // ARGV: userId, serverId, presence channel, routing channel, lease ttl (ms), heartbeat ttl (ms)
+    private static final RedisScript<Long> ADD_SESSION_SCRIPT = new DefaultRedisScript<>(
+            "local sessions = redis.call('HINCRBY', KEYS[1], ARGV[2], 1) "
+            + "redis.call('PEXPIRE', KEYS[1], ARGV[5]) "
+            + "redis.call('SET', KEYS[6], '1', 'PX', ARGV[6]) "
+            + "redis.call('SADD', KEYS[5], ARGV[2]) "
+            + "if sessions == 1 then "
+            + "  redis.call('SADD', KEYS[3], ARGV[1]) "
+            + "  redis.call('PUBLISH', ARGV[4], ARGV[1]) "
+            + "end "
+            + "if redis.call('SADD', KEYS[2], ARGV[1]) == 0 then return 0 end "
+            + "local version = redis.call('INCR', KEYS[4]) "
+            + "redis.call('PUBLISH', ARGV[3], version .. ':joined:' .. ARGV[1]) "
+            + "return version",
+            Long.class);
+
+    // Only counts down this server's sessions, so a user still connected elsewhere stays routed
+    // and present there. KEYS: routes, global set, server set, version.
+    // ARGV: userId, serverId, presence channel, routing channel
+    private static final RedisScript<Long> REMOVE_SESSION_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1 then "
+            + "  if redis.call('HINCRBY', KEYS[1], ARGV[2], -1) > 0 then return 0 end "
+            + "  redis.call('HDEL', KEYS[1], ARGV[2]) "
+            + "  redis.call('PUBLISH', ARGV[4], ARGV[1]) "
+            + "end "
+            + "redis.call('SREM', KEYS[3], ARGV[1]) "
+            + "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "if redis.call('SREM', KEYS[2], ARGV[1]) == 0 then return 0 end "
+            + "local version = redis.call('INCR', KEYS[4]) "
+            + "redis.call('PUBLISH', ARGV[3], version .. ':left:' .. ARGV[1]) "
+            + "return version",
+            Long.class);
+
+    // KEYS: room servers, server rooms. ARGV: roomId, serverId, room channel
+    private static final RedisScript<Long> JOIN_ROOM_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('SADD', KEYS[2], ARGV[1]) "
+            + "if redis.call('HSET', KEYS[1], ARGV[2], 1) == 0 then return 0 end "
+            + "redis.call('PUBLISH', ARGV[3], ARGV[1]) "
+            + "return 1",
+            Long.class);
+
+    // KEYS: room servers, server rooms. ARGV: roomId, serverId, room channel
+    private static final RedisScript<Long> LEAVE_ROOM_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('SREM', KEYS[2], ARGV[1]) "
+            + "if redis.call('HDEL', KEYS[1], ARGV[2]) == 0 then return 0 end "
+            + "redis.call('PUBLISH', ARGV[3], ARGV[1]) "
+            + "return 1",
+            Long.class);
+
+    // KEYS: routes or room servers, then the heartbeats of its servers. ARGV: heartbeat prefix
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LOOKUP_SCRIPT = new DefaultRedisScript<>(
+            liveServers(2, 1) + "return live",
+            List.class);
+
+    // KEYS: heartbeat, node set. ARGV: serverId, heartbeat ttl (ms)
+    private static final RedisScript<Long> HEARTBEAT_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('SET', KEYS[1], '1', 'PX', ARGV[2]) "
+            + "return redis.call('SADD', KEYS[2], ARGV[1])",
+            Long.class);
+
+    // Extends the leases of this node's users. A user whose route to this node had lapsed gets it
+    // back with the node's session count and rejoins the presence index; those users are returned.
+    // KEYS: global set, server set, version, then the users' routes.
+    // ARGV: serverId, lease ttl (ms), presence channel, routing channel, then userId and session count per user
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> RENEW_LEASES_SCRIPT = new DefaultRedisScript<>(
+            "local restored = {} "
+            + "for i = 4, #KEYS do "
+            + "  local user = ARGV[2 * i - 3] "
+            + "  if redis.call('HSETNX', KEYS[i], ARGV[1], ARGV[2 * i - 2]) == 1 then "
+            + "    table.insert(restored, user) "
+            + "    redis.call('SADD', KEYS[2], user) "
+            + "    redis.call('PUBLISH', ARGV[4], user) "
+            + "    if redis.call('SADD', KEYS[1], user) == 1 then "
+            + "      local version = redis.call('INCR', KEYS[3]) "
+            + "      redis.call('PUBLISH', ARGV[3], version .. ':joined:' .. user) "
+            + "    end "
+            + "  end "
+            + "  redis.call('PEXPIRE', KEYS[i], ARGV[2]) "
+            + "end "
+            + "return restored",
+            List.class);
 
-    public RedisService(RedisTemplate<String, String> redisTemplate) {
+    // Drops a batch of a node's users from their routes and the presence index, and returns how
+    // many there were. A user still connected through another server stays present. With the
+    // lapsed flag set, nothing is dropped once the node's heartbeat is back.
+    // KEYS: heartbeat, global set, version, then the users' routes.
+    // ARGV: node, lapsed flag, presence channel, routing channel, then the users
+    private static final RedisScript<Long> REAP_USERS_SCRIPT = new DefaultRedisScript<>(
+            "if ARGV[2] == '1' and redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "for i = 4, #KEYS do "
+            + "  local user = ARGV[i + 1] "
+            + "  redis.call('HDEL', KEYS[i], ARGV[1]) "
+            + "  redis.call('PUBLISH', ARGV[4], user) "
+            + "  if redis.call('EXISTS', KEYS[i]) == 0 and redis.call('SREM', KEYS[2], user) == 1 then "
+            + "    local version = redis.call('INCR', KEYS[3]) "
+            + "    redis.call('PUBLISH', ARGV[3], version .. ':left:' .. user) "
+            + "  end "
+            + "end "
+            + "return #KEYS - 3",
+            Long.class);
+
+    // Drops a node from a batch of its rooms, under the same lapsed flag
+    // KEYS: heartbeat, then the room servers. ARGV: node, lapsed flag, room channel, then the rooms
+    private static final RedisScript<Long> REAP_ROOMS_SCRIPT = new DefaultRedisScript<>(
+            "if ARGV[2] == '1' and redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "for i = 2, #KEYS do "
+            + "  redis.call('HDEL', KEYS[i], ARGV[1]) "
+            + "  redis.call('PUBLISH', ARGV[3], ARGV[i + 2]) "
+            + "end "
+            + "return #KEYS - 1",
+            Long.class);
+
+    // Drops the user and room sets of a reaped node and unlists it, under the same lapsed flag.
+    // KEYS: heartbeat, node set, server set, server rooms. ARGV: node, lapsed flag
+    private static final RedisScript<Long> FORGET_NODE_SCRIPT = new DefaultRedisScript<>(
+            "if ARGV[2] == '1' and redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "redis.call('DEL', KEYS[3], KEYS[4]) "
+            + "return redis.call('SREM', KEYS[2], ARGV[1])",
+            Long.class);
+
+    // Returns {cursor, members, version} so the first page of a snapshot is consistent with its version
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> SCAN_PRESENCE_SCRIPT = new DefaultRedisScript<>(
+            "local page = redis.call('SSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2]) "
+            + "page[3] = tonumber(redis.call('GET', KEYS[2]) or '0') "
+            + "return page",
+            List.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final MessagingProperties messagingProperties;
+    private final MeterRegistry meterRegistry;
+
+    public RedisService(ReactiveStringRedisTemplate redisTemplate,
+                        MessagingProperties messagingProperties,
+                        MeterRegistry meterRegistry) {
         this.redisTemplate = redisTemplate;
+        this.messagingProperties = messagingProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Get one page of connected users starting at the given cursor ("0" for the first page)
+     */
+    public CompletableFuture<PresencePage> getConnectedUsersPage(String cursor) {
+        return timed(meterRegistry, "presence-page", scanPresence(cursor))
+                .exceptionally(e -> {
+                    log.error("Error scanning presence index from cursor {}: {}", cursor, e.getMessage());
+                    return new PresencePage(Collections.emptyList(), "0", 0L);
+                });
+    }
+
+    /**
+     * Get the servers hosting a user's sessions, leaving out those whose heartbeat has lapsed.
+     * Completes with an empty list if the user is offline.
+     */
+    public CompletableFuture<List<String>> getUserServers(String userId) {
+        return timed(meterRegistry, "lookup", lookup(userKey(userId)))
+                .handle((servers, e) -> {
+                    if (e != null) {
+                        log.error("Error getting servers for user {} from Redis: {}", userId, e.getMessage());
+                        return List.of();
+                    }
+                    return servers != null ? servers : List.of();
+                });
+    }
+
+    /**
+     * Remove one of a user's sessions on a server. The server stays among the user's routes while
+     * it hosts other sessions, and the user stays in the presence index while connected anywhere.
+     * Completes with the new presence version, or 0 if the user did not leave the index.
+     */
+    public CompletableFuture<Long> removeUserSession(String userId, String serverId) {
+        Mono<Long> script = redisTemplate.execute(REMOVE_SESSION_SCRIPT,
+                List.of(userKey(userId), PRESENCE_USERS_KEY, PRESENCE_SERVER_PREFIX + serverId, PRESENCE_VERSION_KEY),
+                List.of(userId, serverId, PRESENCE_CHANNEL, ROUTING_CHANNEL)).next();
+        return timed(meterRegistry, "unregister", script)
+                .handle((version, e) -> {
+                    if (e != null) {
+                        log.error("Error removing session of user {} on server {} from Redis: {}",
+                                userId, serverId, e.getMessage());
+                        return 0L;
+                    }
+                    log.debug("Removed a session of user {} on server {}", userId, serverId);
+                    return version != null ? version : 0L;
+                });
+    }
+
+    /**
+     * Add a session of a user on a server, routing the user there and adding them to the presence index.
+     * Completes with the new presence version, or 0 if the user was already present.
+     */
+    public CompletableFuture<Long> addUserSession(String userId, String serverId) {
+        MessagingProperties.Presence presence = messagingProperties.getPresence();
+        Mono<Long> script = redisTemplate.execute(ADD_SESSION_SCRIPT,
+                List.of(userKey(userId), PRESENCE_USERS_KEY, PRESENCE_SERVER_PREFIX + serverId, PRESENCE_VERSION_KEY,
+                        PRESENCE_NODES_KEY, HEARTBEAT_PREFIX + serverId),
+                List.of(userId, serverId, PRESENCE_CHANNEL, ROUTING_CHANNEL,
+                        String.valueOf(presence.getLeaseTtl().toMillis()),
+                        String.valueOf(presence.getHeartbeatTtl().toMillis()))).next();
+        return timed(meterRegistry, "register", script)
+                .handle((version, e) -> {
+                    if (e != null) {
+                        log.error("Error adding session of user {} on server {} to Redis: {}",
+                                userId, serverId, e.getMessage());
+                        return 0L;
+                    }
+                    log.debug("Added a session of user {} on server {}", userId, serverId);
+                    return version != null ? version : 0L;
+                });
+    }
+
+    /**
+     * Get the servers with at least one session in a room, leaving out those whose heartbeat has
+     * lapsed. Completes with an empty list if nobody is in the room.
+     */
+    public CompletableFuture<List<String>> getRoomServers(String roomId) {
+        return timed(meterRegistry, "room-lookup", lookup(roomKey(roomId)))
+                .handle((servers, e) -> {
+                    if (e != null) {
+                        log.error("Error getting servers of room {} from Redis: {}", roomId, e.getMessage());
+                        return List.of();
+                    }
+                    return servers != null ? servers : List.of();
+                });
+    }
+
+    /**
+     * Add a server to a room, once its first session has joined it.
+     * Completes with whether the server was not in the room yet.
+     */
+    public CompletableFuture<Boolean> addRoomServer(String roomId, String serverId) {
+        return updateRoom(JOIN_ROOM_SCRIPT, "room-join", roomId, serverId);
+    }
+
+    /**
+     * Remove a server from a room, once its last session there has left.
+     * Completes with whether the server was in the room.
+     */
+    public CompletableFuture<Boolean> removeRoomServer(String roomId, String serverId) {
+        return updateRoom(LEAVE_ROOM_SCRIPT, "room-leave", roomId, serverId);
+    }
+
+    private CompletableFuture<Boolean> updateRoom(RedisScript<Long> update, String operation,
+                                                  String roomId, String serverId) {
+        Mono<Long> script = redisTemplate.execute(update,
+                List.of(roomKey(roomId), ROOM_SERVER_PREFIX + serverId),
+                List.of(roomId, serverId, ROOM_CHANNEL)).next();
+        return timed(meterRegistry, operation, script)
+                .handle((changed, e) -> {
+                    if (e != null) {
+                        log.error("Error updating room {} for server {} in Redis: {}", roomId, serverId, e.getMessage());
+                        return false;
+                    }
+                    return changed != null && changed == 1L;
+                });
     }
 
     /**
-     * Get all connected users from Redis
+     * Refreshes a node's heartbeat and lists it among the live nodes
      */
-    @Async
-    public CompletableFuture<List<String>> getAllConnectedUsers() {
-        List<String> connectedUsers = new ArrayList<>();
-        try {
-            Set<String> keys = redisTemplate.keys("user:*:server");
-            if (keys != null && !keys.isEmpty()) {
-                for (String key : keys) {
-                    String userId = key.split(":")[1];
-                    connectedUsers.add(userId);
-                }
+    public CompletableFuture<Void> heartbeat(String serverId) {
+        Mono<Long> script = redisTemplate.execute(HEARTBEAT_SCRIPT,
+                List.of(HEARTBEAT_PREFIX + serverId, PRESENCE_NODES_KEY),
+                List.of(serverId, String.valueOf(messagingProperties.getPresence().getHeartbeatTtl().toMillis()))).next();
+        return timed(meterRegistry, "heartbeat", script)
+                .handle((added, e) -> {
+                    if (e != null) {
+                        log.error("Error refreshing heartbeat of server {}: {}", serverId, e.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Renews the routing leases of the users hosted on a node, given with their session counts
+     * there. The keys go out in batches whose calls share the connection, so a whole node costs
+     * a handful of round trips at most. Completes with the users whose route to the node had
+     * lapsed and was restored.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<List<String>> renewLeases(String serverId, Map<String, Integer> sessionCounts) {
+        MessagingProperties.Presence presence = messagingProperties.getPresence();
+        int batchSize = Math.max(1, presence.getLeaseBatchSize());
+        List<String> header = List.of(serverId, String.valueOf(presence.getLeaseTtl().toMillis()),
+                PRESENCE_CHANNEL, ROUTING_CHANNEL);
+
+        List<Mono<List<String>>> batches = new ArrayList<>();
+        List<String> keys = null;
+        List<String> args = null;
+        for (Map.Entry<String, Integer> entry : sessionCounts.entrySet()) {
+            if (keys == null) {
+                keys = new ArrayList<>(List.of(PRESENCE_USERS_KEY, PRESENCE_SERVER_PREFIX + serverId, PRESENCE_VERSION_KEY));
+                args = new ArrayList<>(header);
+            }
+            keys.add(userKey(entry.getKey()));
+            args.add(entry.getKey());
+            args.add(String.valueOf(entry.getValue()));
+            if (keys.size() - 3 == batchSize) {
+                batches.add(redisTemplate.execute(RENEW_LEASES_SCRIPT, keys, args).next().map(restored -> (List<String>) restored));
+                keys = null;
             }
-        } catch (Exception e) {
-            log.error("Error getting connected users from Redis: {}", e.getMessage());
         }
-        return CompletableFuture.completedFuture(connectedUsers);
+        if (keys != null) {
+            batches.add(redisTemplate.execute(RENEW_LEASES_SCRIPT, keys, args).next().map(restored -> (List<String>) restored));
+        }
+
+        Mono<List<String>> renewal = Flux.merge(batches).flatMapIterable(restored -> restored).collectList();
+        return timed(meterRegistry, "renew", renewal)
+                .exceptionally(e -> {
+                    log.error("Error renewing {} leases of server {}: {}", sessionCounts.size(), serverId, e.getMessage());
+                    return List.of();
+                });
     }
 
     /**
-     * Get the server ID for a specific user
+     * Drops the presence entries of every node whose heartbeat has lapsed.
+     * Completes with the number of users that were routed to them.
      */
-    @Async
-    public CompletableFuture<String> getUserServer(String userId) {
-        try {
-            String serverId = redisTemplate.opsForValue().get("user:" + userId + ":server");
-            return CompletableFuture.completedFuture(serverId);
-        } catch (Exception e) {
-            log.error("Error getting server for user {} from Redis: {}", userId, e.getMessage());
-            return CompletableFuture.completedFuture(null);
-        }
+    public CompletableFuture<Long> reapLapsedNodes() {
+        Flux<String> lapsed = redisTemplate.opsForSet().members(PRESENCE_NODES_KEY)
+                .filterWhen(node -> redisTemplate.hasKey(HEARTBEAT_PREFIX + node).map(alive -> !alive));
+        return reap(lapsed, true);
     }
 
     /**
-     * Remove the server mapping for a user
+     * Drops the presence entries a node left behind, such as before that node starts serving
+     * again under the same server ID. Completes with the number of users that were routed to it.
      */
-    @Async
-    public CompletableFuture<Void> removeUserServer(String userId) {
-        try {
-            redisTemplate.delete("user:" + userId + ":server");
-            log.info("Removed server mapping for user {}", userId);
-        } catch (Exception e) {
-            log.error("Error removing server mapping for user {} from Redis: {}", userId, e.getMessage());
-        }
-        return CompletableFuture.completedFuture(null);
+    public CompletableFuture<Long> reapNode(String serverId) {
+        return reap(Flux.just(serverId), false);
     }
 
     /**
-     * Set the server ID for a specific user
+     * Walks each node's users and rooms with SSCAN and drops them a batch per script call, so
+     * Redis is never blocked for a whole node, then drops the node's sets. With onlyIfLapsed set, a
+     * node whose heartbeat comes back meanwhile is left alone from the next batch on.
      */
-    @Async
-    public CompletableFuture<Void> setUserServer(String userId, String serverId) {
-        try {
-            redisTemplate.opsForValue().set("user:" + userId + ":server", serverId);
-            log.info("Set server mapping for user {} to server {}", userId, serverId);
-        } catch (Exception e) {
-            log.error("Error setting server for user {} in Redis: {}", userId, e.getMessage());
-        }
-        return CompletableFuture.completedFuture(null);
+    private CompletableFuture<Long> reap(Flux<String> nodes, boolean onlyIfLapsed) {
+        int batchSize = Math.max(1, messagingProperties.getPresence().getLeaseBatchSize());
+        ScanOptions scan = ScanOptions.scanOptions().count(batchSize).build();
+        String lapsed = onlyIfLapsed ? "1" : "0";
+
+        Mono<Long> script = nodes.concatMap(node -> {
+            String heartbeat = HEARTBEAT_PREFIX + node;
+            Mono<Long> users = redisTemplate.opsForSet().scan(PRESENCE_SERVER_PREFIX + node, scan)
+                    .buffer(batchSize)
+                    .concatMap(batch -> {
+                        List<String> keys = new ArrayList<>(List.of(heartbeat, PRESENCE_USERS_KEY, PRESENCE_VERSION_KEY));
+                        List<String> args = new ArrayList<>(List.of(node, lapsed, PRESENCE_CHANNEL, ROUTING_CHANNEL));
+                        for (String userId : batch) {
+                            keys.add(userKey(userId));
+                            args.add(userId);
+                        }
+                        return redisTemplate.execute(REAP_USERS_SCRIPT, keys, args);
+                    })
+                    .reduce(0L, Long::sum);
+            Mono<Void> rooms = redisTemplate.opsForSet().scan(ROOM_SERVER_PREFIX + node, scan)
+                    .buffer(batchSize)
+                    .concatMap(batch -> {
+                        List<String> keys = new ArrayList<>(List.of(heartbeat));
+                        List<String> args = new ArrayList<>(List.of(node, lapsed, ROOM_CHANNEL));
+                        for (String roomId : batch) {
+                            keys.add(roomKey(roomId));
+                            args.add(roomId);
+                        }
+                        return redisTemplate.execute(REAP_ROOMS_SCRIPT, keys, args);
+                    })
+                    .then();
+            Mono<Long> forget = redisTemplate.execute(FORGET_NODE_SCRIPT,
+                    List.of(heartbeat, PRESENCE_NODES_KEY, PRESENCE_SERVER_PREFIX + node, ROOM_SERVER_PREFIX + node),
+                    List.of(node, lapsed)).next();
+            return users.flatMap(reaped -> rooms.then(forget).thenReturn(reaped));
+        }).reduce(0L, Long::sum);
+        return timed(meterRegistry, "reap", script)
+                .handle((reaped, e) -> {
+                    if (e != null) {
+                        log.error("Error reaping presence entries: {}", e.getMessage());
+                        return 0L;
+                    }
+                    return reaped != null ? reaped : 0L;
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private Mono<PresencePage> scanPresence(String cursor) {
+        int count = messagingProperties.getPresence().getPageSize();
+        return redisTemplate.execute(SCAN_PRESENCE_SCRIPT,
+                        List.of(PRESENCE_USERS_KEY, PRESENCE_VERSION_KEY), List.of(cursor, String.valueOf(count)))
+                .next()
+                .map(reply -> reply.size() < 3
+                        ? new PresencePage(Collections.emptyList(), "0", 0L)
+                        : new PresencePage(new ArrayList<>((List<String>) reply.get(1)), (String) reply.get(0),
+                                ((Number) reply.get(2)).longValue()));
+    }
+
+    /**
+     * Runs a Redis call, timing it until its reply arrives.
+     * The future fails if the call does, and completes with null if the reply is empty.
+     */
+    static <T> CompletableFuture<T> timed(MeterRegistry meterRegistry, String operation, Mono<T> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        return call.doOnSuccess(result -> sample.stop(timer(meterRegistry, operation, true)))
+                .doOnError(e -> sample.stop(timer(meterRegistry, operation, false)))
+                .toFuture();
+    }
+
+    /**
+     * Timer for one kind of Redis call; a hot-path call's round trip dwarfs the registry lookup
+     */
+    static Timer timer(MeterRegistry meterRegistry, String operation, boolean success) {
+        return Timer.builder("messaging.redis")
+                .description("Time of a Redis call made for routing, presence or the inbox")
+                .tag("operation", operation)
+                .tag("outcome", success ? "success" : "error")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Lua that collects into "live" the servers of the routes hash in KEYS[1] that host at least
+     * one session and whose heartbeat is alive. The heartbeat keys are KEYS[firstHeartbeatKey]
+     * onwards, as read by {@link #heartbeatKeys}, and their prefix is ARGV[heartbeatArg]. A server
+     * routed to since then has no key given; adding its session refreshed its heartbeat, so it
+     * counts as alive.
+     */
+    static String liveServers(int firstHeartbeatKey, int heartbeatArg) {
+        return "local beating = {} "
+                + "for i = " + firstHeartbeatKey + ", #KEYS do "
+                + "  beating[string.sub(KEYS[i], #ARGV[" + heartbeatArg + "] + 1)] = redis.call('EXISTS', KEYS[i]) == 1 "
+                + "end "
+                + "local live = {} "
+                + "local routes = redis.call('HGETALL', KEYS[1]) "
+                + "for i = 1, #routes, 2 do "
+                + "  if tonumber(routes[i + 1]) > 0 and beating[routes[i]] ~= false "
+                + "  then table.insert(live, routes[i]) end "
+                + "end ";
+    }
+
+    /**
+     * The heartbeat keys of the servers a routes or room hash points to, read ahead of a script
+     * that checks them so it only touches keys it was given
+     */
+    static Mono<List<String>> heartbeatKeys(ReactiveStringRedisTemplate redisTemplate, String serversKey) {
+        return redisTemplate.<String, String>opsForHash().keys(serversKey)
+                .map(server -> HEARTBEAT_PREFIX + server)
+                .collectList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Mono<List<String>> lookup(String serversKey) {
+        return heartbeatKeys(redisTemplate, serversKey).flatMap(heartbeats -> {
+            List<String> keys = new ArrayList<>(heartbeats.size() + 1);
+            keys.add(serversKey);
+            keys.addAll(heartbeats);
+            return redisTemplate.execute(LOOKUP_SCRIPT, keys, List.of(HEARTBEAT_PREFIX)).next()
+                    .map(servers -> (List<String>) servers);
+        });
+    }
+
+    static String userKey(String userId) {
+        return USER_KEY_PREFIX + userId + USER_KEY_SUFFIX;
+    }
+
+    static String roomKey(String roomId) {
+        return ROOM_KEY_PREFIX + roomId + ROOM_KEY_SUFFIX;
     }
 }
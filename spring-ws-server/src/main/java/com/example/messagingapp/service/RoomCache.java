@@ -0,0 +1,79 @@
+package com.example.messagingapp.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded, TTL-evicting near-cache in front of the room index in Redis: the servers with at
+ * least one member session in each room.
+ * A hit completes immediately on the calling thread; only misses go to Redis.
+ * Entries are invalidated through the rooms channel whenever a server joins or leaves a room.
+ */
+@Slf4j
+@Service
+public class RoomCache implements MessageListener {
+
+    private final RedisService redisService;
+    private final Cache<String, List<String>> cache;
+
+    public RoomCache(RedisService redisService,
+                     MessagingProperties messagingProperties,
+                     RedisMessageListenerContainer listenerContainer,
+                     MeterRegistry meterRegistry) {
+        this.redisService = redisService;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(messagingProperties.getRooms().getCacheMaxSize())
+                .expireAfterWrite(messagingProperties.getRooms().getCacheTtl())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "rooms");
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisService.ROOM_CHANNEL));
+    }
+
+    /**
+     * Get the servers hosting a room's members, consulting Redis only on a cache miss.
+     * Empty rooms are not cached, so they are looked up again on the next message.
+     */
+    public CompletableFuture<List<String>> getRoomServers(String roomId) {
+        List<String> serverIds = cache.getIfPresent(roomId);
+        if (serverIds != null) {
+            return CompletableFuture.completedFuture(serverIds);
+        }
+        return redisService.getRoomServers(roomId).thenApply(resolved -> {
+            if (!resolved.isEmpty()) {
+                cache.put(roomId, resolved);
+            }
+            return resolved;
+        });
+    }
+
+    public void invalidate(String roomId) {
+        cache.invalidate(roomId);
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String roomId = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("Invalidating cached servers of room {}", roomId);
+        invalidate(roomId);
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.messagingapp.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded, TTL-evicting near-cache in front of the users' routes in Redis: the servers hosting
+ * each user's sessions.
+ * A hit completes immediately on the calling thread; only misses go to Redis.
+ * Entries are invalidated through the routing channel whenever a mapping changes.
+ *
+ * The invalidation and the lookup it races come back on different connections, so a lookup
+ * started before an invalidation can complete after it with the old route. Each invalidation
+ * bumps a generation, counted per stripe of users, and a route is only cached if the generation
+ * read before its lookup is still current once it is in place.
+ */
+@Slf4j
+@Service
+public class RoutingCache implements MessageListener {
+
+    private static final int GENERATION_STRIPES = 4096;
+
+    private final RedisService redisService;
+    private final Cache<String, List<String>> cache;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    public RoutingCache(RedisService redisService,
+                        MessagingProperties messagingProperties,
+                        RedisMessageListenerContainer listenerContainer,
+                        MeterRegistry meterRegistry) {
+        this.redisService = redisService;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(messagingProperties.getRouting().getCacheMaxSize())
+                .expireAfterWrite(messagingProperties.getRouting().getCacheTtl())
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "routing");
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisService.ROUTING_CHANNEL));
+    }
+
+    /**
+     * Get the servers hosting a user's sessions, consulting Redis only on a cache miss.
+     * Offline users are not cached, so they are looked up again on the next message.
+     */
+    public CompletableFuture<List<String>> getUserServers(String userId) {
+        List<String> serverIds = cache.getIfPresent(userId);
+        if (serverIds != null) {
+            return CompletableFuture.completedFuture(serverIds);
+        }
+        long generation = generation(userId);
+        return redisService.getUserServers(userId).thenApply(resolved -> {
+            if (!resolved.isEmpty()) {
+                put(userId, resolved, generation);
+            }
+            return resolved;
+        });
+    }
+
+    /**
+     * The cached servers of a user, or null without looking them up
+     */
+    public List<String> getCachedUserServers(String userId) {
+        return cache.getIfPresent(userId);
+    }
+
+    /**
+     * The invalidation generation of a user, to read before looking up their routes
+     */
+    public long generation(String userId) {
+        return generations.get(stripe(userId));
+    }
+
+    /**
+     * Caches routes resolved elsewhere, such as by the offline inbox, unless the user was
+     * invalidated since the given generation was read
+     */
+    public void put(String userId, List<String> serverIds, long generation) {
+        cache.put(userId, List.copyOf(serverIds));
+        // An invalidation landing around the put either sees the entry or moved the generation
+        if (generations.get(stripe(userId)) != generation) {
+            cache.invalidate(userId);
+        }
+    }
+
+    public void invalidate(String userId) {
+        generations.incrementAndGet(stripe(userId));
+        cache.invalidate(userId);
+    }
+
+    private static int stripe(String userId) {
+        return Math.floorMod(userId.hashCode(), GENERATION_STRIPES);
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String userId = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("Invalidating cached route for user {}", userId);
+        invalidate(userId);
+    }
+}
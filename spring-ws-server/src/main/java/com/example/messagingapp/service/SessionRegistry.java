@@ -0,0 +1,168 @@
+package com.example.messagingapp.service;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjIntConsumer;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * The WebSocket sessions connected to this node, by session and by user.
+ *
+ * Each user has one compact entry: an array of their sessions, replaced as a whole whenever a
+ * device joins or leaves, so readers never see a half-applied change and take no lock. Joins and
+ * leaves go through ConcurrentHashMap.compute, which locks only the user's bin, so they are
+ * atomic per user while different users proceed in parallel: exactly one caller learns that a
+ * user gained their first session here or lost their last one.
+ */
+@Component
+public class SessionRegistry {
+
+    private static final WebSocketSession[] NO_SESSIONS = new WebSocketSession[0];
+
+    /**
+     * A registered session and the user it belongs to
+     */
+    public record Entry(String userId, WebSocketSession session) {
+    }
+
+    /**
+     * A session that left, and whether it was its user's last one on this node
+     */
+    public record Departure(String userId, boolean lastSession) {
+    }
+
+    // sessionId -> entry
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+
+    // userId -> the user's sessions here; never empty
+    private final Map<String, WebSocketSession[]> users = new ConcurrentHashMap<>();
+
+    // Every registered session, read through the entries without copying
+    private final Collection<WebSocketSession> sessionView = new AbstractCollection<>() {
+        @Override
+        public Iterator<WebSocketSession> iterator() {
+            Iterator<Entry> entries = sessions.values().iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public WebSocketSession next() {
+                    return entries.next().session();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return sessions.size();
+        }
+    };
+
+    /**
+     * Adds a session of a user
+     *
+     * @return true if it is the user's first session on this node
+     */
+    public boolean register(String userId, WebSocketSession session) {
+        sessions.put(session.getId(), new Entry(userId, session));
+        boolean[] first = new boolean[1];
+        users.compute(userId, (id, current) -> {
+            if (current == null) {
+                first[0] = true;
+                return new WebSocketSession[] {session};
+            }
+            WebSocketSession[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = session;
+            return grown;
+        });
+        return first[0];
+    }
+
+    /**
+     * Removes a session
+     *
+     * @return who left, or null if the session was not registered
+     */
+    public Departure unregister(String sessionId) {
+        Entry entry = sessions.remove(sessionId);
+        if (entry == null) {
+            return null;
+        }
+        boolean[] last = new boolean[1];
+        users.computeIfPresent(entry.userId(), (id, current) -> {
+            WebSocketSession[] remaining = without(current, entry.session());
+            if (remaining.length == 0) {
+                last[0] = true;
+                return null;
+            }
+            return remaining;
+        });
+        return new Departure(entry.userId(), last[0]);
+    }
+
+    /**
+     * The registered session with the given id, or null
+     */
+    public Entry get(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * The sessions of a user on this node; empty if there are none
+     */
+    public List<WebSocketSession> sessionsOf(String userId) {
+        WebSocketSession[] userSessions = users.get(userId);
+        return userSessions != null ? Arrays.asList(userSessions) : List.of();
+    }
+
+    public boolean isConnected(String userId) {
+        return users.containsKey(userId);
+    }
+
+    /**
+     * Passes every user with a session here to the consumer, with their number of sessions
+     */
+    public void forEachUser(ObjIntConsumer<String> consumer) {
+        users.forEach((userId, userSessions) -> consumer.accept(userId, userSessions.length));
+    }
+
+    /**
+     * Every session registered on this node; a live view, not a copy
+     */
+    public Collection<WebSocketSession> sessions() {
+        return sessionView;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public int userCount() {
+        return users.size();
+    }
+
+    private static WebSocketSession[] without(WebSocketSession[] current, WebSocketSession session) {
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == session) {
+                if (current.length == 1) {
+                    return NO_SESSIONS;
+                }
+                WebSocketSession[] shrunk = new WebSocketSession[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                return shrunk;
+            }
+        }
+        return current;
+    }
+}
@@ -2,192 +2,366 @@ package com.example.messagingapp.service;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.SignalEnvelope;
 import com.example.messagingapp.model.WebRTCSignal;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * WebRTC call signaling across the cluster.
+ *
+ * Signals are written straight to the peer's sessions on this node. The peer's other nodes, one
+ * per device connected elsewhere, are looked up through the routing cache and the signal is
+ * published on each of their Redis signaling channels, which bypasses Kafka for lower latency.
+ * Trickle ICE candidates bound for a remote peer are held for a short window and relayed as one
+ * envelope. Call state lives in the shared {@link CallRegistry}.
+ */
 @Slf4j
 @Service
-@RequiredArgsConstructor
-public class VideoCallService {
-    
-    private final ObjectMapper objectMapper;
-    
-    // Store active calls: callId -> {caller, callee}
-    private final Map<String, Map<String, String>> activeCalls = new ConcurrentHashMap<>();
-    
+public class VideoCallService implements MessageListener {
+
+    static final String SIGNAL_CHANNEL_PREFIX = "signals:";
+
+    private final MessageCodec messageCodec;
+    private final CallRegistry callRegistry;
+    private final RoutingCache routingCache;
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final ServerProperties serverProperties;
+    private final SessionRegistry sessionRegistry;
+    private final TaskScheduler taskScheduler;
+    private final MessagingProperties.Signaling signaling;
+
+    // ICE candidates waiting to be relayed: "serverId|userId" -> candidates. Guarded by itself
+    private final Map<String, List<WebRTCSignal>> pendingCandidates = new HashMap<>();
+
+    public VideoCallService(MessageCodec messageCodec,
+                            CallRegistry callRegistry,
+                            RoutingCache routingCache,
+                            ReactiveStringRedisTemplate redisTemplate,
+                            ServerProperties serverProperties,
+                            SessionRegistry sessionRegistry,
+                            TaskScheduler taskScheduler,
+                            MessagingProperties messagingProperties,
+                            RedisMessageListenerContainer listenerContainer) {
+        this.messageCodec = messageCodec;
+        this.callRegistry = callRegistry;
+        this.routingCache = routingCache;
+        this.redisTemplate = redisTemplate;
+        this.serverProperties = serverProperties;
+        this.sessionRegistry = sessionRegistry;
+        this.taskScheduler = taskScheduler;
+        this.signaling = messagingProperties.getSignaling();
+        listenerContainer.addMessageListener(this, new ChannelTopic(SIGNAL_CHANNEL_PREFIX + serverProperties.getServerId()));
+    }
+
     /**
      * Process WebRTC signal and route to the appropriate recipient
      */
-    public void processSignal(WebRTCSignal signal, String userId, 
-                             Map<String, Map<String, WebSocketSession>> userSessionsMap) throws IOException {
-        
+    public void processSignal(WebRTCSignal signal, String userId) {
+
         // Ensure signal has timestamp
         if (signal.getTimestamp() == null) {
             signal.setTimestamp(Instant.now());
         }
-        
+
         // Ensure sender info is set
         signal.setFrom(userId);
-        
+
         log.info("Processing WebRTC signal: {} from: {} to: {}", signal.getType(), signal.getFrom(), signal.getTo());
-        
+
         switch (signal.getType()) {
             case "call-request":
-                handleCallRequest(signal, userSessionsMap);
+                handleCallRequest(signal);
                 break;
-                
+
             case "call-response":
-                handleCallResponse(signal, userSessionsMap);
+                handleCallResponse(signal);
                 break;
-                
+
             case "call-end":
-                handleCallEnd(signal, userSessionsMap);
+                handleCallEnd(signal);
                 break;
-                
+
             case "offer":
             case "answer":
             case "ice-candidate":
-                relaySignal(signal, userSessionsMap);
+                relaySignal(signal);
                 break;
-                
+
             default:
                 log.warn("Unknown WebRTC signal type: {}", signal.getType());
         }
     }
-    
+
+    /**
+     * Ends every call a user was part of and tells the other peers; called when the user's
+     * last session in the cluster closes
+     */
+    public void endCallsFor(String userId) {
+        callRegistry.callsOf(userId).thenAccept(callIds -> {
+            for (String callId : callIds) {
+                callRegistry.end(callId).thenAccept(call -> {
+                    if (call == null) {
+                        return;
+                    }
+                    log.info("Ending call {} after {} disconnected", callId, userId);
+                    relaySignal(WebRTCSignal.builder()
+                        .type("call-end")
+                        .from(userId)
+                        .to(call.peerOf(userId))
+                        .callId(callId)
+                        .timestamp(Instant.now())
+                        .build());
+                });
+            }
+        });
+    }
+
     /**
      * Handle initial call request
      */
-    private void handleCallRequest(WebRTCSignal signal, 
-                                  Map<String, Map<String, WebSocketSession>> userSessionsMap) throws IOException {
+    private void handleCallRequest(WebRTCSignal signal) {
         String callId = UUID.randomUUID().toString();
         signal.setCallId(callId);
-        
-        // Store call info
-        Map<String, String> callInfo = new ConcurrentHashMap<>();
-        callInfo.put("caller", signal.getFrom());
-        callInfo.put("callee", signal.getTo());
-        activeCalls.put(callId, callInfo);
-        
-        // Forward to recipient
-        relaySignal(signal, userSessionsMap);
+
+        // Store call info, then forward to recipient
+        callRegistry.register(callId, signal.getFrom(), signal.getTo())
+            .thenRun(() -> relaySignal(signal));
     }
-    
+
     /**
      * Handle response to call request (accept/reject)
      */
-    private void handleCallResponse(WebRTCSignal signal, 
-                                   Map<String, Map<String, WebSocketSession>> userSessionsMap) throws IOException {
+    private void handleCallResponse(WebRTCSignal signal) {
         String callId = signal.getCallId();
-        
-        if (callId != null && activeCalls.containsKey(callId)) {
-            if (Boolean.TRUE.equals(signal.getAccepted())) {
-                log.info("Call accepted: {}", callId);
-                // Call continues, relay the response
-                relaySignal(signal, userSessionsMap);
-            } else {
-                log.info("Call rejected: {}", callId);
-                // Call rejected, clean up
-                activeCalls.remove(callId);
-                relaySignal(signal, userSessionsMap);
-            }
+        if (callId == null) {
+            log.warn("Received call response without a call ID");
+            return;
+        }
+
+        if (Boolean.TRUE.equals(signal.getAccepted())) {
+            callRegistry.accept(callId).thenAccept(known -> {
+                if (known) {
+                    log.info("Call accepted: {}", callId);
+                    // Call continues, relay the response
+                    relaySignal(signal);
+                } else {
+                    log.warn("Received call response for unknown call ID: {}", callId);
+                }
+            });
         } else {
-            log.warn("Received call response for unknown call ID: {}", callId);
+            // Call rejected, clean up
+            callRegistry.end(callId).thenAccept(call -> {
+                if (call != null) {
+                    log.info("Call rejected: {}", callId);
+                    relaySignal(signal);
+                } else {
+                    log.warn("Received call response for unknown call ID: {}", callId);
+                }
+            });
         }
     }
-    
+
     /**
      * Handle call end
      */
-    private void handleCallEnd(WebRTCSignal signal, 
-                              Map<String, Map<String, WebSocketSession>> userSessionsMap) throws IOException {
+    private void handleCallEnd(WebRTCSignal signal) {
         String callId = signal.getCallId();
-        
-        if (callId != null && activeCalls.containsKey(callId)) {
-            log.info("Ending call: {}", callId);
+
+        if (callId != null) {
             // Clean up call
-            activeCalls.remove(callId);
+            callRegistry.end(callId).thenAccept(call -> {
+                if (call != null) {
+                    log.info("Ending call: {}", callId);
+                }
+            });
         }
-        
+
         // Relay end signal
-        relaySignal(signal, userSessionsMap);
+        relaySignal(signal);
     }
-    
+
     /**
-     * Relay signal to recipient
+     * Relay signal to recipient, on this node or through the recipient's node
      */
-    private void relaySignal(WebRTCSignal signal, 
-                            Map<String, Map<String, WebSocketSession>> userSessionsMap) throws IOException {
+    private void relaySignal(WebRTCSignal signal) {
         String recipientId = signal.getTo();
-        
+
         if (recipientId == null || recipientId.isEmpty()) {
             log.warn("Cannot relay signal: no recipient specified");
             return;
         }
-        
-        Map<String, WebSocketSession> recipientSessions = userSessionsMap.get(recipientId);
-        if (recipientSessions == null || recipientSessions.isEmpty()) {
-            log.warn("Cannot relay signal: no sessions found for recipient {}", recipientId);
-            
-            // If this was a call request, send back rejection
-            if ("call-request".equals(signal.getType())) {
-                WebRTCSignal rejection = WebRTCSignal.builder()
-                    .type("call-response")
-                    .from(recipientId)
-                    .to(signal.getFrom())
-                    .callId(signal.getCallId())
-                    .accepted(false)
-                    .timestamp(Instant.now())
-                    .build();
-                
-                // Send rejection to caller
-                sendSignalToUser(rejection, signal.getFrom(), userSessionsMap);
-                
-                // Remove the call
-                if (signal.getCallId() != null) {
-                    activeCalls.remove(signal.getCallId());
+
+        // A peer connected from several devices gets the signal on each of them
+        boolean deliveredHere = deliverLocally(signal);
+        routingCache.getUserServers(recipientId).thenAccept(serverIds -> {
+            List<String> remoteServerIds = serverIds.stream()
+                .filter(serverId -> !serverId.equals(serverProperties.getServerId()))
+                .toList();
+            if (remoteServerIds.isEmpty()) {
+                if (!deliveredHere) {
+                    log.warn("Cannot relay signal: no sessions found for recipient {}", recipientId);
+                    rejectUnreachableCall(signal);
+                }
+                return;
+            }
+            for (String serverId : remoteServerIds) {
+                if ("ice-candidate".equals(signal.getType())) {
+                    bufferCandidate(serverId, signal);
+                } else {
+                    // Candidates already waiting for this peer go first to keep signal order
+                    List<WebRTCSignal> signals = takePendingCandidates(batchKey(serverId, recipientId));
+                    signals.add(signal);
+                    publish(serverId, signals);
                 }
             }
+        });
+    }
+
+    /**
+     * If a call request could not reach its callee on any server, answer the caller with a
+     * rejection. Only the caller's node decides this; a node relaying the request never does.
+     */
+    private void rejectUnreachableCall(WebRTCSignal signal) {
+        if (!"call-request".equals(signal.getType())) {
             return;
         }
-        
-        // Convert signal to JSON
-        String jsonSignal = objectMapper.writeValueAsString(signal);
-        
-        // Send to all sessions of the recipient
-        for (WebSocketSession session : recipientSessions.values()) {
+
+        WebRTCSignal rejection = WebRTCSignal.builder()
+            .type("call-response")
+            .from(signal.getTo())
+            .to(signal.getFrom())
+            .callId(signal.getCallId())
+            .accepted(false)
+            .timestamp(Instant.now())
+            .build();
+
+        // Remove the call, then send rejection to caller
+        if (signal.getCallId() != null) {
+            callRegistry.end(signal.getCallId());
+        }
+        relaySignal(rejection);
+    }
+
+    /**
+     * Send a signal to every local session of its recipient, each in its negotiated wire format
+     *
+     * @return false if the recipient has no sessions on this node
+     */
+    private boolean deliverLocally(WebRTCSignal signal) {
+        List<WebSocketSession> recipientSessions = sessionRegistry.sessionsOf(signal.getTo());
+        if (recipientSessions.isEmpty()) {
+            return false;
+        }
+
+        for (WebSocketSession session : recipientSessions) {
             if (session.isOpen()) {
-                session.sendMessage(new TextMessage(jsonSignal));
+                try {
+                    session.sendMessage(messageCodec.toFrame(signal, WireFormat.of(session)));
+                } catch (IOException e) {
+                    log.error("Error sending signal to session {}: {}", session.getId(), e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void bufferCandidate(String serverId, WebRTCSignal signal) {
+        String key = batchKey(serverId, signal.getTo());
+        List<WebRTCSignal> full = null;
+        boolean first;
+        synchronized (pendingCandidates) {
+            List<WebRTCSignal> batch = pendingCandidates.get(key);
+            first = batch == null;
+            if (first) {
+                batch = new ArrayList<>();
+                pendingCandidates.put(key, batch);
             }
+            batch.add(signal);
+            if (batch.size() >= signaling.getIceBatchMaxSize()) {
+                full = pendingCandidates.remove(key);
+            }
+        }
+
+        if (full != null) {
+            publish(serverId, full);
+        } else if (first) {
+            taskScheduler.schedule(() -> flushCandidates(serverId, key),
+                Instant.now().plusMillis(signaling.getIceBatchWindowMs()));
+        }
+    }
+
+    private void flushCandidates(String serverId, String key) {
+        List<WebRTCSignal> batch = takePendingCandidates(key);
+        if (!batch.isEmpty()) {
+            publish(serverId, batch);
+        }
+    }
+
+    private List<WebRTCSignal> takePendingCandidates(String key) {
+        List<WebRTCSignal> batch;
+        synchronized (pendingCandidates) {
+            batch = pendingCandidates.remove(key);
         }
+        return batch != null ? batch : new ArrayList<>();
     }
-    
+
     /**
-     * Send signal to specific user
+     * Publishes signals on a server's channel without waiting for Redis, since this runs on the
+     * threads completing routing lookups and on the scheduler
      */
-    private void sendSignalToUser(WebRTCSignal signal, String userId,
-                                 Map<String, Map<String, WebSocketSession>> userSessionsMap) throws IOException {
-        Map<String, WebSocketSession> userSessions = userSessionsMap.get(userId);
-        
-        if (userSessions != null && !userSessions.isEmpty()) {
-            String jsonSignal = objectMapper.writeValueAsString(signal);
-            
-            for (WebSocketSession session : userSessions.values()) {
-                if (session.isOpen()) {
-                    session.sendMessage(new TextMessage(jsonSignal));
+    private void publish(String serverId, List<WebRTCSignal> signals) {
+        String payload;
+        try {
+            payload = messageCodec.mapper(WireFormat.JSON).writeValueAsString(new SignalEnvelope(signals));
+        } catch (Exception e) {
+            log.error("Error relaying signals to server {}: {}", serverId, e.getMessage());
+            return;
+        }
+        redisTemplate.convertAndSend(SIGNAL_CHANNEL_PREFIX + serverId, payload).subscribe(
+                receivers -> log.debug("Relayed {} signal(s) for {} to server {}", signals.size(), signals.get(0).getTo(), serverId),
+                e -> log.error("Error relaying signals to server {}: {}", serverId, e.getMessage()));
+    }
+
+    /**
+     * Signals relayed to this node by the caller's or callee's node
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            SignalEnvelope envelope = messageCodec.decode(message.getBody(), SignalEnvelope.class);
+            for (WebRTCSignal signal : envelope.getSignals()) {
+                if (!deliverLocally(signal)) {
+                    // The recipient left this node after the sender resolved its route. Their
+                    // other devices may still have it, so only the sender's node, which saw every
+                    // route, may decide the call is unreachable
+                    log.warn("Dropping relayed signal {} for {}: no local session", signal.getType(), signal.getTo());
                 }
             }
+        } catch (IOException e) {
+            log.error("Error decoding relayed signals: {}", e.getMessage());
         }
     }
+
+    private static String batchKey(String serverId, String userId) {
+        return serverId + '|' + userId;
+    }
 }
@@ -18,9 +18,14 @@ document.addEventListener('DOMContentLoaded', function() {
     let currentClientId = '';
     let currentServerId = '';
     let activeChat = 'public'; // Default to public chat
+    let presenceVersion = 0; // Last presence version applied to the users list
     let conversations = {
         'public': []
     }; // Store messages by conversation
+    let historySeqs = {}; // Last history sequence seen per conversation ('public' or the peer's name)
+    let seenSeqs = {}; // Sequences already shown per conversation during this connection
+    let pendingReceipts = {}; // Time element of each direct message we sent, by message id, until delivered
+    let connectAttempts = 0; // Upgrades in a row that closed before opening, e.g. turned away by a busy server
     
     // Connect to WebSocket server
     function connect() {
@@ -51,6 +56,8 @@ document.addEventListener('DOMContentLoaded', function() {
         // Connection opened
         socket.addEventListener('open', function(event) {
             console.log('Connected to WebSocket server');
+            connectAttempts = 0;
+            event.target.everOpened = true;
             
             // Switch to chat screen
             loginScreen.style.display = 'none';
@@ -98,6 +105,11 @@ document.addEventListener('DOMContentLoaded', function() {
                     // Display welcome message
                     addInfoMessage(data.message);
                     
+                    // Catch up on every conversation we have seen on this server
+                    loadHistorySeqs();
+                    requestHistory('public');
+                    Object.keys(historySeqs).filter(chat => chat !== 'public').forEach(requestHistory);
+                    
                     // Update users list if available
                     if (data.additionalData && data.additionalData.connectedUsers) {
                         console.log('Received connected users from additionalData:', data.additionalData.connectedUsers);
@@ -108,6 +120,14 @@ document.addEventListener('DOMContentLoaded', function() {
                     } else {
                         console.log('No connected users found in message:', data);
                     }
+                    
+                    // The welcome message only carries the first page of users
+                    if (data.additionalData) {
+                        presenceVersion = data.additionalData.presenceVersion || 0;
+                        if (data.additionalData.usersCursor !== '0') {
+                            requestUserListPage(data.additionalData.usersCursor);
+                        }
+                    }
                     break;
                     
                 case 'status':
@@ -122,22 +142,8 @@ document.addEventListener('DOMContentLoaded', function() {
                     console.log('Updated connections count from status:', statusClients);
                     break;
                     
-                case 'user-joined':
-                    addInfoMessage(`${data.userId} joined the chat`);
-                    // Increment connection count when user joins
-                    let currentCount = parseInt(connectionCount.textContent.split(':')[1].trim()) || 0;
-                    connectionCount.textContent = `Connections: ${currentCount + 1}`;
-                    console.log('User joined, incrementing count to:', currentCount + 1);
-                    break;
-                    
-                case 'user-left':
-                    addInfoMessage(`${data.userId} left the chat`);
-                    // Decrement connection count when user leaves
-                    let currentLeftCount = parseInt(connectionCount.textContent.split(':')[1].trim()) || 0;
-                    if (currentLeftCount > 0) {
-                        connectionCount.textContent = `Connections: ${currentLeftCount - 1}`;
-                        console.log('User left, decrementing count to:', currentLeftCount - 1);
-                    }
+                case 'presence-delta':
+                    applyPresenceDelta(data.additionalData ? data.additionalData.events : null);
                     break;
                     
                 case 'user-list':
@@ -183,15 +189,22 @@ document.addEventListener('DOMContentLoaded', function() {
                     
                     console.log('Updating users list in UI with:', userList);
                     
-                    // Remove all existing user chat options
-                    while (usersList.firstChild) {
-                        usersList.removeChild(usersList.firstChild);
+                    // The first page of a snapshot replaces the list and resets the presence version;
+                    // later pages are appended
+                    const isPage = data.additionalData && data.additionalData.page;
+                    if (!isPage || data.additionalData.first) {
+                        while (usersList.firstChild) {
+                            usersList.removeChild(usersList.firstChild);
+                        }
+                    }
+                    if (isPage && data.additionalData.first) {
+                        presenceVersion = data.additionalData.version || 0;
                     }
                     
                     // Add each user to the list (excluding current user)
                     userList.forEach(user => {
                         console.log('Processing user:', user, 'Current username:', username);
-                        if (user !== username) {
+                        if (user !== username && !usersList.querySelector(`[data-chat="${user}"]`)) {
                             console.log('Adding user to UI:', user);
                             const userElement = createUserElement(user);
                             usersList.appendChild(userElement);
@@ -199,6 +212,10 @@ document.addEventListener('DOMContentLoaded', function() {
                     });
                     
                     console.log('Users list update complete. Users in DOM:', usersList.childElementCount);
+                    
+                    if (isPage && data.additionalData.cursor !== '0') {
+                        requestUserListPage(data.additionalData.cursor);
+                    }
                     break;
                     
                 case 'error':
@@ -206,13 +223,42 @@ document.addEventListener('DOMContentLoaded', function() {
                     break;
                     
                 case 'sent':
-                    // Optional: Add visual feedback that message was sent
+                    // Our own direct message was accepted by the broker and stored at this sequence
+                    if (data.seq) {
+                        noteSeq(data.recipientId, data.seq);
+                    }
+                    markReceipt(data.messageId, '\u2713', false);
+                    break;
+                    
+                case 'delivered':
+                    // Our direct messages reached one of the recipient's devices, several per receipt
+                    const delivered = data.additionalData && data.additionalData.messageIds;
+                    (Array.isArray(delivered) ? delivered : []).forEach(id => markReceipt(id, '\u2713\u2713', true));
+                    break;
+                    
+                case 'history':
+                    applyHistoryPage(data.additionalData);
+                    break;
+                    
+                case 'inbox':
+                    // Direct messages sent to us while we were offline, several per frame
+                    const pending = data.additionalData && data.additionalData.messages;
+                    (Array.isArray(pending) ? pending : []).forEach(message => {
+                        if (message.seq) {
+                            noteSeq(message.userId, message.seq);
+                        }
+                        addChatMessage(message.message, message.userId, message.timestamp, false, message.userId);
+                    });
                     break;
                     
                 default:
                     // Handle regular chat message
                     if (data.message) {
                         const isSelf = data.userId === username;
+                        // The server we are connected to numbers every message it hands us
+                        if (data.seq) {
+                            noteSeq(data.recipientId ? (isSelf ? data.recipientId : data.userId) : 'public', data.seq);
+                        }
                         // Only add message to UI if it's not from current user (to avoid duplicates)
                         // We already added self messages in the sendMessage function
                         if (!isSelf) {
@@ -226,6 +272,15 @@ document.addEventListener('DOMContentLoaded', function() {
         socket.addEventListener('close', function(event) {
             addInfoMessage('Disconnected from server');
             console.log('Disconnected from WebSocket server');
+            
+            // A server at its handshake limit turns upgrades away; retry with a growing,
+            // jittered delay so a crowd of clients does not come back all at once
+            if (!event.target.everOpened && connectAttempts < 5) {
+                const delay = Math.min(30000, 1000 * 2 ** connectAttempts) * (0.5 + Math.random());
+                connectAttempts++;
+                console.log(`Retrying connection in ${Math.round(delay)} ms`);
+                setTimeout(connect, delay);
+            }
         });
         
         // Connection error
@@ -235,6 +290,121 @@ document.addEventListener('DOMContentLoaded', function() {
         });
     }
     
+    // Apply versioned join/leave events in order; a missing version means we lost
+    // an update, so fetch a fresh snapshot instead of guessing
+    function applyPresenceDelta(events) {
+        if (!Array.isArray(events)) {
+            return;
+        }
+        
+        for (const event of events) {
+            if (event.version <= presenceVersion) {
+                continue; // Already reflected in our snapshot
+            }
+            if (event.version !== presenceVersion + 1) {
+                console.log('Presence version gap, expected', presenceVersion + 1, 'got', event.version);
+                requestUserListPage('0');
+                return;
+            }
+            presenceVersion = event.version;
+            
+            let count = parseInt(connectionCount.textContent.split(':')[1]) || 0;
+            if (event.action === 'joined') {
+                addInfoMessage(`${event.userId} joined the chat`);
+                if (event.userId !== username && !usersList.querySelector(`[data-chat="${event.userId}"]`)) {
+                    usersList.appendChild(createUserElement(event.userId));
+                }
+                connectionCount.textContent = `Connections: ${count + 1}`;
+            } else if (event.action === 'left') {
+                addInfoMessage(`${event.userId} left the chat`);
+                const userElement = usersList.querySelector(`[data-chat="${event.userId}"]`);
+                if (userElement) {
+                    usersList.removeChild(userElement);
+                }
+                if (count > 0) {
+                    connectionCount.textContent = `Connections: ${count - 1}`;
+                }
+            }
+        }
+    }
+    
+    // History sequence numbers are kept per server, since each server numbers the messages it stored
+    function historyStorageKey() {
+        return `history:${username}:${currentServerId}`;
+    }
+    
+    function loadHistorySeqs() {
+        try {
+            historySeqs = JSON.parse(localStorage.getItem(historyStorageKey())) || {};
+        } catch (e) {
+            historySeqs = {};
+        }
+        seenSeqs = {};
+    }
+    
+    function saveHistorySeqs() {
+        localStorage.setItem(historyStorageKey(), JSON.stringify(historySeqs));
+    }
+    
+    // Record a live message's sequence; only a contiguous one moves the sync point, so a
+    // missed message is still fetched by the next history sync
+    function noteSeq(chat, seq) {
+        (seenSeqs[chat] = seenSeqs[chat] || new Set()).add(seq);
+        if (!(chat in historySeqs)) {
+            historySeqs[chat] = 0; // Sync this conversation on the next connect
+        }
+        if (seq === historySeqs[chat] + 1) {
+            historySeqs[chat] = seq;
+        }
+        saveHistorySeqs();
+    }
+    
+    // Ask for the messages of a conversation after the last one we have seen
+    function requestHistory(chat) {
+        if (!socket || socket.readyState !== WebSocket.OPEN) {
+            return;
+        }
+        socket.send(JSON.stringify({
+            type: 'history-sync',
+            additionalData: {
+                peer: chat === 'public' ? '' : chat,
+                afterSeq: historySeqs[chat] || 0
+            }
+        }));
+    }
+    
+    // Show the messages we missed, then ask for the next page if there is one
+    function applyHistoryPage(page) {
+        if (!page || !Array.isArray(page.messages)) {
+            return;
+        }
+        const chat = page.peer || 'public';
+        const seen = seenSeqs[chat] || new Set();
+        
+        page.messages.forEach(message => {
+            if (!seen.has(message.seq)) {
+                addChatMessage(message.message, message.userId, message.timestamp, message.userId === username, chat);
+            }
+            historySeqs[chat] = Math.max(historySeqs[chat] || 0, message.seq);
+        });
+        saveHistorySeqs();
+        
+        if (page.hasMore) {
+            requestHistory(chat);
+        }
+    }
+    
+    // Ask the server for a page of connected users ('0' starts a new snapshot)
+    function requestUserListPage(cursor) {
+        if (!cursor || !socket || socket.readyState !== WebSocket.OPEN) {
+            return;
+        }
+        socket.send(JSON.stringify({
+            type: 'user-list',
+            additionalData: { cursor: cursor }
+        }));
+    }
+    
     // Send message to server
     function sendMessage() {
         const message = messageInput.value.trim();
@@ -245,6 +415,7 @@ document.addEventListener('DOMContentLoaded', function() {
         
         const messageData = {
             type: 'chat',
+            messageId: newMessageId(),
             message: message
         };
         
@@ -257,7 +428,10 @@ document.addEventListener('DOMContentLoaded', function() {
         
         // Add message to local conversation immediately for better UX
         const timestamp = new Date().toISOString();
-        addChatMessage(message, window.displayUsername || username, timestamp, true, activeChat);
+        const messageDiv = addChatMessage(message, window.displayUsername || username, timestamp, true, activeChat);
+        if (messageData.recipientId) {
+            pendingReceipts[messageData.messageId] = messageDiv.querySelector('.time');
+        }
         
         // Clear the input field immediately after sending
         messageInput.value = '';
@@ -337,6 +511,28 @@ document.addEventListener('DOMContentLoaded', function() {
             // If not active chat, show notification on the chat option
             showUnreadNotification(targetChatId);
         }
+        return messageDiv;
+    }
+    
+    // Id sent with a message so the server's receipts can be matched to it
+    function newMessageId() {
+        if (window.crypto && crypto.randomUUID) {
+            return crypto.randomUUID();
+        }
+        return `${Date.now().toString(36)}-${Math.random().toString(36).slice(2)}`;
+    }
+    
+    // Shows a receipt mark after a sent message's time; "delivered" is final
+    function markReceipt(messageId, mark, final) {
+        const timeDiv = messageId && pendingReceipts[messageId];
+        if (!timeDiv) {
+            return;
+        }
+        timeDiv.dataset.time = timeDiv.dataset.time || timeDiv.textContent;
+        timeDiv.textContent = `${timeDiv.dataset.time} ${mark}`;
+        if (final) {
+            delete pendingReceipts[messageId];
+        }
     }
     
     // Add info message to the UI
@@ -0,0 +1,55 @@
+package com.example.messagingapp.codec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.example.messagingapp.model.ChatMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+public class MessageCodecTest {
+
+    private final MessageCodec codec = new MessageCodec(new ObjectMapper().registerModule(new JavaTimeModule()));
+
+    private final ChatMessage message = ChatMessage.builder()
+            .type("chat")
+            .message("Hello")
+            .userId("alice")
+            .recipientId("bob")
+            .serverId("server1")
+            .timestamp(Instant.parse("2024-01-01T00:00:00Z"))
+            .additionalData(Map.of("k", "v"))
+            .build();
+
+    @Test
+    public void testKafkaRoundTripInBothFormats() {
+        CodecDeserializer<ChatMessage> deserializer = new CodecDeserializer<>(codec, ChatMessage.class);
+
+        for (WireFormat format : WireFormat.values()) {
+            byte[] data = new CodecSerializer<ChatMessage>(codec, format).serialize("messages-server1", message);
+
+            assertEquals(format, WireFormat.detect(data));
+            assertEquals(message, deserializer.deserialize("messages-server1", data));
+        }
+    }
+
+    @Test
+    public void testCborIsSmallerThanJson() throws Exception {
+        assertTrue(codec.encode(message, WireFormat.CBOR).length < codec.encode(message, WireFormat.JSON).length);
+    }
+
+    @Test
+    public void testRecordsFromJsonSerializerAreStillReadable() {
+        // Shape written by Spring's JsonSerializer before the codec layer
+        byte[] legacy = " {\"type\":\"chat\",\"message\":\"Hello\"}".getBytes();
+
+        ChatMessage decoded = new CodecDeserializer<>(codec, ChatMessage.class).deserialize("messages-server1", legacy);
+
+        assertEquals("Hello", decoded.getMessage());
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.messagingapp.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testTasksRunOnNamedVirtualThreadsOrModeIsRefused() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            assertThrows(IllegalStateException.class, () -> VirtualThreads.factory("test-"));
+            return;
+        }
+
+        CompletableFuture<Thread> ran = new CompletableFuture<>();
+        VirtualThreads.perTaskExecutor("test-").execute(() -> ran.complete(Thread.currentThread()));
+
+        Thread thread = ran.get(5, TimeUnit.SECONDS);
+        assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+        assertEquals("test-0", thread.getName());
+    }
+}
@@ -1,31 +1,60 @@
 package com.example.messagingapp.handler;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.history.MessageHistoryStore;
+import com.example.messagingapp.interceptor.HandshakeAdmission;
+import com.example.messagingapp.interceptor.UserAuthHandshakeInterceptor;
 import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.HistoryPage;
+import com.example.messagingapp.model.PresenceEvent;
+import com.example.messagingapp.model.PresencePage;
+import com.example.messagingapp.model.WebRTCSignal;
+import com.example.messagingapp.service.DeliveryLatency;
 import com.example.messagingapp.service.MessageService;
+import com.example.messagingapp.service.OfflineInbox;
+import com.example.messagingapp.service.PresenceService;
 import com.example.messagingapp.service.RedisService;
 import com.example.messagingapp.service.ServerProperties;
+import com.example.messagingapp.service.SessionRegistry;
 import com.example.messagingapp.service.VideoCallService;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 public class ChatWebSocketHandlerTest {
 
     private ChatWebSocketHandler chatWebSocketHandler;
@@ -42,23 +71,49 @@ public class ChatWebSocketHandlerTest {
     @Mock
     private ServerProperties serverProperties;
     
-    @Mock
-    private ObjectMapper objectMapper;
+    private ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
     
     @Mock
     private VideoCallService videoCallService;
     
+    @Mock
+    private PresenceService presenceService;
+    
+    @Mock
+    private MessageHistoryStore messageHistoryStore;
+    
+    @Mock
+    private OfflineInbox offlineInbox;
+    
+    @Mock
+    private TaskScheduler taskScheduler;
+    
+    @Mock
+    private DeliveryDispatcher deliveryDispatcher;
+    
+    private SimpleMeterRegistry meterRegistry;
+    
+    // Receipt flushes scheduled by the delivery tracker
+    private Queue<Runnable> scheduled = new ArrayDeque<>();
+    
     @BeforeEach
-    public void setUp() {
+    public void setUp() throws Exception {
         MockitoAnnotations.openMocks(this);
         
-        chatWebSocketHandler = new ChatWebSocketHandler(objectMapper, messageService, redisService, serverProperties, videoCallService);
+        meterRegistry = new SimpleMeterRegistry();
+        MessagingProperties properties = new MessagingProperties();
+        properties.getInbox().setFrameSize(2);
+        MessageCodec messageCodec = new MessageCodec(objectMapper);
+        DeliveryTracker deliveryTracker = new DeliveryTracker(messageService,
+                new DeliveryLatency(meterRegistry), taskScheduler, serverProperties, properties);
+        chatWebSocketHandler = new ChatWebSocketHandler(messageCodec, messageService, redisService, serverProperties, videoCallService,
+                presenceService, new SessionRegistry(), new OutboundSessionFactory(properties, Runnable::run, meterRegistry),
+                new SessionFanout(messageCodec, properties, Runnable::run, meterRegistry),
+                new InboundMessageRegistry(messageCodec, meterRegistry), messageHistoryStore, offlineInbox, deliveryTracker,
+                deliveryDispatcher, properties, meterRegistry);
         
         when(serverProperties.getServerId()).thenReturn("test-server-id");
         
-        // Mock ObjectMapper behavior
-        when(objectMapper.createObjectNode()).thenReturn(new ObjectMapper().createObjectNode());
-        
         // Mock session attributes
         Map<String, Object> attributes = new HashMap<>();
         attributes.put("userId", "test-user");
@@ -66,8 +121,17 @@ public class ChatWebSocketHandlerTest {
         when(session.getId()).thenReturn("test-session-id");
         
         // Mock Redis and Message service behavior
-        when(redisService.setUserServer(anyString(), anyString())).thenReturn(CompletableFuture.completedFuture(null));
+        when(redisService.addUserSession(anyString(), anyString())).thenReturn(CompletableFuture.completedFuture(1L));
+        when(redisService.getConnectedUsersPage(anyString()))
+            .thenReturn(CompletableFuture.completedFuture(new PresencePage(List.of("test-user"), "0", 1L)));
         when(messageService.sendDirectMessage(any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(true));
+        when(offlineInbox.drain(anyString())).thenReturn(CompletableFuture.completedFuture(List.of()));
+        when(messageHistoryStore.appendAsync(anyString(), any(ChatMessage.class)))
+            .thenReturn(CompletableFuture.completedFuture(1L));
+        when(taskScheduler.schedule(any(Runnable.class), any(Instant.class))).thenAnswer(invocation -> {
+            scheduled.add(invocation.getArgument(0));
+            return null;
+        });
     }
     
     @Test
@@ -76,17 +140,49 @@ public class ChatWebSocketHandlerTest {
         ObjectNode messageNode = new ObjectMapper().createObjectNode();
         messageNode.put("type", "chat");
         messageNode.put("message", "Hello everyone!");
-        messageNode.put("recipientId", "");
+        messageNode.put("recipientId", "other-user");
         
         TextMessage textMessage = new TextMessage(messageNode.toString());
         
-        // Test the handler
+        // Test the handler on a registered session
+        chatWebSocketHandler.afterConnectionEstablished(session);
         chatWebSocketHandler.handleTextMessage(session, textMessage);
         
         // Verify message was sent to Kafka
         verify(messageService, times(1)).sendDirectMessage(any(ChatMessage.class));
     }
     
+    @Test
+    public void testHandleTextMessage_PublicMessageIsBroadcastLocallyAndToCluster() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        ObjectNode messageNode = new ObjectMapper().createObjectNode();
+        messageNode.put("type", "chat");
+        messageNode.put("message", "Hello everyone!");
+        messageNode.put("recipientId", "");
+        
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(messageNode.toString()));
+        
+        // Welcome message plus the local copy of the broadcast
+        verify(session, times(2)).sendMessage(any(TextMessage.class));
+        verify(messageService, times(1)).publishBroadcast(any(ChatMessage.class));
+    }
+    
+    @Test
+    public void testHandleTextMessage_WebRTCSignalIsRoutedToVideoCallService() throws Exception {
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        ObjectNode signalNode = new ObjectMapper().createObjectNode();
+        signalNode.put("to", "other-user");
+        signalNode.put("type", "call-request");
+        
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(signalNode.toString()));
+        
+        verify(videoCallService, times(1)).processSignal(any(WebRTCSignal.class), eq("test-user"));
+        verify(messageService, never()).sendDirectMessage(any(ChatMessage.class));
+    }
+    
     @Test
     public void testAfterConnectionEstablished() throws Exception {
         // Mock the send method on the session
@@ -96,9 +192,267 @@ public class ChatWebSocketHandlerTest {
         chatWebSocketHandler.afterConnectionEstablished(session);
         
         // Verify user-server mapping was saved
-        verify(redisService, times(1)).setUserServer(anyString(), anyString());
+        verify(redisService, times(1)).addUserSession(anyString(), anyString());
         
         // Verify an info message was sent back to the client
         verify(session, times(1)).sendMessage(any(TextMessage.class));
+        
+        // The session is counted and its queue has been drained
+        assertEquals(1.0, meterRegistry.get("messaging.sessions").gauge().value());
+        assertEquals(0.0, meterRegistry.get("messaging.outbound.queue.depth").gauge().value());
+    }
+    
+    @Test
+    public void testHandshakePermitIsHeldUntilTheConnectionIsRegistered() throws Exception {
+        HandshakeAdmission admission = new HandshakeAdmission(new MessagingProperties(), meterRegistry);
+        session.getAttributes().put(UserAuthHandshakeInterceptor.PERMIT_ATTRIBUTE, admission.tryAdmit());
+        CompletableFuture<Long> registered = new CompletableFuture<>();
+        when(redisService.addUserSession(anyString(), anyString())).thenReturn(registered);
+        
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        assertEquals(1, admission.inFlight());
+        
+        registered.complete(1L);
+        assertEquals(0, admission.inFlight());
+    }
+    
+    @Test
+    public void testPresenceDeltasAreCoalescedIntoOneFrame() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        when(presenceService.drainPendingEvents()).thenReturn(List.of(
+            new PresenceEvent(2L, "alice", "joined"),
+            new PresenceEvent(3L, "bob", "joined"),
+            new PresenceEvent(4L, "alice", "left")));
+        chatWebSocketHandler.flushPresenceDeltas();
+        
+        // Welcome message plus a single delta carrying all three events
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(2)).sendMessage(frames.capture());
+        JsonNode delta = objectMapper.readTree(frames.getValue().getPayload());
+        assertEquals("presence-delta", delta.get("type").asText());
+        assertEquals(3, delta.get("additionalData").get("events").size());
+        assertEquals(4L, delta.get("additionalData").get("version").asLong());
+    }
+    
+    @Test
+    public void testDirectMessageIsStoredAndConfirmedWhenRecipientIsOffline() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        // The offline inbox took the message
+        when(messageService.sendDirectMessage(any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(true));
+        when(messageHistoryStore.appendAsync(anyString(), any(ChatMessage.class))).thenAnswer(invocation -> {
+            invocation.getArgument(1, ChatMessage.class).setSeq(7L);
+            return CompletableFuture.completedFuture(7L);
+        });
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        ObjectNode messageNode = new ObjectMapper().createObjectNode();
+        messageNode.put("type", "chat");
+        messageNode.put("message", "Are you there?");
+        messageNode.put("recipientId", "other-user");
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(messageNode.toString()));
+        
+        verify(messageHistoryStore).appendAsync(eq("dm:other-user:test-user"), any(ChatMessage.class));
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(2)).sendMessage(frames.capture());
+        JsonNode confirmation = objectMapper.readTree(frames.getValue().getPayload());
+        assertEquals("sent", confirmation.get("type").asText());
+        assertEquals(7L, confirmation.get("seq").asLong());
+        assertFalse(confirmation.get("messageId").asText().isEmpty());
+    }
+    
+    @Test
+    public void testDirectMessageThatReachedNoRouteIsAnErrorEvenIfStored() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        when(messageService.sendDirectMessage(any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(false));
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(
+            "{\"type\":\"chat\",\"recipientId\":\"other-user\",\"message\":\"lost\"}"));
+        
+        verify(messageHistoryStore).appendAsync(eq("dm:other-user:test-user"), any(ChatMessage.class));
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(2)).sendMessage(frames.capture());
+        assertEquals("error", objectMapper.readTree(frames.getValue().getPayload()).get("type").asText());
+    }
+    
+    @Test
+    public void testHistorySyncSendsMessagesAfterLastSeenSequence() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        ChatMessage stored = ChatMessage.builder().type("chat").message("missed").userId("other-user").seq(5L).build();
+        when(messageHistoryStore.read(eq("dm:other-user:test-user"), eq(4L), anyInt()))
+            .thenReturn(new HistoryPage("dm:other-user:test-user", List.of(stored), 9L, true));
+        
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(
+            "{\"type\":\"history-sync\",\"additionalData\":{\"peer\":\"other-user\",\"afterSeq\":4}}"));
+        
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(2)).sendMessage(frames.capture());
+        JsonNode history = objectMapper.readTree(frames.getValue().getPayload());
+        assertEquals("history", history.get("type").asText());
+        assertEquals("other-user", history.get("additionalData").get("peer").asText());
+        assertEquals(5L, history.get("additionalData").get("messages").get(0).get("seq").asLong());
+        assertEquals(9L, history.get("additionalData").get("lastSeq").asLong());
+        assertEquals(true, history.get("additionalData").get("hasMore").asBoolean());
+        verify(messageHistoryStore, never()).appendAsync(anyString(), any(ChatMessage.class));
+        verify(messageHistoryStore, never()).read(eq(MessageHistoryStore.PUBLIC_CONVERSATION), anyLong(), anyInt());
+    }
+    
+    @Test
+    public void testRoomMessageReachesLocalMembersAndIsProducedOnce() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        when(redisService.addRoomServer("team", "test-server-id")).thenReturn(CompletableFuture.completedFuture(true));
+        when(redisService.removeUserSession(anyString(), anyString())).thenReturn(CompletableFuture.completedFuture(0L));
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage("{\"type\":\"room-join\",\"roomId\":\"team\"}"));
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(
+            "{\"type\":\"chat\",\"roomId\":\"team\",\"message\":\"hi team\"}"));
+        // Another room's message relayed from Kafka has no member here
+        chatWebSocketHandler.deliverMessage(ChatMessage.builder().type("chat").message("elsewhere")
+            .userId("other-user").roomId("other-room").build());
+        
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(3)).sendMessage(frames.capture());
+        assertEquals("room-joined", objectMapper.readTree(frames.getAllValues().get(1).getPayload()).get("type").asText());
+        JsonNode delivered = objectMapper.readTree(frames.getValue().getPayload());
+        assertEquals("hi team", delivered.get("message").asText());
+        assertEquals("team", delivered.get("roomId").asText());
+        verify(messageHistoryStore).appendAsync(eq("room:team"), any(ChatMessage.class));
+        verify(messageService).sendRoomMessage(any(ChatMessage.class));
+        verify(messageService, never()).publishBroadcast(any(ChatMessage.class));
+        
+        // The room's last session here leaving takes this server out of the room
+        chatWebSocketHandler.afterConnectionClosed(session, CloseStatus.NORMAL);
+        verify(redisService).removeRoomServer("team", "test-server-id");
+    }
+    
+    @Test
+    public void testRoomIsClosedToNonMembers() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(
+            "{\"type\":\"chat\",\"roomId\":\"team\",\"message\":\"let me in\"}"));
+        chatWebSocketHandler.handleTextMessage(session, new TextMessage(
+            "{\"type\":\"history-sync\",\"roomId\":\"team\",\"additionalData\":{\"afterSeq\":0}}"));
+        
+        // Neither posting to nor reading the room is allowed
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(3)).sendMessage(frames.capture());
+        assertEquals("error", objectMapper.readTree(frames.getAllValues().get(1).getPayload()).get("type").asText());
+        assertEquals("error", objectMapper.readTree(frames.getValue().getPayload()).get("type").asText());
+        verify(messageService, never()).sendRoomMessage(any(ChatMessage.class));
+        verify(messageHistoryStore, never()).appendAsync(anyString(), any(ChatMessage.class));
+        verify(messageHistoryStore, never()).read(anyString(), anyLong(), anyInt());
+    }
+    
+    @Test
+    public void testOfflineMessagesAreDeliveredInCoalescedFramesOnConnect() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        List<ChatMessage> pending = List.of(
+            ChatMessage.builder().type("chat").message("one").userId("alice").recipientId("test-user").build(),
+            ChatMessage.builder().type("chat").message("two").userId("alice").recipientId("test-user").build(),
+            ChatMessage.builder().type("chat").message("three").userId("bob").recipientId("test-user").build());
+        when(offlineInbox.drain("test-user")).thenReturn(CompletableFuture.completedFuture(pending));
+        
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        // Welcome message, then the three messages in frames of two
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(3)).sendMessage(frames.capture());
+        JsonNode first = objectMapper.readTree(frames.getAllValues().get(1).getPayload());
+        JsonNode second = objectMapper.readTree(frames.getAllValues().get(2).getPayload());
+        assertEquals("inbox", first.get("type").asText());
+        assertEquals(2, first.get("additionalData").get("messages").size());
+        assertEquals(1, first.get("additionalData").get("remaining").asInt());
+        assertEquals("three", second.get("additionalData").get("messages").get(0).get("message").asText());
+        assertEquals(0, second.get("additionalData").get("remaining").asInt());
+        verify(offlineInbox, never()).restore(anyString(), any());
+        verify(offlineInbox).acknowledge("test-user");
+    }
+    
+    @Test
+    public void testKafkaMessageForDepartedRecipientIsRedirected() throws Exception {
+        ChatMessage message = ChatMessage.builder().type("chat").message("late").userId("alice").recipientId("gone").build();
+        
+        chatWebSocketHandler.deliverMessage(message);
+        
+        verify(messageService).redirectUndelivered(message);
+    }
+    
+    @Test
+    public void testWrittenDirectMessageIsAcknowledgedToSender() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        chatWebSocketHandler.deliverMessage(ChatMessage.builder().type("chat").messageId("m1").message("hi")
+            .userId("alice").recipientId("test-user").timestamp(Instant.now()).build());
+        scheduled.forEach(Runnable::run);
+        
+        ArgumentCaptor<ChatMessage> receipt = ArgumentCaptor.forClass(ChatMessage.class);
+        verify(messageService).sendReceipt(receipt.capture());
+        assertEquals("alice", receipt.getValue().getRecipientId());
+        assertEquals(List.of("m1"), receipt.getValue().getAdditionalData().get("messageIds"));
+    }
+    
+    @Test
+    public void testDirectMessageFromAnotherServerIsStoredHereUnderThisServersSequence() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        when(messageHistoryStore.appendAsync(anyString(), any(ChatMessage.class))).thenAnswer(invocation -> {
+            invocation.getArgument(1, ChatMessage.class).setSeq(3L);
+            return CompletableFuture.completedFuture(3L);
+        });
+        chatWebSocketHandler.afterConnectionEstablished(session);
+
+        chatWebSocketHandler.deliverMessage(ChatMessage.builder().type("chat").message("hi").seq(41L)
+            .serverId("other-server").userId("alice").recipientId("test-user").build());
+        chatWebSocketHandler.deliverMessage(ChatMessage.builder().type("chat").message("local").seq(4L)
+            .serverId("test-server-id").userId("alice").recipientId("test-user").build());
+
+        // Only the message accepted elsewhere is stored again, and it arrives with this server's number
+        verify(messageHistoryStore, times(1)).appendAsync(eq("dm:alice:test-user"), any(ChatMessage.class));
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(3)).sendMessage(frames.capture());
+        assertEquals(3L, objectMapper.readTree(frames.getAllValues().get(1).getPayload()).get("seq").asLong());
+        assertEquals(4L, objectMapper.readTree(frames.getAllValues().get(2).getPayload()).get("seq").asLong());
+    }
+
+    @Test
+    public void testCallsAreOnlyEndedOnceTheUserHasLeftTheCluster() throws Exception {
+        when(redisService.removeUserSession("test-user", "test-server-id"))
+            .thenReturn(CompletableFuture.completedFuture(0L), CompletableFuture.completedFuture(9L));
+
+        // A device on another server still routes the user
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        chatWebSocketHandler.afterConnectionClosed(session, CloseStatus.NORMAL);
+        verify(videoCallService, never()).endCallsFor(anyString());
+
+        // The last device anywhere has gone
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        chatWebSocketHandler.afterConnectionClosed(session, CloseStatus.NORMAL);
+        verify(videoCallService).endCallsFor("test-user");
+    }
+
+    @Test
+    public void testReceiptIsDeliveredOnlyToTheSender() throws Exception {
+        when(session.isOpen()).thenReturn(true);
+        chatWebSocketHandler.afterConnectionEstablished(session);
+        
+        chatWebSocketHandler.deliverMessage(ChatMessage.builder().type(DeliveryTracker.RECEIPT_TYPE)
+            .userId("alice").recipientId("test-user").additionalData(Map.of("messageIds", List.of("m1"))).build());
+        chatWebSocketHandler.deliverMessage(ChatMessage.builder().type(DeliveryTracker.RECEIPT_TYPE)
+            .userId("test-user").recipientId("gone").additionalData(Map.of("messageIds", List.of("m2"))).build());
+        
+        ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, times(2)).sendMessage(frames.capture());
+        JsonNode receipt = objectMapper.readTree(frames.getValue().getPayload());
+        assertEquals("delivered", receipt.get("type").asText());
+        assertEquals("m1", receipt.get("additionalData").get("messageIds").get(0).asText());
+        verify(messageService, never()).redirectUndelivered(any());
+        verify(messageService, never()).sendReceipt(any());
     }
 }
@@ -0,0 +1,104 @@
+package com.example.messagingapp.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DeliveryDispatcherTest {
+
+    private DeliveryDispatcher dispatcher;
+
+    @BeforeEach
+    public void setUp() {
+        MessagingProperties properties = new MessagingProperties();
+        properties.getDelivery().setWorkerThreads(4);
+        dispatcher = new DeliveryDispatcher(properties, new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dispatcher.destroy();
+    }
+
+    @Test
+    public void testBatchIsDeliveredInOrderPerRecipientBeforeReturning() {
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            batch.add(ChatMessage.builder().userId("sender").recipientId("user" + (i % 10)).message(String.valueOf(i)).build());
+        }
+
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        dispatcher.dispatch(batch, message -> {
+            threads.add(Thread.currentThread().getName());
+            received.computeIfAbsent(message.getRecipientId(), k -> new ArrayList<>()).add(Integer.parseInt(message.getMessage()));
+        });
+
+        // Everything is delivered by the time dispatch returns, in order for each recipient
+        assertEquals(10, received.size());
+        for (List<Integer> sequence : received.values()) {
+            assertEquals(20, sequence.size());
+            for (int i = 1; i < sequence.size(); i++) {
+                assertTrue(sequence.get(i - 1) < sequence.get(i));
+            }
+        }
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void testFailedDeliveryDoesNotStopTheBatch() {
+        List<ChatMessage> batch = List.of(
+            ChatMessage.builder().userId("alice").message("1").build(),
+            ChatMessage.builder().userId("alice").message("2").build());
+
+        List<String> delivered = new ArrayList<>();
+        dispatcher.dispatch(batch, message -> {
+            if ("1".equals(message.getMessage())) {
+                throw new IllegalStateException("session closed");
+            }
+            delivered.add(message.getMessage());
+        });
+
+        assertEquals(List.of("2"), delivered);
+    }
+
+    @Test
+    public void testSubmittedMessageRunsBehindConsumedOnesOnTheSameLane() {
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        dispatcher.dispatch(List.of(ChatMessage.builder().userId("alice").recipientId("bob").message("consumed").build()),
+            message -> threads.add(Thread.currentThread().getName()));
+
+        ChatMessage message = ChatMessage.builder().userId("alice").recipientId("bob").message("local").build();
+        CompletableFuture<Boolean> local = dispatcher.submit(message, () -> {
+            threads.add(Thread.currentThread().getName());
+            return delivered.add(message.getMessage());
+        });
+        CompletableFuture<Boolean> failed = dispatcher.submit(ChatMessage.builder().userId("carol").build(), () -> {
+            throw new IllegalStateException("session closed");
+        });
+
+        assertTrue(local.join());
+        assertEquals(List.of("local"), delivered);
+        assertEquals(1, threads.size());
+        assertThrows(CompletionException.class, failed::join);
+    }
+}
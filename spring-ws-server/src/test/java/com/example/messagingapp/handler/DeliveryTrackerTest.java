@@ -0,0 +1,118 @@
+package com.example.messagingapp.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.scheduling.TaskScheduler;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.service.DeliveryLatency;
+import com.example.messagingapp.service.MessageService;
+import com.example.messagingapp.service.ServerProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class DeliveryTrackerTest {
+
+    private MessageService messageService;
+    private SimpleMeterRegistry meterRegistry;
+    private Queue<Runnable> scheduled;
+    private DeliveryTracker deliveryTracker;
+
+    @BeforeEach
+    public void setUp() {
+        messageService = mock(MessageService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        scheduled = new ArrayDeque<>();
+        TaskScheduler taskScheduler = mock(TaskScheduler.class);
+        when(taskScheduler.schedule(any(Runnable.class), any(Instant.class))).thenAnswer(invocation -> {
+            scheduled.add(invocation.getArgument(0));
+            return null;
+        });
+        ServerProperties serverProperties = mock(ServerProperties.class);
+        when(serverProperties.getServerId()).thenReturn("server2");
+        deliveryTracker = new DeliveryTracker(messageService, new DeliveryLatency(meterRegistry), taskScheduler,
+                serverProperties, new MessagingProperties());
+    }
+
+    @Test
+    public void testReceiptsAreBatchedPerConversation() {
+        Runnable first = deliveryTracker.startDelivery(message("m1", "alice"));
+        Runnable second = deliveryTracker.startDelivery(message("m2", "alice"));
+        Runnable other = deliveryTracker.startDelivery(message("m3", "carol"));
+
+        first.run();
+        // Only the first write to any of the recipient's sessions counts
+        first.run();
+        second.run();
+        other.run();
+
+        // One flush per conversation, and nothing is sent before the window ends
+        assertEquals(2, scheduled.size());
+        verify(messageService, never()).sendReceipt(any());
+        scheduled.forEach(Runnable::run);
+
+        ArgumentCaptor<ChatMessage> receipts = ArgumentCaptor.forClass(ChatMessage.class);
+        verify(messageService, times(2)).sendReceipt(receipts.capture());
+        ChatMessage toAlice = receipts.getAllValues().get(0);
+        assertEquals(DeliveryTracker.RECEIPT_TYPE, toAlice.getType());
+        assertEquals("bob", toAlice.getUserId());
+        assertEquals("alice", toAlice.getRecipientId());
+        assertEquals(Map.of("messageIds", List.of("m1", "m2")), toAlice.getAdditionalData());
+        assertEquals("carol", receipts.getAllValues().get(1).getRecipientId());
+    }
+
+    @Test
+    public void testEveryHopOnTheRecipientNodeIsTimed() {
+        Runnable onWritten = deliveryTracker.startDelivery(message("m1", "alice"));
+
+        assertEquals(1, latency("transit"));
+        assertEquals(0, latency("write"));
+
+        onWritten.run();
+
+        assertEquals(1, latency("write"));
+        assertEquals(1, latency("end_to_end"));
+        assertEquals(0, latency("produce"));
+    }
+
+    @Test
+    public void testInboxMessagesAreAcknowledgedWithoutTiming() {
+        deliveryTracker.acknowledgeOnWrite(List.of(message("m1", "alice"), message(null, "alice"))).run();
+        scheduled.forEach(Runnable::run);
+
+        ArgumentCaptor<ChatMessage> receipt = ArgumentCaptor.forClass(ChatMessage.class);
+        verify(messageService).sendReceipt(receipt.capture());
+        assertEquals(Map.of("messageIds", List.of("m1")), receipt.getValue().getAdditionalData());
+        assertEquals(0, latency("end_to_end"));
+    }
+
+    private long latency(String hop) {
+        return meterRegistry.get("messaging.delivery.latency").tag("hop", hop).timer().count();
+    }
+
+    private static ChatMessage message(String messageId, String senderId) {
+        return ChatMessage.builder()
+                .type("chat")
+                .messageId(messageId)
+                .userId(senderId)
+                .recipientId("bob")
+                .timestamp(Instant.now())
+                .build();
+    }
+}
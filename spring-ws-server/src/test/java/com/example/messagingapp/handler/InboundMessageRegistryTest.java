@@ -0,0 +1,103 @@
+package com.example.messagingapp.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.WebRTCSignal;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class InboundMessageRegistryTest {
+
+    private final WebSocketSession session = mock(WebSocketSession.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private InboundMessageRegistry registry;
+    private List<WebRTCSignal> signals;
+    private List<ChatMessage> chats;
+
+    @BeforeEach
+    public void setUp() {
+        registry = new InboundMessageRegistry(new MessageCodec(new ObjectMapper()), meterRegistry);
+        signals = new ArrayList<>();
+        chats = new ArrayList<>();
+        registry.register("offer", WebRTCSignal.class, (signal, s, userId) -> signals.add(signal));
+        registry.registerFallback(ChatMessage.class, (chat, s, userId) -> chats.add(chat));
+    }
+
+    @Test
+    public void testDispatchesOnTypeWhenItIsNotTheFirstField() throws Exception {
+        registry.dispatch("{\"to\":\"bob\",\"payload\":{\"sdp\":\"v=0\",\"type\":\"nested\"},\"type\":\"offer\",\"video\":true}",
+                session, "alice");
+
+        assertEquals(1, signals.size());
+        WebRTCSignal signal = signals.get(0);
+        assertEquals("offer", signal.getType());
+        assertEquals("bob", signal.getTo());
+        assertEquals(Map.of("sdp", "v=0", "type", "nested"), signal.getPayload());
+        assertEquals(Boolean.TRUE, signal.getVideo());
+    }
+
+    @Test
+    public void testUnregisteredOrMissingTypeGoesToFallback() throws Exception {
+        registry.dispatch("{\"type\":\"chat\",\"message\":\"hi\",\"recipientId\":\"bob\"}", session, "alice");
+        registry.dispatch("{\"message\":\"no type\",\"additionalData\":{\"k\":1}}", session, "alice");
+
+        assertEquals(0, signals.size());
+        assertEquals(2, chats.size());
+        assertEquals("bob", chats.get(0).getRecipientId());
+        assertNull(chats.get(1).getType());
+        assertEquals(Map.of("k", 1), chats.get(1).getAdditionalData());
+    }
+
+    @Test
+    public void testDispatchesBinaryFrames() throws Exception {
+        MessageCodec codec = new MessageCodec(new ObjectMapper());
+        byte[] frame = codec.encode(Map.of("to", "bob", "type", "offer"), WireFormat.CBOR);
+
+        registry.dispatch(frame, WireFormat.CBOR, session, "alice");
+
+        assertEquals(1, signals.size());
+        assertEquals("bob", signals.get(0).getTo());
+    }
+
+    @Test
+    public void testRejectsNonObjectFrames() {
+        assertThrows(Exception.class, () -> registry.dispatch("[1,2]", session, "alice"));
+    }
+
+    @Test
+    public void testDecodingAndHandlingAreTimedSeparately() throws Exception {
+        registry.register("fails", ChatMessage.class, (chat, s, userId) -> {
+            throw new IllegalStateException("handler failed");
+        });
+
+        registry.dispatch("{\"type\":\"offer\",\"to\":\"bob\"}", session, "alice");
+        registry.dispatch("{\"message\":\"hi\"}", session, "alice");
+        assertThrows(IllegalStateException.class, () -> registry.dispatch("{\"type\":\"fails\"}", session, "alice"));
+        assertThrows(Exception.class, () -> registry.dispatch("not json", session, "alice"));
+
+        assertEquals(3, timerCount("messaging.inbound.decode", "format", "json", "success"));
+        assertEquals(1, timerCount("messaging.inbound.decode", "format", "json", "error"));
+        assertEquals(1, timerCount("messaging.inbound.handle", "type", "offer", "success"));
+        assertEquals(1, timerCount("messaging.inbound.handle", "type", "default", "success"));
+        assertEquals(1, timerCount("messaging.inbound.handle", "type", "fails", "error"));
+    }
+
+    private long timerCount(String name, String tag, String value, String outcome) {
+        return meterRegistry.get(name).tag(tag, value).tag("outcome", outcome).timer().count();
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.messagingapp.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.config.MessagingProperties.Outbound.OverflowPolicy;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class QueuedWebSocketSessionTest {
+
+    private WebSocketSession delegate;
+    private Queue<Runnable> pendingTasks;
+    private List<String> sent;
+    private Counter droppedFrames;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        delegate = mock(WebSocketSession.class);
+        when(delegate.getId()).thenReturn("session-1");
+        when(delegate.isOpen()).thenReturn(true);
+        pendingTasks = new ArrayDeque<>();
+        sent = new ArrayList<>();
+        droppedFrames = new SimpleMeterRegistry().counter("messaging.outbound.dropped");
+        doAnswer(invocation -> {
+            sent.add(((WebSocketMessage<?>) invocation.getArgument(0)).getPayload().toString());
+            return null;
+        }).when(delegate).sendMessage(any());
+    }
+
+    @Test
+    public void testSendsAreQueuedAndDrainedInOrder() {
+        QueuedWebSocketSession session = queued(10, OverflowPolicy.DROP_OLDEST);
+
+        session.sendMessage(new TextMessage("a"));
+        session.sendMessage(new TextMessage("b"));
+
+        // Nothing is written on the caller's thread, and only one drain task is scheduled
+        assertEquals(List.of(), sent);
+        assertEquals(1, pendingTasks.size());
+
+        runPendingTasks();
+        assertEquals(List.of("a", "b"), sent);
+    }
+
+    @Test
+    public void testDropOldestKeepsNewestFrames() {
+        QueuedWebSocketSession session = queued(2, OverflowPolicy.DROP_OLDEST);
+
+        session.sendMessage(new TextMessage("a"));
+        session.sendMessage(new TextMessage("b"));
+        session.sendMessage(new TextMessage("c"));
+        runPendingTasks();
+
+        assertEquals(List.of("b", "c"), sent);
+        assertEquals(1, session.getDroppedCount());
+        assertEquals(1, droppedFrames.count());
+    }
+
+    @Test
+    public void testWriteCallbackRunsOnceTheFrameIsWritten() {
+        QueuedWebSocketSession session = queued(1, OverflowPolicy.DROP_OLDEST);
+        List<String> written = new ArrayList<>();
+
+        session.sendMessage(new TextMessage("a"), () -> written.add("a"));
+        session.sendMessage(new TextMessage("b"), () -> written.add("b:" + sent));
+        assertEquals(List.of(), written);
+
+        runPendingTasks();
+
+        // The dropped frame's callback never runs; the other one sees its frame already sent
+        assertEquals(List.of("b:[b]"), written);
+    }
+
+    @Test
+    public void testDropNewestKeepsBufferedFrames() {
+        QueuedWebSocketSession session = queued(2, OverflowPolicy.DROP_NEWEST);
+
+        session.sendMessage(new TextMessage("a"));
+        session.sendMessage(new TextMessage("b"));
+        session.sendMessage(new TextMessage("c"));
+        runPendingTasks();
+
+        assertEquals(List.of("a", "b"), sent);
+        assertEquals(1, session.getDroppedCount());
+    }
+
+    @Test
+    public void testDisconnectPolicyClosesSession() throws Exception {
+        QueuedWebSocketSession session = queued(1, OverflowPolicy.DISCONNECT);
+
+        session.sendMessage(new TextMessage("a"));
+        session.sendMessage(new TextMessage("b"));
+        runPendingTasks();
+
+        verify(delegate, times(1)).close(CloseStatus.SESSION_NOT_RELIABLE);
+        verify(delegate, never()).sendMessage(any());
+    }
+
+    @Test
+    public void testSlowSendExceedingTimeLimitClosesSession() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch writing = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writing.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(delegate).sendMessage(any());
+
+        QueuedWebSocketSession session = new QueuedWebSocketSession(delegate, Executors.newSingleThreadExecutor(),
+                10, 50, OverflowPolicy.DROP_OLDEST, droppedFrames);
+        session.sendMessage(new TextMessage("a"));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        Thread.sleep(100);
+        session.checkSendTimeLimit();
+        release.countDown();
+
+        verify(delegate, times(1)).close(CloseStatus.SESSION_NOT_RELIABLE);
+    }
+
+    private QueuedWebSocketSession queued(int limit, OverflowPolicy policy) {
+        return new QueuedWebSocketSession(delegate, pendingTasks::add, limit, 10_000, policy, droppedFrames);
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.messagingapp.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+public class RoomSessionsTest {
+
+    private final RoomSessions roomSessions = new RoomSessions();
+
+    @Test
+    public void testClosedSessionCannotJoin() {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("s1");
+
+        assertThrows(IllegalStateException.class, () -> roomSessions.join("team", session));
+
+        assertFalse(roomSessions.isMember("team", "s1"));
+        assertEquals(0, roomSessions.size());
+        assertEquals(List.of(), roomSessions.leaveAll("s1"));
+    }
+
+    @Test
+    public void testCloseRacingAJoinNeverLeavesTheSessionBehind() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2_000; i++) {
+                AtomicBoolean open = new AtomicBoolean(true);
+                WebSocketSession session = mock(WebSocketSession.class);
+                when(session.getId()).thenReturn("s" + i);
+                when(session.isOpen()).thenAnswer(invocation -> open.get());
+                CountDownLatch start = new CountDownLatch(1);
+
+                Future<Boolean> join = executor.submit(() -> {
+                    start.await();
+                    try {
+                        return roomSessions.join("team", session);
+                    } catch (IllegalStateException e) {
+                        return false;
+                    }
+                });
+                Future<List<String>> close = executor.submit(() -> {
+                    start.await();
+                    open.set(false);
+                    return roomSessions.leaveAll(session.getId());
+                });
+                start.countDown();
+
+                // Whoever won, the room gained and lost this node exactly as often
+                assertEquals(join.get(), close.get().contains("team"));
+                assertFalse(roomSessions.isMember("team", session.getId()));
+                assertTrue(roomSessions.sessions("team").isEmpty());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
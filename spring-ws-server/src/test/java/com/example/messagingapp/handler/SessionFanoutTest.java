@@ -0,0 +1,118 @@
+package com.example.messagingapp.handler;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class SessionFanoutTest {
+
+    private ExecutorService executor;
+    private SimpleMeterRegistry meterRegistry;
+    private MessageCodec messageCodec;
+    private SessionFanout sessionFanout;
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        meterRegistry = new SimpleMeterRegistry();
+        messageCodec = new MessageCodec(new ObjectMapper().findAndRegisterModules());
+        MessagingProperties properties = new MessagingProperties();
+        properties.getFanout().setShardSize(10);
+        sessionFanout = new SessionFanout(messageCodec, properties, executor, meterRegistry);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testEveryShardReceivesTheSameFrameInstance() throws Exception {
+        List<WebSocketSession> sessions = openSessions(35, null);
+        OutboundFrame frame = sessionFanout.encode(ChatMessage.builder().type("chat").message("héllo").build());
+
+        assertEquals(35, sessionFanout.broadcast(sessions, frame));
+
+        for (WebSocketSession session : sessions) {
+            ArgumentCaptor<WebSocketMessage<?>> sent = ArgumentCaptor.forClass(WebSocketMessage.class);
+            verify(session).sendMessage(sent.capture());
+            assertSame(frame.forFormat(WireFormat.JSON), sent.getValue());
+        }
+        assertEquals(1, meterRegistry.get("messaging.fanout.duration").timer().count());
+        assertEquals(35.0, meterRegistry.get("messaging.fanout.recipients").summary().totalAmount());
+    }
+
+    @Test
+    public void testBinarySessionsShareOneBinaryFrame() throws Exception {
+        List<WebSocketSession> sessions = openSessions(3, WireFormat.CBOR.getSubprotocol());
+        OutboundFrame frame = sessionFanout.encode(ChatMessage.builder().type("chat").message("hi").build());
+
+        sessionFanout.send(sessions, frame);
+
+        WebSocketMessage<?> binary = frame.forFormat(WireFormat.CBOR);
+        assertInstanceOf(BinaryMessage.class, binary);
+        for (WebSocketSession session : sessions) {
+            verify(session).sendMessage(binary);
+        }
+        assertEquals("hi", messageCodec.decode(((BinaryMessage) binary).getPayload().array(), ChatMessage.class).getMessage());
+    }
+
+    @Test
+    public void testClosedSessionsAreSkipped() throws Exception {
+        List<WebSocketSession> sessions = openSessions(3, null);
+        WebSocketSession closed = mock(WebSocketSession.class);
+        sessions.add(closed);
+
+        assertEquals(3, sessionFanout.send(sessions, sessionFanout.encode(ChatMessage.builder().type("chat").build())));
+        verify(closed, never()).sendMessage(any());
+    }
+
+    @Test
+    public void testEncodedFrameIsUtf8Json() throws Exception {
+        OutboundFrame frame = sessionFanout.encode(ChatMessage.builder().type("chat").message("héllo").build());
+        TextMessage text = (TextMessage) frame.forFormat(WireFormat.JSON);
+
+        assertEquals(text.getPayload().getBytes(StandardCharsets.UTF_8).length, text.getPayloadLength());
+        assertEquals("héllo", new ObjectMapper().readTree(text.asBytes()).get("message").asText());
+    }
+
+    private List<WebSocketSession> openSessions(int count, String subprotocol) {
+        List<WebSocketSession> sessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            WebSocketSession session = mock(WebSocketSession.class);
+            when(session.getId()).thenReturn("session-" + i);
+            when(session.isOpen()).thenReturn(true);
+            when(session.getAcceptedProtocol()).thenReturn(subprotocol);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+}
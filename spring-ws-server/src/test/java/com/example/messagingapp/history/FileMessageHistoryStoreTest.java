@@ -0,0 +1,237 @@
+package com.example.messagingapp.history;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+import com.example.messagingapp.model.HistoryPage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class FileMessageHistoryStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private final MessageCodec codec = new MessageCodec(new ObjectMapper().registerModule(new JavaTimeModule()));
+
+    private MessagingProperties properties;
+
+    private HistoryWriterLanes writerLanes;
+
+    @BeforeEach
+    public void setUp() {
+        properties = new MessagingProperties();
+        properties.getHistory().setDirectory(directory.toString());
+        // Small segments and a dense index so a few messages span several of each
+        properties.getHistory().setSegmentBytes(512);
+        properties.getHistory().setIndexIntervalBytes(128);
+        writerLanes = new HistoryWriterLanes(properties, new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void testSequencesArePerConversationAndReadsArePaged() throws Exception {
+        FileMessageHistoryStore store = new FileMessageHistoryStore(codec, properties, writerLanes);
+        for (int i = 1; i <= 30; i++) {
+            assertEquals(i, store.append("public", message("public " + i)));
+        }
+        assertEquals(1, store.append("dm:alice:bob", message("direct")));
+
+        HistoryPage page = store.read("public", 12, 10);
+        assertEquals(List.of(13L, 14L, 15L, 16L, 17L, 18L, 19L, 20L, 21L, 22L), seqs(page));
+        assertEquals("public 13", page.getMessages().get(0).getMessage());
+        assertEquals(30, page.getLastSeq());
+        assertTrue(page.isHasMore());
+
+        HistoryPage last = store.read("public", 22, 10);
+        assertEquals(8, last.getMessages().size());
+        assertFalse(last.isHasMore());
+
+        assertTrue(store.read("public", 30, 10).getMessages().isEmpty());
+        assertEquals(1, store.read("dm:alice:bob", 0, 10).getLastSeq());
+        store.destroy();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        writerLanes.destroy();
+    }
+
+    @Test
+    public void testBackgroundAppendsAreNumberedAtOnceAndWrittenInOrder() throws Exception {
+        FileMessageHistoryStore store = new FileMessageHistoryStore(codec, properties, writerLanes);
+        // Holds the writer so nothing is written until every message has its number
+        CountDownLatch release = new CountDownLatch(1);
+        writerLanes.laneFor("public").execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        List<CompletableFuture<Long>> writes = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            ChatMessage message = message("message " + i);
+            writes.add(store.appendAsync("public", message));
+            assertEquals(i, message.getSeq());
+        }
+        assertEquals(0, store.read("public", 0, 100).getLastSeq());
+
+        release.countDown();
+        assertEquals(20L, writes.get(19).join());
+        // Mixed with a blocking append, which waits for the writes queued before it
+        assertEquals(21, store.append("public", message("message 21")));
+        HistoryPage page = store.read("public", 0, 100);
+        assertEquals(LongStream.rangeClosed(1, 21).boxed().toList(), seqs(page));
+        assertEquals("message 21", page.getMessages().get(20).getMessage());
+        store.destroy();
+    }
+
+    @Test
+    public void testFullLaneRefusesWritesWithoutLeavingAGapAndHoldsUpNoOtherLane() throws Exception {
+        properties.getHistory().setWriterThreads(2);
+        properties.getHistory().setWriterQueueCapacity(2);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        HistoryWriterLanes lanes = new HistoryWriterLanes(properties, meterRegistry);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            FileMessageHistoryStore store = new FileMessageHistoryStore(codec, properties, lanes);
+            String other = IntStream.range(0, 100).mapToObj(i -> "dm:alice:user" + i)
+                    .filter(id -> lanes.laneFor(id) != lanes.laneFor("public"))
+                    .findFirst().orElseThrow();
+            lanes.laneFor("public").execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            started.await();
+
+            store.appendAsync("public", message("message 1"));
+            CompletableFuture<Long> second = store.appendAsync("public", message("message 2"));
+            ChatMessage refused = message("message 3");
+            assertTrue(store.appendAsync("public", refused).isCompletedExceptionally());
+            assertNull(refused.getSeq());
+            assertEquals(1.0, meterRegistry.get("messaging.executor.rejected").tag("name", "historyWriter")
+                    .counter().count());
+
+            // Conversations on the other lane are written meanwhile
+            assertEquals(1, store.append(other, message("elsewhere")));
+
+            release.countDown();
+            assertEquals(2L, second.join());
+            assertEquals(3, store.append("public", message("message 4")));
+            assertEquals(List.of(1L, 2L, 3L), seqs(store.read("public", 0, 10)));
+            store.destroy();
+        } finally {
+            release.countDown();
+            lanes.destroy();
+        }
+    }
+
+    @Test
+    public void testHistorySpansSegmentsAndSurvivesRestart() throws Exception {
+        FileMessageHistoryStore store = new FileMessageHistoryStore(codec, properties, writerLanes);
+        for (int i = 1; i <= 50; i++) {
+            store.append("public", message("message " + i));
+        }
+        store.destroy();
+
+        FileMessageHistoryStore reopened = new FileMessageHistoryStore(codec, properties, writerLanes);
+        assertTrue(segmentFiles(".log").size() > 3);
+        assertEquals(segmentFiles(".log").size(), segmentFiles(".idx").size());
+
+        assertEquals(51, reopened.append("public", message("after restart")));
+        assertEquals(List.of(18L, 19L, 20L, 21L, 22L), seqs(reopened.read("public", 17, 5)));
+        HistoryPage tail = reopened.read("public", 45, 10);
+        assertEquals(List.of(46L, 47L, 48L, 49L, 50L, 51L), seqs(tail));
+        assertEquals("after restart", tail.getMessages().get(5).getMessage());
+        reopened.destroy();
+    }
+
+    @Test
+    public void testTornRecordIsDroppedOnRestart() throws Exception {
+        properties.getHistory().setSegmentBytes(1024 * 1024);
+        FileMessageHistoryStore store = new FileMessageHistoryStore(codec, properties, writerLanes);
+        for (int i = 1; i <= 3; i++) {
+            store.append("public", message("message " + i));
+        }
+        store.destroy();
+
+        // A crash in the middle of a write leaves a partial record behind
+        Files.write(segmentFiles(".log").get(0), new byte[] {0, 0, 1, 0, 7, 7}, StandardOpenOption.APPEND);
+
+        FileMessageHistoryStore reopened = new FileMessageHistoryStore(codec, properties, writerLanes);
+        assertEquals(List.of(1L, 2L, 3L), seqs(reopened.read("public", 0, 10)));
+        assertEquals(4, reopened.append("public", message("message 4")));
+        assertEquals(List.of(1L, 2L, 3L, 4L), seqs(reopened.read("public", 0, 10)));
+        reopened.destroy();
+    }
+
+    @Test
+    public void testUnknownConversationIsEmptyAndNotCreated() throws Exception {
+        FileMessageHistoryStore store = new FileMessageHistoryStore(codec, properties, writerLanes);
+
+        HistoryPage page = store.read("dm:alice:nobody", 0, 10);
+
+        assertTrue(page.getMessages().isEmpty());
+        assertEquals(0, page.getLastSeq());
+        try (Stream<Path> children = Files.list(directory)) {
+            assertEquals(0, children.count());
+        }
+    }
+
+    @Test
+    public void testDirectConversationIsTheSameFromEitherSide() {
+        assertEquals(MessageHistoryStore.directConversation("alice", "bob"),
+                MessageHistoryStore.directConversation("bob", "alice"));
+        assertEquals("public", MessageHistoryStore.conversationOf(message("hi")));
+    }
+
+    private static ChatMessage message(String text) {
+        return ChatMessage.builder()
+                .type("chat")
+                .message(text)
+                .userId("alice")
+                .timestamp(Instant.parse("2024-01-01T00:00:00Z"))
+                .build();
+    }
+
+    private static List<Long> seqs(HistoryPage page) {
+        return page.getMessages().stream().map(ChatMessage::getSeq).toList();
+    }
+
+    private List<Path> segmentFiles(String suffix) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(path -> path.toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.messagingapp.interceptor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.interceptor.HandshakeAdmission.Permit;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class UserAuthHandshakeInterceptorTest {
+
+    private MeterRegistry meterRegistry;
+    private HandshakeAdmission admission;
+    private UserAuthHandshakeInterceptor interceptor;
+
+    @BeforeEach
+    public void setUp() {
+        MessagingProperties properties = new MessagingProperties();
+        properties.getHandshake().setMaxConcurrent(2);
+        properties.getHandshake().setRetryAfterSeconds(3);
+        meterRegistry = new SimpleMeterRegistry();
+        admission = new HandshakeAdmission(properties, meterRegistry);
+        interceptor = new UserAuthHandshakeInterceptor(admission, properties);
+    }
+
+    @Test
+    public void testUserIdIsReadFromTheQueryOrTheHeader() throws Exception {
+        Map<String, Object> attributes = new HashMap<>();
+        assertTrue(interceptor.beforeHandshake(request("format=cbor&X-Auth-User-Id=ann%20lee", null),
+                response(), null, attributes));
+        assertEquals("ann lee", attributes.get("userId"));
+        assertTrue(attributes.get(UserAuthHandshakeInterceptor.PERMIT_ATTRIBUTE) instanceof Permit);
+
+        attributes.clear();
+        assertTrue(interceptor.beforeHandshake(request(null, "bob"), response(), null, attributes));
+        assertEquals("bob", attributes.get("userId"));
+
+        assertFalse(interceptor.beforeHandshake(request("X-Auth-User-Id=", null), response(), null, new HashMap<>()));
+        assertEquals(2, admission.inFlight());
+    }
+
+    @Test
+    public void testQueryParameterMatchesWholeNames() {
+        assertEquals("b", UserAuthHandshakeInterceptor.queryParameter("aX=1&X=b&X=c", "X"));
+        assertNull(UserAuthHandshakeInterceptor.queryParameter("XY=1&X", "X"));
+        assertNull(UserAuthHandshakeInterceptor.queryParameter("X=%zz", "X"));
+        assertNull(UserAuthHandshakeInterceptor.queryParameter(null, "X"));
+    }
+
+    @Test
+    public void testHandshakesBeyondTheLimitAreTurnedAway() throws Exception {
+        Map<String, Object> attributes = new HashMap<>();
+        interceptor.beforeHandshake(request("X-Auth-User-Id=a", null), response(), null, attributes);
+        interceptor.beforeHandshake(request("X-Auth-User-Id=b", null), response(), null, new HashMap<>());
+
+        ServletServerHttpResponse rejected = response();
+        assertFalse(interceptor.beforeHandshake(request("X-Auth-User-Id=c", null), rejected, null, new HashMap<>()));
+        rejected.flush();
+        MockHttpServletResponse servletResponse = (MockHttpServletResponse) rejected.getServletResponse();
+        assertEquals(503, servletResponse.getStatus());
+        assertEquals("3", servletResponse.getHeader("Retry-After"));
+        assertEquals(1.0, meterRegistry.get("messaging.handshake.rejected").counter().count());
+
+        // A registered connection gives its permit back, once
+        Permit permit = (Permit) attributes.get(UserAuthHandshakeInterceptor.PERMIT_ATTRIBUTE);
+        permit.release();
+        permit.release();
+        assertEquals(1, admission.inFlight());
+        assertTrue(interceptor.beforeHandshake(request("X-Auth-User-Id=c", null), response(), null, new HashMap<>()));
+    }
+
+    @Test
+    public void testPermitOfAFailedUpgradeIsReleased() throws Exception {
+        ServletServerHttpRequest upgraded = request("X-Auth-User-Id=a", null);
+        ServletServerHttpResponse switching = response();
+        interceptor.beforeHandshake(upgraded, switching, null, new HashMap<>());
+        ((MockHttpServletResponse) switching.getServletResponse()).setStatus(101);
+        interceptor.afterHandshake(upgraded, switching, null, null);
+        assertEquals(1, admission.inFlight());
+
+        // Refused by the handshake handler, e.g. for a bad Sec-WebSocket-Version
+        ServletServerHttpRequest refused = request("X-Auth-User-Id=b", null);
+        ServletServerHttpResponse badRequest = response();
+        interceptor.beforeHandshake(refused, badRequest, null, new HashMap<>());
+        ((MockHttpServletResponse) badRequest.getServletResponse()).setStatus(400);
+        interceptor.afterHandshake(refused, badRequest, null, null);
+        assertEquals(1, admission.inFlight());
+        assertEquals(1.0, meterRegistry.get("messaging.handshake.inflight").gauge().value());
+    }
+
+    private static ServletServerHttpRequest request(String query, String userHeader) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/ws");
+        request.setQueryString(query);
+        if (userHeader != null) {
+            request.addHeader("X-Auth-User-Id", userHeader);
+        }
+        return new ServletServerHttpRequest(request);
+    }
+
+    private static ServletServerHttpResponse response() {
+        return new ServletServerHttpResponse(new MockHttpServletResponse());
+    }
+}
@@ -0,0 +1,319 @@
+package com.example.messagingapp.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fppt.jedismock.RedisServer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Soaks a cluster of nodes sharing one embedded Kafka broker and one in-process Redis with
+ * direct messages between users on different nodes, public messages and connect/disconnect
+ * churn, then reports throughput, p50/p99/p999 latency and heap per connection on each node.
+ *
+ * Traffic is drawn from a seeded schedule, so the same settings send the same messages between
+ * the same users. Every direct message and every public message must reach its clients, and
+ * -Dload.maxP99Ms turns the direct message p99 into a release gate.
+ *
+ * Run with mvn test -Pload -Dtest=ClusterSoakLoadTest; sizes come from -Dload.nodes,
+ * -Dload.clients, -Dload.duration (seconds), -Dload.dmRate, -Dload.broadcastRate,
+ * -Dload.churnRate (connects or disconnects per second) and -Dload.seed. Clients share the
+ * nodes' JVM, so heap per connection counts both ends of each socket.
+ */
+@Tag("load")
+public class ClusterSoakLoadTest {
+
+    private static final int NODES = Integer.getInteger("load.nodes", 3);
+    private static final int CLIENTS = Integer.getInteger("load.clients", 300);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.duration", 30);
+    private static final int DM_RATE = Integer.getInteger("load.dmRate", 100);
+    private static final int BROADCAST_RATE = Integer.getInteger("load.broadcastRate", 1);
+    private static final int CHURN_RATE = Integer.getInteger("load.churnRate", 5);
+    private static final long SEED = Long.getLong("load.seed", 42);
+    private static final long MAX_P99_MILLIS = Long.getLong("load.maxP99Ms", 0);
+
+    // Users that come and go during the run, on top of the clients that stay connected
+    private static final int CHURN_CLIENTS = Math.max(1, CLIENTS / 10);
+
+    private static final int DIRECT_MESSAGES = DM_RATE * DURATION_SECONDS;
+    private static final int BROADCASTS = BROADCAST_RATE * DURATION_SECONDS;
+
+    private static final String WARM_UP = "warm-up";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static RedisServer redisServer;
+    private static EmbeddedKafkaBroker kafka;
+
+    // Send-to-receive nanos of each direct message, and of each public message at each client
+    private final AtomicLongArray directLatencies = new AtomicLongArray(DIRECT_MESSAGES);
+    private final AtomicLongArray broadcastLatencies = new AtomicLongArray(BROADCASTS * CLIENTS);
+    private final CountDownLatch directDelivered = new CountDownLatch(DIRECT_MESSAGES);
+    private final CountDownLatch broadcastDelivered = new CountDownLatch(BROADCASTS * CLIENTS);
+    private final CountDownLatch warmedUp = new CountDownLatch(CLIENTS);
+
+    private record NodeResult(String serverId, int connections, long heapBytesPerConnection) {
+    }
+
+    private record TrafficResult(String traffic, int sent, int delivered, double perSecond,
+                                 long p50Micros, long p99Micros, long p999Micros) {
+    }
+
+    @BeforeAll
+    public static void startInfrastructure() throws Exception {
+        redisServer = RedisServer.newRedisServer().start();
+        kafka = new EmbeddedKafkaBroker(1, false, 1);
+        kafka.afterPropertiesSet();
+    }
+
+    @AfterAll
+    public static void stopInfrastructure() throws Exception {
+        kafka.destroy();
+        redisServer.stop();
+    }
+
+    @Test
+    public void testClusterSoak() throws Exception {
+        List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+        ScheduledExecutorService churnScheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (int n = 0; n < NODES; n++) {
+                nodes.add(LoadSupport.startNode(redisServer, kafka, "soak-" + n,
+                        "--messaging.routing.cache-ttl=1h",
+                        // Registrations against the Redis stand-in are slow; admit every client at once
+                        "--messaging.handshake.max-concurrent=" + (CLIENTS + CHURN_CLIENTS)));
+            }
+            StandardWebSocketClient client = new StandardWebSocketClient();
+
+            // Clients are spread round-robin; each node's are connected on their own to measure its heap
+            WebSocketSession[] clients = new WebSocketSession[CLIENTS];
+            List<NodeResult> nodeResults = new ArrayList<>();
+            for (int n = 0; n < NODES; n++) {
+                MeterRegistry meterRegistry = nodes.get(n).getBean(MeterRegistry.class);
+                long heapBefore = LoadSupport.usedHeap();
+                List<CompletableFuture<WebSocketSession>> pending = new ArrayList<>();
+                for (int c = n; c < CLIENTS; c += NODES) {
+                    pending.add(client.execute(receiver(c), url(nodes.get(n), user(c))));
+                }
+                for (int i = 0; i < pending.size(); i++) {
+                    clients[n + i * NODES] = pending.get(i).get(60, TimeUnit.SECONDS);
+                }
+                int connections = pending.size();
+                LoadSupport.waitFor(() -> LoadSupport.registered(meterRegistry) >= connections, 300);
+                nodeResults.add(new NodeResult("soak-" + n, connections,
+                        connections > 0 ? (LoadSupport.usedHeap() - heapBefore) / connections : 0));
+            }
+
+            // Resolve every route and let every node's consumer take its partitions before measuring
+            for (int c = 0; c < CLIENTS; c++) {
+                send(clients[c], WARM_UP, user((c + 1) % CLIENTS));
+            }
+            assertTrue(warmedUp.await(300, TimeUnit.SECONDS), "warm-up messages were not delivered");
+
+            Random schedule = new Random(SEED);
+            Churn churn = new Churn(client, nodes, new Random(SEED + 1));
+            if (CHURN_RATE > 0) {
+                churnScheduler.scheduleAtFixedRate(churn::step, 0, TimeUnit.SECONDS.toNanos(1) / CHURN_RATE,
+                        TimeUnit.NANOSECONDS);
+            }
+
+            // Direct and public messages interleaved in time order from one thread, as a session
+            // may only be written by one thread at a time
+            long directInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, DM_RATE);
+            long broadcastInterval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, BROADCAST_RATE);
+            long start = System.nanoTime();
+            int direct = 0;
+            int broadcast = 0;
+            while (direct < DIRECT_MESSAGES || broadcast < BROADCASTS) {
+                long nextDirect = direct < DIRECT_MESSAGES ? direct * directInterval : Long.MAX_VALUE;
+                long nextBroadcast = broadcast < BROADCASTS ? broadcast * broadcastInterval : Long.MAX_VALUE;
+                LockSupport.parkNanos(start + Math.min(nextDirect, nextBroadcast) - System.nanoTime());
+                if (nextDirect <= nextBroadcast) {
+                    int sender = schedule.nextInt(CLIENTS);
+                    int recipient = (sender + 1 + schedule.nextInt(CLIENTS - 1)) % CLIENTS;
+                    send(clients[sender], "dm:" + direct + ":" + System.nanoTime(), user(recipient));
+                    direct++;
+                } else {
+                    send(clients[schedule.nextInt(CLIENTS)], "bc:" + broadcast + ":" + System.nanoTime(), null);
+                    broadcast++;
+                }
+            }
+            directDelivered.await(120, TimeUnit.SECONDS);
+            broadcastDelivered.await(120, TimeUnit.SECONDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            churnScheduler.shutdownNow();
+            churnScheduler.awaitTermination(30, TimeUnit.SECONDS);
+
+            TrafficResult directResult = traffic("direct", DIRECT_MESSAGES, directLatencies, seconds);
+            TrafficResult broadcastResult = traffic("broadcast", BROADCASTS * CLIENTS, broadcastLatencies, seconds);
+            report(nodeResults, List.of(directResult, broadcastResult), churn);
+
+            assertEquals(DIRECT_MESSAGES, directResult.delivered(), "direct messages delivered");
+            assertEquals(BROADCASTS * CLIENTS, broadcastResult.delivered(), "public messages delivered");
+            if (MAX_P99_MILLIS > 0) {
+                assertTrue(directResult.p99Micros() <= MAX_P99_MILLIS * 1000,
+                        "direct message p99 of " + directResult.p99Micros() + " us exceeds " + MAX_P99_MILLIS + " ms");
+            }
+
+            for (WebSocketSession session : clients) {
+                session.close();
+            }
+            churn.closeAll();
+        } finally {
+            churnScheduler.shutdownNow();
+            for (ConfigurableApplicationContext node : nodes) {
+                node.close();
+            }
+        }
+    }
+
+    /**
+     * Records the direct messages addressed to one client and every public message it receives
+     */
+    private TextWebSocketHandler receiver(int client) {
+        String userId = user(client);
+        return new TextWebSocketHandler() {
+            @Override
+            protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+                long receivedAt = System.nanoTime();
+                JsonNode frame = MAPPER.readTree(message.getPayload());
+                // Senders also get their own direct messages back; only the recipient's copy counts
+                if (!"chat".equals(frame.path("type").asText())
+                        || (frame.hasNonNull("recipientId") && !userId.equals(frame.path("recipientId").asText()))) {
+                    return;
+                }
+                String text = frame.path("message").asText();
+                if (WARM_UP.equals(text)) {
+                    warmedUp.countDown();
+                    return;
+                }
+                String[] parts = text.split(":");
+                int index = Integer.parseInt(parts[1]);
+                long latency = Math.max(1, receivedAt - Long.parseLong(parts[2]));
+                if ("dm".equals(parts[0])) {
+                    if (directLatencies.compareAndSet(index, 0, latency)) {
+                        directDelivered.countDown();
+                    }
+                } else if (broadcastLatencies.compareAndSet(index * CLIENTS + client, 0, latency)) {
+                    broadcastDelivered.countDown();
+                }
+            }
+        };
+    }
+
+    private static TrafficResult traffic(String traffic, int sent, AtomicLongArray latencies, double seconds) {
+        long[] received = new long[latencies.length()];
+        for (int i = 0; i < received.length; i++) {
+            received[i] = latencies.get(i);
+        }
+        received = Arrays.stream(received).filter(latency -> latency > 0).sorted().toArray();
+        return new TrafficResult(traffic, sent, received.length, received.length / seconds,
+                LoadSupport.percentile(received, 0.50) / 1000, LoadSupport.percentile(received, 0.99) / 1000,
+                LoadSupport.percentile(received, 0.999) / 1000);
+    }
+
+    private static void report(List<NodeResult> nodes, List<TrafficResult> traffic, Churn churn) {
+        System.out.printf("%-8s %11s %14s%n", "node", "connections", "heap/conn (B)");
+        for (NodeResult node : nodes) {
+            System.out.printf("%-8s %11d %14d%n", node.serverId(), node.connections(), node.heapBytesPerConnection());
+        }
+        System.out.printf("%n%-9s %9s %10s %10s %9s %9s %10s%n", "traffic", "sent", "delivered", "per second",
+                "p50 (us)", "p99 (us)", "p999 (us)");
+        for (TrafficResult result : traffic) {
+            System.out.printf("%-9s %9d %10d %10.0f %9d %9d %10d%n", result.traffic(), result.sent(), result.delivered(),
+                    result.perSecond(), result.p50Micros(), result.p99Micros(), result.p999Micros());
+        }
+        System.out.printf("%nchurn: %d connects, %d disconnects, %d failed%n",
+                churn.connects.get(), churn.disconnects.get(), churn.failures.get());
+    }
+
+    private static void send(WebSocketSession session, String text, String recipientId) throws Exception {
+        var message = MAPPER.createObjectNode().put("type", "chat").put("message", text);
+        if (recipientId != null) {
+            message.put("recipientId", recipientId);
+        }
+        session.sendMessage(new TextMessage(MAPPER.writeValueAsString(message)));
+    }
+
+    private static String url(ConfigurableApplicationContext node, String userId) {
+        return "ws://localhost:" + LoadSupport.port(node) + "/ws?X-Auth-User-Id=" + userId;
+    }
+
+    private static String user(int client) {
+        return "soak-user-" + client;
+    }
+
+    /**
+     * Each step drops a connected churn user or connects a disconnected one to a random node
+     */
+    private static class Churn {
+
+        private static final TextWebSocketHandler IGNORE_FRAMES = new TextWebSocketHandler();
+
+        private final StandardWebSocketClient client;
+        private final List<ConfigurableApplicationContext> nodes;
+        private final Random random;
+        private final WebSocketSession[] sessions = new WebSocketSession[CHURN_CLIENTS];
+        private final AtomicInteger connects = new AtomicInteger();
+        private final AtomicInteger disconnects = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        Churn(StandardWebSocketClient client, List<ConfigurableApplicationContext> nodes, Random random) {
+            this.client = client;
+            this.nodes = nodes;
+            this.random = random;
+        }
+
+        void step() {
+            int slot = random.nextInt(CHURN_CLIENTS);
+            ConfigurableApplicationContext node = nodes.get(random.nextInt(nodes.size()));
+            try {
+                if (sessions[slot] != null) {
+                    sessions[slot].close();
+                    sessions[slot] = null;
+                    disconnects.incrementAndGet();
+                } else {
+                    sessions[slot] = client.execute(IGNORE_FRAMES, url(node, "soak-churn-" + slot)).get(10, TimeUnit.SECONDS);
+                    connects.incrementAndGet();
+                }
+            } catch (Exception e) {
+                failures.incrementAndGet();
+            }
+        }
+
+        void closeAll() throws Exception {
+            for (WebSocketSession session : sessions) {
+                if (session != null) {
+                    session.close();
+                }
+            }
+        }
+    }
+}
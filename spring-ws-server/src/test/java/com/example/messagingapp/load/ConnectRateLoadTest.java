@@ -0,0 +1,176 @@
+package com.example.messagingapp.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.github.fppt.jedismock.RedisServer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Measures how fast one node accepts and registers connections under its handshake limit:
+ * first at a steady connect rate, then as a reconnect storm where every client drops and
+ * comes back at once. Turned-away clients retry with a jittered backoff, as the web client does.
+ *
+ * Run with mvn test -Pload; sizes come from -Dload.connections, -Dload.connectRate and
+ * -Dload.handshakeLimit.
+ */
+@Tag("load")
+public class ConnectRateLoadTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 500);
+    private static final int CONNECT_RATE = Integer.getInteger("load.connectRate", 500);
+    private static final int HANDSHAKE_LIMIT = Integer.getInteger("load.handshakeLimit", 256);
+
+    private static final long GIVE_UP_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private static RedisServer redisServer;
+    private static EmbeddedKafkaBroker kafka;
+
+    private record Result(String phase, int connections, double upgradesPerSecond, double registeredPerSecond,
+                          long rejected, int retries, long p50Millis, long p99Millis) {
+    }
+
+    @BeforeAll
+    public static void startInfrastructure() throws Exception {
+        redisServer = RedisServer.newRedisServer().start();
+        kafka = new EmbeddedKafkaBroker(1, false, 1);
+        kafka.afterPropertiesSet();
+    }
+
+    @AfterAll
+    public static void stopInfrastructure() throws Exception {
+        kafka.destroy();
+        redisServer.stop();
+    }
+
+    @Test
+    public void testConnectRate() throws Exception {
+        ConfigurableApplicationContext context = LoadSupport.startNode(redisServer, kafka, "connect-rate",
+                "--messaging.handshake.max-concurrent=" + HANDSHAKE_LIMIT);
+        ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            String url = "ws://localhost:" + LoadSupport.port(context) + "/ws?X-Auth-User-Id=client-";
+            MeterRegistry meterRegistry = context.getBean(MeterRegistry.class);
+            StandardWebSocketClient client = new StandardWebSocketClient();
+
+            List<Result> results = new ArrayList<>();
+            Phase paced = new Phase(client, retryScheduler, url, meterRegistry);
+            results.add(paced.run("paced", CONNECT_RATE));
+
+            // Every client drops at once, then all of them reconnect without pacing
+            for (WebSocketSession session : paced.sessions) {
+                session.close();
+            }
+            LoadSupport.waitFor(() -> meterRegistry.get("messaging.sessions").gauge().value() == 0, 60);
+            LoadSupport.waitFor(() -> LoadSupport.redisCalls(meterRegistry, "unregister") >= CONNECTIONS, 300);
+            Phase storm = new Phase(client, retryScheduler, url, meterRegistry);
+            results.add(storm.run("storm", 0));
+
+            System.out.printf("%-6s %11s %11s %13s %9s %8s %12s %12s%n", "phase", "connections", "upgrades/s",
+                    "registered/s", "rejected", "retries", "p50 (ms)", "p99 (ms)");
+            for (Result result : results) {
+                System.out.printf("%-6s %11d %11.0f %13.0f %9d %8d %12d %12d%n", result.phase(), result.connections(),
+                        result.upgradesPerSecond(), result.registeredPerSecond(), result.rejected(), result.retries(),
+                        result.p50Millis(), result.p99Millis());
+            }
+            for (Result result : results) {
+                assertEquals(CONNECTIONS, result.connections(), result.phase() + " connections");
+            }
+        } finally {
+            retryScheduler.shutdownNow();
+            context.close();
+        }
+    }
+
+    /**
+     * One round of connecting every client, timing each from its first attempt to its upgrade
+     */
+    private static class Phase {
+
+        private static final TextWebSocketHandler IGNORE_FRAMES = new TextWebSocketHandler();
+
+        private final StandardWebSocketClient client;
+        private final ScheduledExecutorService retryScheduler;
+        private final String url;
+        private final MeterRegistry meterRegistry;
+        private final List<WebSocketSession> sessions = new ArrayList<>(CONNECTIONS);
+        private final long[] connectNanos = new long[CONNECTIONS];
+        private final AtomicInteger retries = new AtomicInteger();
+
+        Phase(StandardWebSocketClient client, ScheduledExecutorService retryScheduler, String url,
+              MeterRegistry meterRegistry) {
+            this.client = client;
+            this.retryScheduler = retryScheduler;
+            this.url = url;
+            this.meterRegistry = meterRegistry;
+        }
+
+        Result run(String name, int rate) throws Exception {
+            double rejectedBefore = rejected();
+            long registeredBefore = LoadSupport.registered(meterRegistry);
+            long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+
+            List<CompletableFuture<WebSocketSession>> pending = new ArrayList<>(CONNECTIONS);
+            long start = System.nanoTime();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                LockSupport.parkNanos(start + i * intervalNanos - System.nanoTime());
+                CompletableFuture<WebSocketSession> connected = new CompletableFuture<>();
+                attempt(i, System.nanoTime(), 0, connected);
+                pending.add(connected);
+            }
+            for (CompletableFuture<WebSocketSession> connected : pending) {
+                sessions.add(connected.get(GIVE_UP_NANOS, TimeUnit.NANOSECONDS));
+            }
+            long upgradedAt = System.nanoTime();
+            LoadSupport.waitFor(() -> LoadSupport.registered(meterRegistry) - registeredBefore >= CONNECTIONS, 300);
+            long registeredAt = System.nanoTime();
+
+            long[] sorted = Arrays.stream(connectNanos).sorted().toArray();
+            return new Result(name, sessions.size(), CONNECTIONS / ((upgradedAt - start) / 1e9),
+                    CONNECTIONS / ((registeredAt - start) / 1e9), (long) (rejected() - rejectedBefore), retries.get(),
+                    LoadSupport.percentile(sorted, 0.50) / 1_000_000, LoadSupport.percentile(sorted, 0.99) / 1_000_000);
+        }
+
+        private void attempt(int index, long firstAttempt, int attempt, CompletableFuture<WebSocketSession> connected) {
+            client.execute(IGNORE_FRAMES, url + index).whenComplete((session, e) -> {
+                if (e == null) {
+                    connectNanos[index] = System.nanoTime() - firstAttempt;
+                    connected.complete(session);
+                } else if (System.nanoTime() - firstAttempt > GIVE_UP_NANOS) {
+                    connected.completeExceptionally(e);
+                } else {
+                    // Growing, jittered backoff so turned-away clients do not return in lockstep
+                    retries.incrementAndGet();
+                    long backoff = Math.min(2000, 100L << Math.min(attempt, 5));
+                    retryScheduler.schedule(() -> attempt(index, firstAttempt, attempt + 1, connected),
+                            ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1), TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+
+        private double rejected() {
+            return meterRegistry.get("messaging.handshake.rejected").counter().count();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.messagingapp.load;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+import com.example.messagingapp.MessagingApplication;
+import com.github.fppt.jedismock.RedisServer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Starts nodes for load tests against a shared in-process Redis and embedded Kafka broker,
+ * and the helpers the tests measure with
+ */
+final class LoadSupport {
+
+    private LoadSupport() {
+    }
+
+    /**
+     * Boots a node on a random port with quiet logging; extra arguments override the defaults
+     */
+    static ConfigurableApplicationContext startNode(RedisServer redisServer, EmbeddedKafkaBroker kafka,
+                                                    String serverId, String... extraArgs) throws Exception {
+        Path history = Files.createTempDirectory("load-history-");
+        List<String> args = new ArrayList<>(List.of(
+                "--server.port=0",
+                "--messaging.server.id=" + serverId,
+                "--messaging.history.directory=" + history,
+                "--spring.data.redis.host=" + redisServer.getHost(),
+                "--spring.data.redis.port=" + redisServer.getBindPort(),
+                "--KAFKA_BROKERS=" + kafka.getBrokersAsString(),
+                "--spring.kafka.bootstrap-servers=" + kafka.getBrokersAsString(),
+                "--logging.level.root=WARN",
+                "--logging.level.com.example.messagingapp=WARN"));
+        args.addAll(List.of(extraArgs));
+        return new SpringApplicationBuilder(MessagingApplication.class).run(args.toArray(String[]::new));
+    }
+
+    static int port(ConfigurableApplicationContext context) {
+        return context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+    }
+
+    /**
+     * Connections a node has registered in Redis so far
+     */
+    static long registered(MeterRegistry meterRegistry) {
+        return redisCalls(meterRegistry, "register");
+    }
+
+    /**
+     * Redis calls of one operation a node has completed so far
+     */
+    static long redisCalls(MeterRegistry meterRegistry, String operation) {
+        Timer timer = meterRegistry.find("messaging.redis").tags("operation", operation, "outcome", "success").timer();
+        return timer != null ? timer.count() : 0;
+    }
+
+    /**
+     * Heap in use once unreachable objects have been collected
+     */
+    static long usedHeap() throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    static void waitFor(BooleanSupplier condition, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(50);
+        }
+    }
+
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+}
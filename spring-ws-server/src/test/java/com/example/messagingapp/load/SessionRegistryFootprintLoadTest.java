@@ -0,0 +1,94 @@
+package com.example.messagingapp.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.lang.ref.Reference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import com.example.messagingapp.service.SessionRegistry;
+
+/**
+ * Reports the heap one node spends per connection to track its sessions: first in the layout
+ * the handler used to keep, three maps with a nested map per user, then in the session
+ * registry. The sessions and their ids exist in both cases and are allocated up front, so only
+ * the bookkeeping is counted.
+ *
+ * Run with mvn test -Pload; sizes come from -Dload.connections and -Dload.devicesPerUser.
+ */
+@Tag("load")
+public class SessionRegistryFootprintLoadTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 100_000);
+    private static final int DEVICES_PER_USER = Integer.getInteger("load.devicesPerUser", 1);
+
+    @Test
+    public void testBytesPerConnection() throws Exception {
+        WebSocketSession delegate = mock(WebSocketSession.class);
+        WebSocketSession[] sessions = new WebSocketSession[CONNECTIONS];
+        String[] users = new String[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            sessions[i] = new StubSession(delegate, "session-" + i);
+            users[i] = i % DEVICES_PER_USER == 0 ? "user-" + i : users[i - 1];
+        }
+
+        long before = LoadSupport.usedHeap();
+        Map<String, WebSocketSession> sessionMap = new ConcurrentHashMap<>();
+        Map<String, String> sessionUserMap = new ConcurrentHashMap<>();
+        Map<String, Map<String, WebSocketSession>> userSessionsMap = new ConcurrentHashMap<>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            String sessionId = sessions[i].getId();
+            sessionMap.put(sessionId, sessions[i]);
+            sessionUserMap.put(sessionId, users[i]);
+            userSessionsMap.computeIfAbsent(users[i], k -> new ConcurrentHashMap<>()).put(sessionId, sessions[i]);
+        }
+        long threeMaps = LoadSupport.usedHeap() - before;
+        Reference.reachabilityFence(sessionMap);
+        Reference.reachabilityFence(sessionUserMap);
+        Reference.reachabilityFence(userSessionsMap);
+        sessionMap = null;
+        sessionUserMap = null;
+        userSessionsMap = null;
+
+        before = LoadSupport.usedHeap();
+        SessionRegistry sessionRegistry = new SessionRegistry();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            sessionRegistry.register(users[i], sessions[i]);
+        }
+        long registry = LoadSupport.usedHeap() - before;
+        assertEquals(CONNECTIONS, sessionRegistry.size());
+        Reference.reachabilityFence(sessionRegistry);
+        Reference.reachabilityFence(sessions);
+        Reference.reachabilityFence(users);
+
+        System.out.printf("%-10s %11s %15s %20s%n", "layout", "connections", "devices/user", "bytes/connection");
+        System.out.printf("%-10s %11d %15d %20d%n", "three-maps", CONNECTIONS, DEVICES_PER_USER, threeMaps / CONNECTIONS);
+        System.out.printf("%-10s %11d %15d %20d%n", "registry", CONNECTIONS, DEVICES_PER_USER, registry / CONNECTIONS);
+        assertTrue(registry < threeMaps, "the registry should take less heap than the three maps");
+    }
+
+    /**
+     * The smallest session with an id of its own
+     */
+    private static final class StubSession extends WebSocketSessionDecorator {
+
+        private final String id;
+
+        StubSession(WebSocketSession delegate, String id) {
+            super(delegate);
+            this.id = id;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+    }
+}
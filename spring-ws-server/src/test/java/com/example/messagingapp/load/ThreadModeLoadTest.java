@@ -0,0 +1,188 @@
+package com.example.messagingapp.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.example.messagingapp.config.VirtualThreads;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fppt.jedismock.RedisServer;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Compares the platform-thread and virtual-thread modes of one node under the same load:
+ * connections held, threads and heap they cost, and direct message latency.
+ *
+ * Run with mvn test -Pload; sizes come from -Dload.connections, -Dload.messages and -Dload.rate.
+ * The virtual-thread run is skipped on runtimes older than Java 21. Clients share the node's
+ * JVM, so heap per connection counts both ends of each socket.
+ */
+@Tag("load")
+public class ThreadModeLoadTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 1000);
+    private static final int MESSAGES = Integer.getInteger("load.messages", 5000);
+    private static final int RATE = Integer.getInteger("load.rate", 1000);
+
+    private static final String WARM_UP = "warm-up";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static RedisServer redisServer;
+    private static EmbeddedKafkaBroker kafka;
+
+    private record Result(String mode, int connections, long heapBytesPerConnection, int peakThreads,
+                          int delivered, double throughput, long p50Micros, long p99Micros) {
+    }
+
+    @BeforeAll
+    public static void startInfrastructure() throws Exception {
+        redisServer = RedisServer.newRedisServer().start();
+        kafka = new EmbeddedKafkaBroker(1, false, 1);
+        kafka.afterPropertiesSet();
+    }
+
+    @AfterAll
+    public static void stopInfrastructure() throws Exception {
+        kafka.destroy();
+        redisServer.stop();
+    }
+
+    @Test
+    public void testCompareThreadModes() throws Exception {
+        List<Result> results = new ArrayList<>();
+        results.add(run(false));
+        if (VirtualThreads.isSupported()) {
+            results.add(run(true));
+        } else {
+            System.out.println("Skipping the virtual-thread run: needs Java 21, running on " + Runtime.version().feature());
+        }
+
+        System.out.printf("%-9s %11s %14s %12s %10s %10s %9s %9s%n",
+                "mode", "connections", "heap/conn (B)", "peak threads", "delivered", "msg/s", "p50 (us)", "p99 (us)");
+        for (Result result : results) {
+            System.out.printf("%-9s %11d %14d %12d %10d %10.0f %9d %9d%n", result.mode(), result.connections(),
+                    result.heapBytesPerConnection(), result.peakThreads(), result.delivered(), result.throughput(),
+                    result.p50Micros(), result.p99Micros());
+        }
+        for (Result result : results) {
+            assertEquals(CONNECTIONS, result.connections(), result.mode() + " connections");
+            assertEquals(MESSAGES, result.delivered(), result.mode() + " deliveries");
+        }
+    }
+
+    private Result run(boolean virtual) throws Exception {
+        String mode = virtual ? "virtual" : "platform";
+        ConfigurableApplicationContext context = LoadSupport.startNode(redisServer, kafka, "load-" + mode,
+                "--messaging.threads.virtual=" + virtual,
+                "--messaging.routing.cache-ttl=1h",
+                // Registrations against the Redis stand-in are slow; admit every client at once
+                "--messaging.handshake.max-concurrent=" + CONNECTIONS);
+        try {
+            int port = LoadSupport.port(context);
+            MeterRegistry meterRegistry = context.getBean(MeterRegistry.class);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+            long heapBefore = LoadSupport.usedHeap();
+            threads.resetPeakThreadCount();
+
+            long[] latencies = new long[MESSAGES];
+            CountDownLatch delivered = new CountDownLatch(MESSAGES);
+            CountDownLatch warmedUp = new CountDownLatch(CONNECTIONS);
+            List<WebSocketSession> clients = connect(port, mode, latencies, delivered, warmedUp);
+            LoadSupport.waitFor(() -> meterRegistry.get("messaging.sessions").gauge().value() >= CONNECTIONS, 60);
+            long heapPerConnection = (LoadSupport.usedHeap() - heapBefore) / CONNECTIONS;
+
+            // Resolve every route once before measuring: the Redis stand-in runs scripts slowly
+            // and one at a time, so first messages would otherwise queue behind each other
+            LoadSupport.waitFor(() -> LoadSupport.registered(meterRegistry) >= CONNECTIONS, 300);
+            for (int i = 0; i < CONNECTIONS; i++) {
+                send(clients.get(i), WARM_UP, mode + "-" + ((i + 1) % CONNECTIONS));
+            }
+            assertTrue(warmedUp.await(300, TimeUnit.SECONDS), "warm-up messages were not delivered");
+
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                LockSupport.parkNanos(start + i * intervalNanos - System.nanoTime());
+                send(clients.get(i % CONNECTIONS), i + ":" + System.nanoTime(), mode + "-" + ((i + 1) % CONNECTIONS));
+            }
+            delivered.await(60, TimeUnit.SECONDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            for (WebSocketSession client : clients) {
+                client.close();
+            }
+
+            int count = MESSAGES - (int) delivered.getCount();
+            long[] received = Arrays.stream(latencies).filter(latency -> latency > 0).sorted().toArray();
+            return new Result(mode, clients.size(), heapPerConnection, threads.getPeakThreadCount(), count,
+                    count / seconds, LoadSupport.percentile(received, 0.50) / 1000,
+                    LoadSupport.percentile(received, 0.99) / 1000);
+        } finally {
+            context.close();
+        }
+    }
+
+    private List<WebSocketSession> connect(int port, String mode, long[] latencies,
+                                           CountDownLatch delivered, CountDownLatch warmedUp) throws Exception {
+        StandardWebSocketClient client = new StandardWebSocketClient();
+        TextWebSocketHandler handler = new TextWebSocketHandler() {
+            @Override
+            protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+                JsonNode frame = MAPPER.readTree(message.getPayload());
+                if (!"chat".equals(frame.path("type").asText())) {
+                    return;
+                }
+                String text = frame.path("message").asText();
+                if (WARM_UP.equals(text)) {
+                    warmedUp.countDown();
+                    return;
+                }
+                int separator = text.indexOf(':');
+                latencies[Integer.parseInt(text.substring(0, separator))] =
+                        System.nanoTime() - Long.parseLong(text.substring(separator + 1));
+                delivered.countDown();
+            }
+        };
+
+        List<WebSocketSession> sessions = new ArrayList<>(CONNECTIONS);
+        for (int batch = 0; batch < CONNECTIONS; batch += 100) {
+            List<CompletableFuture<WebSocketSession>> pending = new ArrayList<>();
+            for (int i = batch; i < Math.min(batch + 100, CONNECTIONS); i++) {
+                pending.add(client.execute(handler, "ws://localhost:" + port + "/ws?X-Auth-User-Id=" + mode + "-" + i));
+            }
+            for (CompletableFuture<WebSocketSession> session : pending) {
+                sessions.add(session.get(30, TimeUnit.SECONDS));
+            }
+        }
+        return sessions;
+    }
+
+    private static void send(WebSocketSession session, String text, String recipientId) throws Exception {
+        session.sendMessage(new TextMessage(MAPPER.writeValueAsString(
+                MAPPER.createObjectNode().put("type", "chat").put("message", text).put("recipientId", recipientId))));
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ActiveCall;
+import com.github.fppt.jedismock.RedisServer;
+
+public class CallRegistryTest {
+
+    private RedisServer redisServer;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisTemplate<String, String> redisTemplate;
+    private CallRegistry callRegistry;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        redisServer = RedisServer.newRedisServer().start();
+        connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration(redisServer.getHost(), redisServer.getBindPort()));
+        connectionFactory.afterPropertiesSet();
+
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new StringRedisSerializer());
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashValueSerializer(new StringRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+
+        MessagingProperties properties = new MessagingProperties();
+        properties.getSignaling().setRingTimeout(Duration.ofSeconds(30));
+        properties.getSignaling().setCallTtl(Duration.ofHours(1));
+        callRegistry = new CallRegistry(new ReactiveStringRedisTemplate(connectionFactory), properties);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    @Test
+    public void testRingingCallExpiresAfterRingTimeoutUntilAccepted() {
+        callRegistry.register("call-1", "alice", "bob").join();
+
+        assertEquals(new ActiveCall("call-1", "alice", "bob"), callRegistry.get("call-1").join());
+        assertTrue(redisTemplate.getExpire(CallRegistry.CALL_PREFIX + "call-1") <= 30);
+        assertEquals(Set.of("call-1"), callRegistry.callsOf("bob").join());
+
+        assertTrue(callRegistry.accept("call-1").join());
+        assertTrue(redisTemplate.getExpire(CallRegistry.CALL_PREFIX + "call-1") > 30);
+    }
+
+    @Test
+    public void testEndRemovesCallAndParticipantIndexes() {
+        callRegistry.register("call-1", "alice", "bob").join();
+
+        ActiveCall ended = callRegistry.end("call-1").join();
+
+        assertEquals("bob", ended.peerOf("alice"));
+        assertNull(callRegistry.get("call-1").join());
+        assertEquals(Set.of(), callRegistry.callsOf("alice").join());
+        assertEquals(Set.of(), callRegistry.callsOf("bob").join());
+    }
+
+    @Test
+    public void testUnknownCallsAreReportedAsMissing() {
+        assertFalse(callRegistry.accept("missing").join());
+        assertNull(callRegistry.end("missing").join());
+        assertNull(callRegistry.get("missing").join());
+    }
+}
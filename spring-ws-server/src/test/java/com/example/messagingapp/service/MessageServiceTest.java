@@ -0,0 +1,207 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MessageServiceTest {
+
+    private KafkaTemplate<String, ChatMessage> kafkaTemplate;
+    private RoutingCache routingCache;
+    private RoomCache roomCache;
+    private OfflineInbox offlineInbox;
+    private CompletableFuture<SendResult<String, ChatMessage>> brokerAck;
+    private SimpleMeterRegistry meterRegistry;
+    private MessageService messageService;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        kafkaTemplate = mock(KafkaTemplate.class);
+        routingCache = mock(RoutingCache.class);
+        roomCache = mock(RoomCache.class);
+        offlineInbox = mock(OfflineInbox.class);
+        ServerProperties serverProperties = mock(ServerProperties.class);
+        when(serverProperties.getServerId()).thenReturn("server1");
+        brokerAck = new CompletableFuture<>();
+        when(kafkaTemplate.send(anyString(), anyString(), any(ChatMessage.class))).thenReturn(brokerAck);
+        meterRegistry = new SimpleMeterRegistry();
+        messageService = new MessageService(kafkaTemplate, routingCache, roomCache, offlineInbox, new DeliveryLatency(meterRegistry),
+            serverProperties, new MessagingProperties(), meterRegistry);
+    }
+
+    @Test
+    public void testDirectMessageIsKeyedByRecipient() {
+        when(routingCache.getCachedUserServers("bob")).thenReturn(List.of("server2"));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+        brokerAck.complete(null);
+
+        assertTrue(messageService.sendDirectMessage(message).join());
+
+        verify(kafkaTemplate).send("messages-server2", "bob", message);
+        verify(offlineInbox, never()).offer(any(ChatMessage.class));
+    }
+
+    @Test
+    public void testDirectMessageIsProducedOnceToEachServerOfTheRecipient() {
+        when(routingCache.getCachedUserServers("bob")).thenReturn(List.of("server2", "server3"));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+
+        CompletableFuture<Boolean> sent = messageService.sendDirectMessage(message);
+        assertFalse(sent.isDone());
+        brokerAck.complete(null);
+
+        assertTrue(sent.join());
+        verify(kafkaTemplate).send("messages-server2", "bob", message);
+        verify(kafkaTemplate).send("messages-server3", "bob", message);
+        assertEquals(2, meterRegistry.get("messaging.kafka.produce").tag("kind", "direct").timer().count());
+    }
+
+    @Test
+    public void testRecordForThisServerIsDeliveredLocallyWithoutKafka() {
+        List<ChatMessage> delivered = new ArrayList<>();
+        messageService.bindLocalDelivery(local -> {
+            delivered.add(local);
+            return CompletableFuture.completedFuture(true);
+        });
+        when(routingCache.getCachedUserServers("bob")).thenReturn(List.of("server1", "server2"));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+
+        CompletableFuture<Boolean> sent = messageService.sendDirectMessage(message);
+
+        // Handed to the local delivery instead of Kafka; bob's other device still gets its record
+        assertEquals(List.of(message), delivered);
+        verify(kafkaTemplate).send("messages-server2", "bob", message);
+        verify(kafkaTemplate, never()).send(eq("messages-server1"), anyString(), any(ChatMessage.class));
+        brokerAck.complete(null);
+        assertTrue(sent.join());
+        assertEquals(1.0, meterRegistry.get("messaging.delivery.local").tag("kind", "direct").counter().count());
+    }
+
+    @Test
+    public void testLocalRecordForARecipientThatJustLeftIsKeptInTheInbox() {
+        // bob closed after routing, before his route to this server was counted down
+        messageService.bindLocalDelivery(messageService::redirectUndelivered);
+        when(routingCache.getCachedUserServers("bob")).thenReturn(List.of("server1"));
+        when(offlineInbox.offer(any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(List.of("server1")));
+        when(offlineInbox.keep(any(ChatMessage.class)))
+            .thenReturn(CompletableFuture.completedFuture(true))
+            .thenReturn(CompletableFuture.completedFuture(false));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+
+        assertTrue(messageService.sendDirectMessage(message).join());
+        verify(offlineInbox).keep(message);
+        verify(kafkaTemplate, never()).send(anyString(), anyString(), any(ChatMessage.class));
+
+        // Neither handed over nor kept, so not sent
+        assertFalse(messageService.sendDirectMessage(message).join());
+    }
+
+    @Test
+    public void testRoomMessageIsProducedOnceToEachOtherServerInTheRoom() {
+        when(roomCache.getRoomServers("team")).thenReturn(CompletableFuture.completedFuture(
+            List.of("server1", "server2", "server3")));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").roomId("team").build();
+        brokerAck.complete(null);
+
+        assertTrue(messageService.sendRoomMessage(message).join());
+
+        // Keyed by room; the members on this server were served locally
+        verify(kafkaTemplate).send("messages-server2", "team", message);
+        verify(kafkaTemplate).send("messages-server3", "team", message);
+        verify(kafkaTemplate, never()).send(eq("messages-server1"), anyString(), any(ChatMessage.class));
+        assertEquals(2, meterRegistry.get("messaging.kafka.produce").tag("kind", "room").timer().count());
+    }
+
+    @Test
+    public void testRoomMessageWithNoOtherServerIsNotProduced() {
+        when(roomCache.getRoomServers("team")).thenReturn(CompletableFuture.completedFuture(List.of("server1")));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").roomId("team").build();
+
+        assertTrue(messageService.sendRoomMessage(message).join());
+        verify(kafkaTemplate, never()).send(anyString(), anyString(), any(ChatMessage.class));
+    }
+
+    @Test
+    public void testDirectMessageToOfflineUserIsKeptInInbox() {
+        when(offlineInbox.offer(any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(List.of()));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+
+        assertTrue(messageService.sendDirectMessage(message).join());
+
+        verify(offlineInbox).offer(message);
+        verify(kafkaTemplate, never()).send(anyString(), anyString(), any(ChatMessage.class));
+    }
+
+    @Test
+    public void testUncachedRouteIsResolvedByTheInbox() {
+        when(offlineInbox.offer(any(ChatMessage.class))).thenReturn(CompletableFuture.completedFuture(List.of("server2")));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+        brokerAck.complete(null);
+
+        assertTrue(messageService.sendDirectMessage(message).join());
+
+        verify(routingCache).put(eq("bob"), eq(List.of("server2")), anyLong());
+        verify(routingCache, never()).getUserServers(anyString());
+        verify(kafkaTemplate).send("messages-server2", "bob", message);
+    }
+
+    @Test
+    public void testDirectMessageFailsWhenInboxIsUnreachable() {
+        when(offlineInbox.offer(any(ChatMessage.class)))
+            .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("redis down")));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+
+        assertFalse(messageService.sendDirectMessage(message).join());
+    }
+
+    @Test
+    public void testDirectMessageCompletesOnBrokerAck() {
+        when(routingCache.getCachedUserServers("bob")).thenReturn(List.of("server2"));
+        ChatMessage message = ChatMessage.builder().type("chat").messageId("m1").userId("alice").recipientId("bob")
+            .timestamp(Instant.now()).build();
+
+        CompletableFuture<Boolean> sent = messageService.sendDirectMessage(message);
+        assertFalse(sent.isDone());
+
+        brokerAck.complete(null);
+        assertTrue(sent.join());
+        assertEquals(1, meterRegistry.get("messaging.delivery.latency").tag("hop", "produce").timer().count());
+        assertEquals(1, meterRegistry.get("messaging.kafka.produce").tag("kind", "direct").tag("outcome", "success").timer().count());
+    }
+
+    @Test
+    public void testDirectMessageFailsWhenBrokerRejectsIt() {
+        when(routingCache.getCachedUserServers("bob")).thenReturn(List.of("server2"));
+        ChatMessage message = ChatMessage.builder().type("chat").userId("alice").recipientId("bob").build();
+
+        CompletableFuture<Boolean> sent = messageService.sendDirectMessage(message);
+        brokerAck.completeExceptionally(new IllegalStateException("not enough replicas"));
+
+        assertFalse(sent.join());
+        assertEquals(1, meterRegistry.get("messaging.kafka.produce").tag("outcome", "error").timer().count());
+    }
+}
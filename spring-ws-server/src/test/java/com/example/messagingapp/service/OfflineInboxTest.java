@@ -0,0 +1,149 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.ChatMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.github.fppt.jedismock.RedisServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class OfflineInboxTest {
+
+    private RedisServer redisServer;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisTemplate<String, String> redisTemplate;
+    private OfflineInbox offlineInbox;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        redisServer = RedisServer.newRedisServer().start();
+        connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration(redisServer.getHost(), redisServer.getBindPort()));
+        connectionFactory.afterPropertiesSet();
+
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new StringRedisSerializer());
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashValueSerializer(new StringRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+
+        MessagingProperties properties = new MessagingProperties();
+        properties.getInbox().setMaxMessages(3);
+        properties.getInbox().setMaxAge(Duration.ofDays(1));
+        offlineInbox = new OfflineInbox(new ReactiveStringRedisTemplate(connectionFactory),
+                new MessageCodec(new ObjectMapper().registerModule(new JavaTimeModule())), properties,
+                new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    @Test
+    public void testInboxKeepsTheNewestMessagesAndDrainsThemOnce() {
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(List.of(), offlineInbox.offer(message("message " + i, Instant.now())).join());
+        }
+        assertTrue(redisTemplate.getExpire(OfflineInbox.inboxKey("bob")) > 0);
+
+        List<ChatMessage> drained = offlineInbox.drain("bob").join();
+        offlineInbox.acknowledge("bob").join();
+
+        assertEquals(List.of("message 3", "message 4", "message 5"), drained.stream().map(ChatMessage::getMessage).toList());
+        assertTrue(offlineInbox.drain("bob").join().isEmpty());
+        assertFalse(redisTemplate.hasKey(OfflineInbox.inboxKey("bob")));
+        assertFalse(redisTemplate.hasKey(OfflineInbox.pendingKey("bob")));
+    }
+
+    @Test
+    public void testUnacknowledgedDrainIsReturnedByTheNextOneWithoutUnreadableEntries() {
+        offlineInbox.offer(message("first", Instant.now())).join();
+        redisTemplate.opsForList().rightPush(OfflineInbox.inboxKey("bob"), "{not json");
+        offlineInbox.offer(message("second", Instant.now())).join();
+
+        // The node handling the first drain stopped before handing the messages over
+        assertEquals(List.of("first", "second"),
+                offlineInbox.drain("bob").join().stream().map(ChatMessage::getMessage).toList());
+        offlineInbox.offer(message("third", Instant.now())).join();
+
+        assertEquals(List.of("first", "second", "third"),
+                offlineInbox.drain("bob").join().stream().map(ChatMessage::getMessage).toList());
+        offlineInbox.acknowledge("bob").join();
+        assertTrue(offlineInbox.drain("bob").join().isEmpty());
+    }
+
+    @Test
+    public void testMessageForOnlineRecipientIsNotKept() {
+        redisTemplate.opsForHash().put(RedisService.userKey("bob"), "server2", "1");
+        redisTemplate.opsForValue().set(RedisService.HEARTBEAT_PREFIX + "server2", "1");
+
+        assertEquals(List.of("server2"), offlineInbox.offer(message("hello", Instant.now())).join());
+
+        assertFalse(redisTemplate.hasKey(OfflineInbox.inboxKey("bob")));
+
+        // Unless the server it is routed to has no session for it after all
+        assertTrue(offlineInbox.keep(message("kept", Instant.now())).join());
+        assertEquals(List.of("kept"),
+                offlineInbox.drain("bob").join().stream().map(ChatMessage::getMessage).toList());
+    }
+
+    @Test
+    public void testMessageRoutedToLapsedServerIsKept() {
+        // server2 stopped sending heartbeats, but bob's lease has not run out yet
+        redisTemplate.opsForHash().put(RedisService.userKey("bob"), "server2", "1");
+
+        assertEquals(List.of(), offlineInbox.offer(message("hello", Instant.now())).join());
+
+        assertEquals(List.of("hello"),
+                offlineInbox.drain("bob").join().stream().map(ChatMessage::getMessage).toList());
+    }
+
+    @Test
+    public void testExpiredMessagesAreSkippedAndRestoredOnesComeFirst() {
+        offlineInbox.offer(message("too old", Instant.now().minus(Duration.ofDays(2)))).join();
+        offlineInbox.offer(message("recent", Instant.now())).join();
+        List<ChatMessage> drained = offlineInbox.drain("bob").join();
+        assertEquals(List.of("recent"), drained.stream().map(ChatMessage::getMessage).toList());
+
+        // A message arriving before the drained ones are returned stays behind them
+        offlineInbox.offer(message("newer", Instant.now())).join();
+        offlineInbox.restore("bob", drained).join();
+        offlineInbox.acknowledge("bob").join();
+
+        assertEquals(List.of("recent", "newer"),
+                offlineInbox.drain("bob").join().stream().map(ChatMessage::getMessage).toList());
+    }
+
+    private static ChatMessage message(String text, Instant timestamp) {
+        return ChatMessage.builder()
+                .type("chat")
+                .message(text)
+                .userId("alice")
+                .recipientId("bob")
+                .timestamp(timestamp)
+                .build();
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.script.RedisScript;
+
+/**
+ * Redis Cluster routes a script by the keys it declares, so every key a script reads or writes
+ * has to come in through KEYS rather than be built in Lua
+ */
+public class RedisScriptKeysTest {
+
+    // The first argument of every call, which is the key for all commands the scripts use but PUBLISH
+    private static final Pattern CALL = Pattern.compile("redis\\.call\\('(\\w+)',\\s*([^,)]+)");
+    private static final Pattern DECLARED_KEY = Pattern.compile("KEYS\\[[^\\]]+\\]");
+
+    @Test
+    public void testScriptsOnlyTouchDeclaredKeys() throws Exception {
+        List<String> scripts = new ArrayList<>();
+        for (Class<?> type : List.of(RedisService.class, OfflineInbox.class, CallRegistry.class)) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) && RedisScript.class.isAssignableFrom(field.getType())) {
+                    field.setAccessible(true);
+                    scripts.add(((RedisScript<?>) field.get(null)).getScriptAsString());
+                }
+            }
+        }
+        assertFalse(scripts.isEmpty());
+
+        for (String script : scripts) {
+            Matcher call = CALL.matcher(script);
+            while (call.find()) {
+                if (!"PUBLISH".equals(call.group(1))) {
+                    assertTrue(DECLARED_KEY.matcher(call.group(2).trim()).matches(),
+                            call.group(1) + " on an undeclared key in: " + script);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.PresencePage;
+import com.github.fppt.jedismock.RedisServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class RedisServiceTest {
+
+    private RedisServer redisServer;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisTemplate<String, String> redisTemplate;
+    private RedisService redisService;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        redisServer = RedisServer.newRedisServer().start();
+        connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration(redisServer.getHost(), redisServer.getBindPort()));
+        connectionFactory.afterPropertiesSet();
+
+        redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new StringRedisSerializer());
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashValueSerializer(new StringRedisSerializer());
+        redisTemplate.afterPropertiesSet();
+
+        MessagingProperties properties = new MessagingProperties();
+        properties.getPresence().setPageSize(2);
+        redisService = new RedisService(new ReactiveStringRedisTemplate(connectionFactory), properties, meterRegistry);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    @Test
+    public void testPresenceIndexFollowsJoinAndLeave() {
+        assertEquals(1L, redisService.addUserSession("alice", "server1").join());
+        assertEquals(2L, redisService.addUserSession("bob", "server2").join());
+
+        assertEquals(List.of("server1"), redisService.getUserServers("alice").join());
+        assertEquals(Set.of("alice"), redisTemplate.opsForSet().members(RedisService.PRESENCE_SERVER_PREFIX + "server1"));
+        assertEquals(Set.of("alice", "bob"), allConnectedUsers());
+
+        assertEquals(3L, redisService.removeUserSession("alice", "server1").join());
+
+        assertEquals(List.of(), redisService.getUserServers("alice").join());
+        assertEquals(Set.of("bob"), allConnectedUsers());
+        assertEquals(3L, redisService.getConnectedUsersPage("0").join().getVersion());
+        assertEquals(2, meterRegistry.get("messaging.redis").tag("operation", "lookup").tag("outcome", "success").timer().count());
+    }
+
+    @Test
+    public void testRepeatedJoinDoesNotBumpVersion() {
+        assertEquals(1L, redisService.addUserSession("alice", "server1").join());
+        assertEquals(0L, redisService.addUserSession("alice", "server1").join());
+        assertEquals(0L, redisService.removeUserSession("bob", "server1").join());
+    }
+
+    @Test
+    public void testUserStaysRoutedUntilTheLastSessionOnAServerCloses() {
+        redisService.addUserSession("alice", "server1").join();
+        redisService.addUserSession("alice", "server1").join();
+
+        assertEquals(0L, redisService.removeUserSession("alice", "server1").join());
+        assertEquals(List.of("server1"), redisService.getUserServers("alice").join());
+        assertEquals("1", redisTemplate.opsForHash().get(RedisService.userKey("alice"), "server1"));
+
+        assertEquals(2L, redisService.removeUserSession("alice", "server1").join());
+        assertEquals(List.of(), redisService.getUserServers("alice").join());
+        assertTrue(allConnectedUsers().isEmpty());
+    }
+
+    @Test
+    public void testUserIsRoutedToEveryServerHostingOneOfTheirDevices() {
+        redisService.addUserSession("alice", "server1").join();
+        redisService.addUserSession("alice", "server2").join();
+
+        assertEquals(Set.of("server1", "server2"), Set.copyOf(redisService.getUserServers("alice").join()));
+
+        // Closing the device on one server must not remove the route to the other
+        redisService.removeUserSession("alice", "server1").join();
+
+        assertEquals(List.of("server2"), redisService.getUserServers("alice").join());
+        assertEquals(Set.of("alice"), allConnectedUsers());
+        assertFalse(redisTemplate.opsForSet().isMember(RedisService.PRESENCE_SERVER_PREFIX + "server1", "alice"));
+    }
+
+    @Test
+    public void testConnectedUsersArePagedByCursor() {
+        for (int i = 0; i < 7; i++) {
+            redisService.addUserSession("user" + i, "server1").join();
+        }
+
+        PresencePage first = redisService.getConnectedUsersPage("0").join();
+        assertFalse(first.isLast());
+        assertEquals(7L, first.getVersion());
+        assertEquals(7, allConnectedUsers().size());
+    }
+
+    @Test
+    public void testConcurrentCallsShareTheConnection() {
+        // Issued back to back from one thread; none of them waits for the previous reply
+        List<CompletableFuture<Long>> joins = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            joins.add(redisService.addUserSession("user" + i, "server1"));
+        }
+
+        Set<Long> versions = joins.stream().map(CompletableFuture::join).collect(Collectors.toSet());
+
+        assertEquals(200, versions.size());
+        assertEquals(200L, redisService.getConnectedUsersPage("0").join().getVersion());
+        assertEquals(200, meterRegistry.get("messaging.redis").tag("operation", "register").tag("outcome", "success").timer().count());
+    }
+
+    @Test
+    public void testLeasesAreRenewedInBatchesAndExpiredOnesRestored() {
+        redisService.addUserSession("alice", "server1").join();
+        redisService.addUserSession("bob", "server1").join();
+        redisService.addUserSession("bob", "server1").join();
+        redisService.addUserSession("carol", "server1").join();
+        redisService.addUserSession("carol", "server2").join();
+        long leaseMs = new MessagingProperties().getPresence().getLeaseTtl().toMillis();
+        assertTrue(redisTemplate.getExpire(RedisService.userKey("alice"), TimeUnit.MILLISECONDS) > 0);
+
+        // bob's lease ran out; carol's route to server1 was reaped while server1 stalled
+        redisTemplate.delete(RedisService.userKey("bob"));
+        redisTemplate.opsForHash().delete(RedisService.userKey("carol"), "server1");
+        redisTemplate.expire(RedisService.userKey("alice"), Duration.ofSeconds(5));
+        List<String> restored = redisService.renewLeases("server1", Map.of("alice", 1, "bob", 2, "carol", 1)).join();
+
+        assertEquals(Set.of("bob", "carol"), Set.copyOf(restored));
+        assertTrue(redisTemplate.getExpire(RedisService.userKey("alice"), TimeUnit.MILLISECONDS) > leaseMs / 2);
+        assertEquals("2", redisTemplate.opsForHash().get(RedisService.userKey("bob"), "server1"));
+        assertEquals(Set.of("server1", "server2"), Set.copyOf(redisService.getUserServers("carol").join()));
+        assertEquals(Set.of("alice", "bob", "carol"), allConnectedUsers());
+        assertEquals(List.of(), redisService.renewLeases("server1", Map.of()).join());
+    }
+
+    @Test
+    public void testRoutesToLapsedServerAreIgnoredAndReaped() {
+        redisService.addUserSession("alice", "server1").join();
+        redisService.addUserSession("bob", "server1").join();
+        redisService.addUserSession("carol", "server2").join();
+        // dave is connected through both servers
+        redisService.addUserSession("dave", "server1").join();
+        redisService.addUserSession("dave", "server2").join();
+
+        redisTemplate.delete(RedisService.HEARTBEAT_PREFIX + "server1");
+        assertEquals(List.of(), redisService.getUserServers("alice").join());
+        assertEquals(List.of("server2"), redisService.getUserServers("dave").join());
+
+        assertEquals(3L, redisService.reapLapsedNodes().join());
+        assertEquals(Set.of("carol", "dave"), allConnectedUsers());
+        assertEquals(List.of("server2"), redisService.getUserServers("dave").join());
+        assertFalse(redisTemplate.opsForHash().hasKey(RedisService.userKey("dave"), "server1"));
+        assertFalse(redisTemplate.hasKey(RedisService.userKey("alice")));
+        assertFalse(redisTemplate.hasKey(RedisService.PRESENCE_SERVER_PREFIX + "server1"));
+        assertEquals(Set.of("server2"), redisTemplate.opsForSet().members(RedisService.PRESENCE_NODES_KEY));
+        assertEquals(0L, redisService.reapLapsedNodes().join());
+    }
+
+    @Test
+    public void testLapsedServerIsReapedInBatchesUnlessItComesBack() {
+        MessagingProperties properties = new MessagingProperties();
+        properties.getPresence().setLeaseBatchSize(2);
+        RedisService batched = new RedisService(new ReactiveStringRedisTemplate(connectionFactory), properties, meterRegistry);
+        for (int i = 0; i < 5; i++) {
+            batched.addUserSession("user" + i, "server1").join();
+            batched.addRoomServer("room" + i, "server1").join();
+        }
+
+        // A live server is left alone
+        assertEquals(0L, batched.reapLapsedNodes().join());
+        assertEquals(5, allConnectedUsers().size());
+
+        redisTemplate.delete(RedisService.HEARTBEAT_PREFIX + "server1");
+        assertEquals(5L, batched.reapLapsedNodes().join());
+        assertTrue(allConnectedUsers().isEmpty());
+        assertFalse(redisTemplate.hasKey(RedisService.PRESENCE_SERVER_PREFIX + "server1"));
+        assertFalse(redisTemplate.hasKey(RedisService.ROOM_SERVER_PREFIX + "server1"));
+        assertFalse(redisTemplate.hasKey(RedisService.roomKey("room4")));
+        assertTrue(redisTemplate.opsForSet().members(RedisService.PRESENCE_NODES_KEY).isEmpty());
+    }
+
+    @Test
+    public void testRoomIsRoutedToEveryServerWithMembersAndReapedWithThem() {
+        redisService.heartbeat("server1").join();
+        redisService.heartbeat("server2").join();
+        assertTrue(redisService.addRoomServer("team", "server1").join());
+        assertFalse(redisService.addRoomServer("team", "server1").join());
+        assertTrue(redisService.addRoomServer("team", "server2").join());
+        redisService.addRoomServer("ops", "server1").join();
+
+        assertEquals(Set.of("server1", "server2"), Set.copyOf(redisService.getRoomServers("team").join()));
+
+        assertTrue(redisService.removeRoomServer("team", "server2").join());
+        assertFalse(redisService.removeRoomServer("team", "server2").join());
+        assertEquals(List.of("server1"), redisService.getRoomServers("team").join());
+
+        // A lapsed server is skipped at once and loses its rooms when reaped
+        redisTemplate.delete(RedisService.HEARTBEAT_PREFIX + "server1");
+        assertEquals(List.of(), redisService.getRoomServers("team").join());
+        redisService.reapLapsedNodes().join();
+        assertFalse(redisTemplate.hasKey(RedisService.roomKey("team")));
+        assertFalse(redisTemplate.hasKey(RedisService.roomKey("ops")));
+        assertFalse(redisTemplate.hasKey(RedisService.ROOM_SERVER_PREFIX + "server1"));
+    }
+
+    @Test
+    public void testRestartedServerDropsEntriesOfItsPreviousRun() {
+        redisService.addUserSession("alice", "server1").join();
+        redisService.heartbeat("server1").join();
+
+        assertEquals(1L, redisService.reapNode("server1").join());
+
+        assertTrue(allConnectedUsers().isEmpty());
+        assertEquals(List.of(), redisService.getUserServers("alice").join());
+    }
+
+    private Set<String> allConnectedUsers() {
+        Set<String> seen = new HashSet<>();
+        String cursor = "0";
+        int pages = 0;
+        do {
+            PresencePage page = redisService.getConnectedUsersPage(cursor).join();
+            seen.addAll(page.getUsers());
+            cursor = page.getCursor();
+            pages++;
+        } while (!"0".equals(cursor) && pages < 100);
+        return seen;
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import com.example.messagingapp.config.MessagingProperties;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class RoutingCacheTest {
+
+    private RedisService redisService;
+    private RoutingCache routingCache;
+
+    @BeforeEach
+    public void setUp() {
+        redisService = mock(RedisService.class);
+        routingCache = new RoutingCache(redisService, new MessagingProperties(),
+                mock(RedisMessageListenerContainer.class), new SimpleMeterRegistry());
+    }
+
+    @Test
+    public void testHitSkipsRedis() {
+        when(redisService.getUserServers("alice")).thenReturn(CompletableFuture.completedFuture(List.of("server1")));
+
+        assertEquals(List.of("server1"), routingCache.getUserServers("alice").join());
+        assertEquals(List.of("server1"), routingCache.getUserServers("alice").join());
+
+        verify(redisService, times(1)).getUserServers(any());
+        assertEquals(1, routingCache.stats().hitCount());
+        assertEquals(1, routingCache.stats().missCount());
+    }
+
+    @Test
+    public void testInvalidationMessageForcesReload() {
+        when(redisService.getUserServers("alice"))
+            .thenReturn(CompletableFuture.completedFuture(List.of("server1")))
+            .thenReturn(CompletableFuture.completedFuture(List.of("server1", "server2")));
+
+        assertEquals(List.of("server1"), routingCache.getUserServers("alice").join());
+        routingCache.onMessage(new DefaultMessage(RedisService.ROUTING_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                "alice".getBytes(StandardCharsets.UTF_8)), null);
+        assertEquals(List.of("server1", "server2"), routingCache.getUserServers("alice").join());
+    }
+
+    @Test
+    public void testInvalidationDuringLookupKeepsTheStaleRouteOutOfTheCache() {
+        CompletableFuture<List<String>> inFlight = new CompletableFuture<>();
+        when(redisService.getUserServers("alice"))
+            .thenReturn(inFlight)
+            .thenReturn(CompletableFuture.completedFuture(List.of("server1", "server2")));
+
+        CompletableFuture<List<String>> stale = routingCache.getUserServers("alice");
+        // alice's second device registers on server2 before the first lookup replies
+        routingCache.onMessage(new DefaultMessage(RedisService.ROUTING_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                "alice".getBytes(StandardCharsets.UTF_8)), null);
+        inFlight.complete(List.of("server1"));
+
+        assertEquals(List.of("server1"), stale.join());
+        assertNull(routingCache.getCachedUserServers("alice"));
+        assertEquals(List.of("server1", "server2"), routingCache.getUserServers("alice").join());
+
+        // A route resolved by the inbox is held to the same rule
+        long generation = routingCache.generation("bob");
+        routingCache.invalidate("bob");
+        routingCache.put("bob", List.of("server1"), generation);
+        assertNull(routingCache.getCachedUserServers("bob"));
+    }
+
+    @Test
+    public void testOfflineUsersAreNotCached() {
+        when(redisService.getUserServers("bob")).thenReturn(CompletableFuture.completedFuture(List.of()));
+
+        assertEquals(List.of(), routingCache.getUserServers("bob").join());
+        assertEquals(List.of(), routingCache.getUserServers("bob").join());
+
+        verify(redisService, times(2)).getUserServers("bob");
+    }
+}
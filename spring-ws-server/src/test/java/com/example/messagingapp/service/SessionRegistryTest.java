@@ -0,0 +1,106 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+public class SessionRegistryTest {
+
+    private final SessionRegistry sessionRegistry = new SessionRegistry();
+
+    @Test
+    public void testFirstAndLastSessionOfAUserAreReported() {
+        WebSocketSession phone = session("phone");
+        WebSocketSession laptop = session("laptop");
+
+        assertTrue(sessionRegistry.register("alice", phone));
+        assertFalse(sessionRegistry.register("alice", laptop));
+        assertEquals(List.of(phone, laptop), sessionRegistry.sessionsOf("alice"));
+        assertEquals("alice", sessionRegistry.get("phone").userId());
+        assertEquals(2, sessionRegistry.size());
+        assertEquals(1, sessionRegistry.userCount());
+
+        assertEquals(new SessionRegistry.Departure("alice", false), sessionRegistry.unregister("phone"));
+        assertEquals(List.of(laptop), sessionRegistry.sessionsOf("alice"));
+        assertEquals(new SessionRegistry.Departure("alice", true), sessionRegistry.unregister("laptop"));
+
+        assertNull(sessionRegistry.unregister("laptop"));
+        assertFalse(sessionRegistry.isConnected("alice"));
+        assertTrue(sessionRegistry.sessionsOf("alice").isEmpty());
+        assertTrue(sessionRegistry.sessions().isEmpty());
+    }
+
+    @Test
+    public void testSessionCountsArePassedPerUser() {
+        sessionRegistry.register("alice", session("a1"));
+        sessionRegistry.register("alice", session("a2"));
+        sessionRegistry.register("bob", session("b1"));
+
+        Map<String, Integer> counts = new HashMap<>();
+        sessionRegistry.forEachUser(counts::put);
+
+        assertEquals(Map.of("alice", 2, "bob", 1), counts);
+    }
+
+    @Test
+    public void testConcurrentJoinsAndLeavesReportEachTransitionOnce() throws Exception {
+        int threads = 8;
+        int rounds = 2_000;
+        AtomicInteger firsts = new AtomicInteger();
+        AtomicInteger lasts = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                WebSocketSession device = session("device-" + t);
+                workers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < rounds; i++) {
+                        if (sessionRegistry.register("alice", device)) {
+                            firsts.incrementAndGet();
+                        }
+                        if (sessionRegistry.unregister(device.getId()).lastSession()) {
+                            lasts.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Every time the user came online here they also went offline, exactly once
+        assertTrue(firsts.get() > 0);
+        assertEquals(firsts.get(), lasts.get());
+        assertFalse(sessionRegistry.isConnected("alice"));
+        assertEquals(0, sessionRegistry.size());
+    }
+
+    private static WebSocketSession session(String id) {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(id);
+        return session;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.messagingapp.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.example.messagingapp.codec.MessageCodec;
+import com.example.messagingapp.codec.WireFormat;
+import com.example.messagingapp.config.MessagingProperties;
+import com.example.messagingapp.model.SignalEnvelope;
+import com.example.messagingapp.model.WebRTCSignal;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import reactor.core.publisher.Mono;
+
+public class VideoCallServiceTest {
+
+    private final MessageCodec messageCodec = new MessageCodec(new ObjectMapper().registerModule(new JavaTimeModule()));
+
+    private RoutingCache routingCache;
+    private CallRegistry callRegistry;
+    private ReactiveStringRedisTemplate redisTemplate;
+    private List<Runnable> scheduled;
+    private SessionRegistry sessionRegistry;
+    private VideoCallService videoCallService;
+
+    @BeforeEach
+    public void setUp() {
+        routingCache = mock(RoutingCache.class);
+        callRegistry = mock(CallRegistry.class);
+        redisTemplate = mock(ReactiveStringRedisTemplate.class);
+        when(redisTemplate.convertAndSend(anyString(), anyString())).thenReturn(Mono.just(1L));
+        ServerProperties serverProperties = mock(ServerProperties.class);
+        when(serverProperties.getServerId()).thenReturn("server1");
+        TaskScheduler taskScheduler = mock(TaskScheduler.class);
+        scheduled = new ArrayList<>();
+        when(taskScheduler.schedule(any(Runnable.class), any(Instant.class))).thenAnswer(invocation -> {
+            scheduled.add(invocation.getArgument(0));
+            return null;
+        });
+        when(callRegistry.register(anyString(), anyString(), anyString())).thenReturn(CompletableFuture.completedFuture(null));
+        when(callRegistry.end(anyString())).thenReturn(CompletableFuture.completedFuture(null));
+        when(routingCache.getUserServers(anyString())).thenReturn(CompletableFuture.completedFuture(List.of()));
+
+        sessionRegistry = new SessionRegistry();
+        videoCallService = new VideoCallService(messageCodec, callRegistry, routingCache, redisTemplate, serverProperties,
+                sessionRegistry, taskScheduler, new MessagingProperties(), mock(RedisMessageListenerContainer.class));
+    }
+
+    @Test
+    public void testSignalForLocalPeerIsDeliveredDirectly() throws Exception {
+        WebSocketSession bob = connect("bob");
+
+        videoCallService.processSignal(signal("offer", "bob"), "alice");
+
+        verify(bob).sendMessage(any(TextMessage.class));
+        verify(redisTemplate, never()).convertAndSend(anyString(), any());
+    }
+
+    @Test
+    public void testSignalReachesEveryDeviceOfThePeer() throws Exception {
+        WebSocketSession bob = connect("bob");
+        when(routingCache.getUserServers("bob"))
+            .thenReturn(CompletableFuture.completedFuture(List.of("server1", "server2", "server3")));
+
+        videoCallService.processSignal(signal("call-request", "bob"), "alice");
+
+        verify(bob).sendMessage(any(TextMessage.class));
+        assertEquals(1, publishedTo("signals:server2").size());
+        assertEquals(1, publishedTo("signals:server3").size());
+        verify(redisTemplate, never()).convertAndSend(eq("signals:server1"), any());
+    }
+
+    @Test
+    public void testIceCandidatesForRemotePeerAreBatchedIntoOneHop() throws Exception {
+        when(routingCache.getUserServers("bob")).thenReturn(CompletableFuture.completedFuture(List.of("server2")));
+
+        for (int i = 0; i < 5; i++) {
+            videoCallService.processSignal(signal("ice-candidate", "bob"), "alice");
+        }
+        verify(redisTemplate, never()).convertAndSend(anyString(), any());
+
+        // The batch window elapses
+        assertEquals(1, scheduled.size());
+        scheduled.get(0).run();
+
+        assertEquals(5, publishedTo("signals:server2").get(0).getSignals().size());
+    }
+
+    @Test
+    public void testPendingCandidatesTravelAheadOfTheNextSignal() throws Exception {
+        when(routingCache.getUserServers("bob")).thenReturn(CompletableFuture.completedFuture(List.of("server2")));
+
+        videoCallService.processSignal(signal("ice-candidate", "bob"), "alice");
+        videoCallService.processSignal(signal("call-end", "bob"), "alice");
+
+        List<WebRTCSignal> relayed = publishedTo("signals:server2").get(0).getSignals();
+        assertEquals(List.of("ice-candidate", "call-end"), relayed.stream().map(WebRTCSignal::getType).toList());
+    }
+
+    @Test
+    public void testRelayedEnvelopeIsUnbatchedForLocalPeer() throws Exception {
+        WebSocketSession bob = connect("bob");
+        SignalEnvelope envelope = new SignalEnvelope(List.of(signal("ice-candidate", "bob"), signal("ice-candidate", "bob")));
+        byte[] body = messageCodec.mapper(WireFormat.JSON).writeValueAsBytes(envelope);
+
+        videoCallService.onMessage(new DefaultMessage("signals:server1".getBytes(StandardCharsets.UTF_8), body), null);
+
+        verify(bob, times(2)).sendMessage(any(TextMessage.class));
+    }
+
+    @Test
+    public void testCallRequestToOfflineUserIsRejected() throws Exception {
+        WebSocketSession alice = connect("alice");
+        when(routingCache.getUserServers("bob")).thenReturn(CompletableFuture.completedFuture(List.of()));
+
+        videoCallService.processSignal(signal("call-request", "bob"), "alice");
+
+        ArgumentCaptor<TextMessage> frame = ArgumentCaptor.forClass(TextMessage.class);
+        verify(alice).sendMessage(frame.capture());
+        WebRTCSignal rejection = messageCodec.decode(frame.getValue().asBytes(), WebRTCSignal.class);
+        assertEquals("call-response", rejection.getType());
+        assertEquals(Boolean.FALSE, rejection.getAccepted());
+        verify(callRegistry).end(rejection.getCallId());
+    }
+
+    @Test
+    public void testRelayedCallRequestWithoutLocalSessionIsDroppedNotRejected() throws Exception {
+        SignalEnvelope envelope = new SignalEnvelope(List.of(signal("call-request", "bob")));
+        byte[] body = messageCodec.mapper(WireFormat.JSON).writeValueAsBytes(envelope);
+
+        videoCallService.onMessage(new DefaultMessage("signals:server1".getBytes(StandardCharsets.UTF_8), body), null);
+
+        // Bob's device on another server may be ringing
+        verify(callRegistry, never()).end(anyString());
+        verify(routingCache, never()).getUserServers(anyString());
+        verify(redisTemplate, never()).convertAndSend(anyString(), any());
+    }
+
+    private WebSocketSession connect(String userId) {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(userId + "-session");
+        when(session.isOpen()).thenReturn(true);
+        sessionRegistry.register(userId, session);
+        return session;
+    }
+
+    private List<SignalEnvelope> publishedTo(String channel) throws Exception {
+        ArgumentCaptor<String> payloads = ArgumentCaptor.forClass(String.class);
+        verify(redisTemplate, times(1)).convertAndSend(eq(channel), payloads.capture());
+        List<SignalEnvelope> envelopes = new ArrayList<>();
+        for (String payload : payloads.getAllValues()) {
+            envelopes.add(messageCodec.decode(payload.getBytes(StandardCharsets.UTF_8), SignalEnvelope.class));
+        }
+        return envelopes;
+    }
+
+    private static WebRTCSignal signal(String type, String to) {
+        return WebRTCSignal.builder().type(type).to(to).callId("call-1").build();
+    }
+}